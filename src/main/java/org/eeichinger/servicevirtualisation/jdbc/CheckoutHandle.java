@@ -0,0 +1,65 @@
+package org.eeichinger.servicevirtualisation.jdbc;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.SQLException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A handle on a reused connection or statement, handed out once per checkout. Only the first
+ * {@link AutoCloseable#close()} is passed on to the reused object, any other use of a closed handle fails. This way a
+ * caller closing a stale reference once more can't reset the object while another caller has checked it out.
+ */
+class CheckoutHandle implements InvocationHandler {
+
+    private final Class<?> type;
+    private final Object target;
+    private final AtomicBoolean closed = new AtomicBoolean();
+
+    private CheckoutHandle(Class<?> type, Object target) {
+        this.type = type;
+        this.target = target;
+    }
+
+    static <T> T wrap(Class<T> type, T target) {
+        return type.cast(Proxy.newProxyInstance(
+            CheckoutHandle.class.getClassLoader()
+            , new Class<?>[]{type}
+            , new CheckoutHandle(type, target)
+        ));
+    }
+
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+        switch (method.getName()) {
+            case "close":
+                if (!closed.compareAndSet(false, true)) {
+                    return null;
+                }
+                break;
+            case "isClosed":
+                if (closed.get()) {
+                    return true;
+                }
+                break;
+            case "equals":
+                return proxy == args[0];
+            case "hashCode":
+                return System.identityHashCode(proxy);
+            case "toString":
+                return "CheckoutHandle{closed=" + closed.get() + ", target=" + target + "}";
+            default:
+                if (closed.get()) {
+                    throw new SQLException(type.getSimpleName() + " is closed");
+                }
+                break;
+        }
+        try {
+            return method.invoke(target, args);
+        } catch (InvocationTargetException e) {
+            throw e.getCause();
+        }
+    }
+}
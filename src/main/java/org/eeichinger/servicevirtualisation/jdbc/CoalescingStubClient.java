@@ -0,0 +1,139 @@
+package org.eeichinger.servicevirtualisation.jdbc;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lets concurrent identical queries share a single in-flight request ("single flight"): the first caller sends the
+ * request, callers arriving while it is in flight wait for its response instead of sending their own. Requests are
+ * identical if they carry the same SQL, parameter values and headers as sent to the stub server.
+ * <p>
+ * Only {@link StubRequest#isIdempotent() idempotent} requests are coalesced. The shared {@link StubResponse} is
+ * immutable, each caller parses it into its own result set. A failure is reported to all waiting callers. Once the
+ * response arrived, the next identical request is sent again, i.e. responses are not cached.
+ */
+public class CoalescingStubClient implements StubClient {
+
+    /**
+     * A request's identity on the wire.
+     */
+    private static final class RequestKey {
+        private final String sql;
+        private final Map<Integer, String> parameterValues;
+        private final Map<String, String> headers;
+        private final int hashCode;
+
+        RequestKey(StubRequest request) {
+            this.sql = request.getSql();
+            this.parameterValues = new TreeMap<>();
+            for (Map.Entry<Integer, Object> e : request.getParameterValues().entrySet()) {
+                // as sent to the stub server
+                parameterValues.put(e.getKey(), Objects.toString(e.getValue()));
+            }
+            this.headers = request.getHeaders();
+            this.hashCode = Objects.hash(sql, parameterValues, headers);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof RequestKey)) {
+                return false;
+            }
+            final RequestKey other = (RequestKey) o;
+            return hashCode == other.hashCode
+                && sql.equals(other.sql)
+                && parameterValues.equals(other.parameterValues)
+                && headers.equals(other.headers);
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+    }
+
+    private final StubClient delegate;
+    private final ConcurrentMap<RequestKey, CompletableFuture<StubResponse>> inFlight = new ConcurrentHashMap<>();
+    private final LongAdder coalesced;
+
+    public CoalescingStubClient(StubClient delegate) {
+        this(delegate, new LongAdder());
+    }
+
+    /**
+     * @param coalesced incremented for each request answered by another caller's in-flight request
+     */
+    public CoalescingStubClient(StubClient delegate, LongAdder coalesced) {
+        this.delegate = delegate;
+        this.coalesced = coalesced;
+    }
+
+    /**
+     * @return the number of requests answered by another caller's in-flight request
+     */
+    public long getCoalescedCount() {
+        return coalesced.sum();
+    }
+
+    @Override
+    public StubResponse execute(StubRequest request) throws IOException {
+        if (!request.isIdempotent()) {
+            return delegate.execute(request);
+        }
+        final RequestKey key = new RequestKey(request);
+        final CompletableFuture<StubResponse> response = new CompletableFuture<>();
+        final CompletableFuture<StubResponse> leader = inFlight.putIfAbsent(key, response);
+        if (leader != null) {
+            coalesced.increment();
+            return await(leader);
+        }
+        try {
+            final StubResponse result = delegate.execute(request);
+            response.complete(result);
+            return result;
+        } catch (Throwable e) {
+            response.completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlight.remove(key, response);
+        }
+    }
+
+    private static StubResponse await(CompletableFuture<StubResponse> leader) throws IOException {
+        try {
+            return leader.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while waiting for an identical in-flight request");
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                // a new instance, so each caller gets its own stack trace
+                throw new IOException(cause.getMessage(), cause);
+            }
+            if (cause instanceof RuntimeException) {
+                throw new IllegalStateException(cause.getMessage(), cause);
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        delegate.close();
+    }
+}
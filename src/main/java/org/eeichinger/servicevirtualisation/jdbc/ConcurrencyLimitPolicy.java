@@ -0,0 +1,107 @@
+package org.eeichinger.servicevirtualisation.jdbc;
+
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Bounds the number of requests in flight to the stub server(s) of a factory, so load tests don't overwhelm the stub
+ * server. The limit is either fixed or adapts to the stub server's latency (AIMD): each request answered within the
+ * latency threshold while the limit is in use raises the limit by 1/limit, i.e. by about one per round trip. A
+ * slower or failed request cuts it by 10%, at most once per round trip.
+ *
+ * @see ConcurrencyLimitingStubClient
+ */
+public class ConcurrencyLimitPolicy {
+
+    static final double BACKOFF_RATIO = 0.9;
+
+    private final int minLimit;
+    private final int maxLimit;
+    private final long latencyThresholdNanos;
+    private final OverloadPolicy overloadPolicy;
+
+    /**
+     * @param minLimit the initial and lowest limit of an adaptive limit
+     * @param maxLimit the highest limit, the fixed limit if not adaptive
+     * @param latencyThreshold the latency above which the stub server is considered overloaded, 0 for a fixed limit
+     * @param unit the unit of latencyThreshold
+     * @param overloadPolicy what to do with requests exceeding the limit
+     */
+    public ConcurrencyLimitPolicy(int minLimit, int maxLimit, long latencyThreshold, TimeUnit unit, OverloadPolicy overloadPolicy) {
+        if (minLimit <= 0 || maxLimit < minLimit) {
+            throw new IllegalArgumentException("limits must satisfy 0 < minLimit <= maxLimit, got " + minLimit + " and " + maxLimit);
+        }
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.latencyThresholdNanos = unit.toNanos(latencyThreshold);
+        this.overloadPolicy = overloadPolicy;
+    }
+
+    public static ConcurrencyLimitPolicy fixed(int limit, OverloadPolicy overloadPolicy) {
+        return new ConcurrencyLimitPolicy(limit, limit, 0, TimeUnit.MILLISECONDS, overloadPolicy);
+    }
+
+    public static ConcurrencyLimitPolicy aimd(int minLimit, int maxLimit, long latencyThreshold, TimeUnit unit, OverloadPolicy overloadPolicy) {
+        return new ConcurrencyLimitPolicy(minLimit, maxLimit, latencyThreshold, unit, overloadPolicy);
+    }
+
+    /**
+     * Parse a limit specification, one of
+     * <ul>
+     * <li>{@code 20} or {@code fixed(20)}</li>
+     * <li>{@code aimd(4,64,200)} - min and max limit, latency threshold in milliseconds</li>
+     * </ul>
+     */
+    static ConcurrencyLimitPolicy parse(String spec, OverloadPolicy overloadPolicy) {
+        final Matcher m = Pattern.compile("\\s*(?:(\\w+)\\s*\\(\\s*(\\d+)\\s*(?:,\\s*(\\d+)\\s*,\\s*(\\d+)\\s*)?\\)|(\\d+))\\s*").matcher(spec);
+        if (!m.matches()) {
+            throw new IllegalArgumentException("invalid concurrency limit specification '" + spec + "'");
+        }
+        if (m.group(5) != null) {
+            return fixed(Integer.parseInt(m.group(5)), overloadPolicy);
+        }
+        final String type = m.group(1).toLowerCase();
+        if ("fixed".equals(type) && m.group(3) == null) {
+            return fixed(Integer.parseInt(m.group(2)), overloadPolicy);
+        }
+        if ("aimd".equals(type) && m.group(3) != null) {
+            return aimd(Integer.parseInt(m.group(2)), Integer.parseInt(m.group(3)), Long.parseLong(m.group(4)), TimeUnit.MILLISECONDS, overloadPolicy);
+        }
+        throw new IllegalArgumentException("invalid concurrency limit specification '" + spec + "'");
+    }
+
+    public int getMinLimit() {
+        return minLimit;
+    }
+
+    public int getMaxLimit() {
+        return maxLimit;
+    }
+
+    public long getLatencyThresholdNanos() {
+        return latencyThresholdNanos;
+    }
+
+    public OverloadPolicy getOverloadPolicy() {
+        return overloadPolicy;
+    }
+
+    public boolean isAdaptive() {
+        return latencyThresholdNanos > 0 && minLimit < maxLimit;
+    }
+
+    /**
+     * @return the limit in the format accepted by {@link #parse(String, OverloadPolicy)}
+     */
+    String toSpec() {
+        return isAdaptive()
+            ? "aimd(" + minLimit + "," + maxLimit + "," + TimeUnit.NANOSECONDS.toMillis(latencyThresholdNanos) + ")"
+            : "fixed(" + maxLimit + ")";
+    }
+
+    @Override
+    public String toString() {
+        return toSpec() + " " + overloadPolicy;
+    }
+}
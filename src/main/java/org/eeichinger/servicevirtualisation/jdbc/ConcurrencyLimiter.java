@@ -0,0 +1,225 @@
+package org.eeichinger.servicevirtualisation.jdbc;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Tracks the requests in flight to the stub server against the current limit of a {@link ConcurrencyLimitPolicy},
+ * and records the time requests spent queued separately from the time the stub server took to answer them. Waiting
+ * requests are admitted in arrival order.
+ *
+ * @see ConcurrencyLimitingStubClient
+ */
+public class ConcurrencyLimiter {
+
+    private final ConcurrencyLimitPolicy policy;
+    private final Lock lock = new ReentrantLock();
+    private final Condition available = lock.newCondition();
+    private double limit;
+    private int inFlight;
+    private int queued;
+    private long lastBackoffNanos = System.nanoTime();
+    private final LatencyHistogram queueTime = new LatencyHistogram();
+    private final LatencyHistogram serviceTime = new LatencyHistogram();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder passedThrough = new LongAdder();
+    private final LongAdder queueTimeouts = new LongAdder();
+
+    public ConcurrencyLimiter(ConcurrencyLimitPolicy policy) {
+        this.policy = policy;
+        this.limit = policy.isAdaptive() ? policy.getMinLimit() : policy.getMaxLimit();
+    }
+
+    public ConcurrencyLimitPolicy getPolicy() {
+        return policy;
+    }
+
+    /**
+     * Admit a request, applying the {@link OverloadPolicy} if the limit is reached.
+     *
+     * @param maxQueueMillis the maximum time to wait if queuing, 0 to wait indefinitely
+     * @return false, if the request is to be passed through
+     * @throws IOException if the request is rejected or timed out waiting
+     */
+    boolean acquire(long maxQueueMillis) throws IOException {
+        final long queuedAt = System.nanoTime();
+        lock.lock();
+        try {
+            // queued requests go first
+            if (queued == 0 && inFlight < (int) limit) {
+                inFlight++;
+                queueTime.recordNanos(0);
+                return true;
+            }
+            switch (policy.getOverloadPolicy()) {
+                case PASS_THROUGH:
+                    passedThrough.increment();
+                    return false;
+                case FAIL_FAST:
+                    rejected.increment();
+                    throw new IOException("stub server overloaded, " + inFlight + " requests in flight");
+                default:
+                    break;
+            }
+            queued++;
+            try {
+                long remainingNanos = TimeUnit.MILLISECONDS.toNanos(maxQueueMillis);
+                while (inFlight >= (int) limit) {
+                    if (maxQueueMillis <= 0) {
+                        available.await();
+                    } else if (remainingNanos <= 0) {
+                        queueTimeouts.increment();
+                        throw new IOException("timed out after " + maxQueueMillis + "ms waiting for one of " + inFlight + " requests in flight to the stub server");
+                    } else {
+                        remainingNanos = available.awaitNanos(remainingNanos);
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("interrupted while waiting for a request in flight to the stub server");
+            } finally {
+                queued--;
+            }
+            inFlight++;
+            queueTime.recordNanos(System.nanoTime() - queuedAt);
+            // the limit may admit more than one
+            if (inFlight < (int) limit) {
+                available.signal();
+            }
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Admit an optional request (e.g. a hedged attempt) only if the limit isn't reached and no request is waiting,
+     * without applying the {@link OverloadPolicy}.
+     *
+     * @return true, if admitted
+     */
+    boolean tryAcquire() {
+        lock.lock();
+        try {
+            if (queued == 0 && inFlight < (int) limit) {
+                inFlight++;
+                return true;
+            }
+            return false;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Complete an admitted request, adapting the limit to the observed latency.
+     *
+     * @param startNanos the time the request was admitted at
+     * @param failed true, if the request failed or the stub server signalled overload
+     */
+    void release(long startNanos, boolean failed) {
+        final long now = System.nanoTime();
+        final long elapsedNanos = now - startNanos;
+        serviceTime.recordNanos(elapsedNanos);
+        lock.lock();
+        try {
+            final int wasInFlight = inFlight--;
+            if (policy.isAdaptive()) {
+                if (failed || elapsedNanos > policy.getLatencyThresholdNanos()) {
+                    // requests admitted before the last backoff saw the old limit
+                    if (startNanos - lastBackoffNanos > 0) {
+                        limit = Math.max(policy.getMinLimit(), limit * ConcurrencyLimitPolicy.BACKOFF_RATIO);
+                        lastBackoffNanos = now;
+                    }
+                } else if (wasInFlight * 2 >= (int) limit) {
+                    limit = Math.min(policy.getMaxLimit(), limit + 1 / limit);
+                }
+            }
+            if (queued > 0 && inFlight < (int) limit) {
+                available.signal();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the current limit
+     */
+    public int getLimit() {
+        lock.lock();
+        try {
+            return (int) limit;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getInFlight() {
+        lock.lock();
+        try {
+            return inFlight;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the number of requests currently waiting
+     */
+    public int getQueued() {
+        lock.lock();
+        try {
+            return queued;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the time admitted requests waited for the limit, 0 if admitted right away
+     */
+    public LatencyHistogram getQueueTime() {
+        return queueTime;
+    }
+
+    /**
+     * @return the time admitted requests took from admission until the stub server answered
+     */
+    public LatencyHistogram getServiceTime() {
+        return serviceTime;
+    }
+
+    /**
+     * @return the number of requests failed fast, see {@link OverloadPolicy#FAIL_FAST}
+     */
+    public long getRejected() {
+        return rejected.sum();
+    }
+
+    /**
+     * @return the number of requests passed through, see {@link OverloadPolicy#PASS_THROUGH}
+     */
+    public long getPassedThrough() {
+        return passedThrough.sum();
+    }
+
+    /**
+     * @return the number of queued requests that timed out waiting
+     */
+    public long getQueueTimeouts() {
+        return queueTimeouts.sum();
+    }
+
+    @Override
+    public String toString() {
+        return "ConcurrencyLimiter{policy=" + policy + ", limit=" + getLimit() + ", inFlight=" + getInFlight()
+            + ", queued=" + getQueued() + ", queueTime={" + queueTime + "}, serviceTime={" + serviceTime + "}"
+            + ", rejected=" + getRejected() + ", passedThrough=" + getPassedThrough() + ", queueTimeouts=" + getQueueTimeouts() + "}";
+    }
+}
@@ -0,0 +1,71 @@
+package org.eeichinger.servicevirtualisation.jdbc;
+
+import java.io.IOException;
+import java.util.Collections;
+
+/**
+ * Bounds the number of requests in flight to the stub server according to a {@link ConcurrencyLimiter}'s policy.
+ * Requests exceeding the limit are queued, rejected or passed through, see {@link OverloadPolicy}.
+ * <p>
+ * Failures and "429 Too Many Requests" responses count as overload signals for adaptive limits, as do responses
+ * slower than the policy's latency threshold.
+ * <p>
+ * A request occupies a single permit, even if a {@link HedgingStubClient} below sends it twice: hedged attempts need
+ * a permit of their own, see
+ * {@link HedgingStubClient#HedgingStubClient(LoadBalancingStubClient, HedgingPolicy, int, ConcurrencyLimiter)}.
+ */
+public class ConcurrencyLimitingStubClient implements StubClient {
+
+    /**
+     * The status of the response answering requests passed through because of overload. Any status but 200 and 400
+     * lets the statement pass through.
+     */
+    public static final int OVERLOADED_STATUS = 503;
+
+    private static final StubResponse OVERLOADED = new StubResponse(OVERLOADED_STATUS, Collections.<String, String>emptyMap(), null);
+
+    private final StubClient delegate;
+    private final ConcurrencyLimiter limiter;
+    private final long maxQueueMillis;
+
+    /**
+     * @param maxQueueMillis the maximum time to wait for the limit, 0 to wait indefinitely
+     */
+    public ConcurrencyLimitingStubClient(StubClient delegate, ConcurrencyLimiter limiter, long maxQueueMillis) {
+        this.delegate = delegate;
+        this.limiter = limiter;
+        this.maxQueueMillis = maxQueueMillis;
+    }
+
+    /**
+     * @return true, if the response is the one answering requests passed through because of overload
+     */
+    static boolean isOverloaded(StubResponse response) {
+        return response == OVERLOADED;
+    }
+
+    public ConcurrencyLimiter getLimiter() {
+        return limiter;
+    }
+
+    @Override
+    public StubResponse execute(StubRequest request) throws IOException {
+        if (!limiter.acquire(maxQueueMillis)) {
+            return OVERLOADED;
+        }
+        final long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            final StubResponse response = delegate.execute(request);
+            failed = response.getStatus() == 429;
+            return response;
+        } finally {
+            limiter.release(start, failed);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        delegate.close();
+    }
+}
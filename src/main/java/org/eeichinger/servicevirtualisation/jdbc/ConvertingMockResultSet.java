@@ -0,0 +1,356 @@
+package org.eeichinger.servicevirtualisation.jdbc;
+
+import java.io.InputStream;
+import java.io.Reader;
+import java.math.BigDecimal;
+import java.sql.Blob;
+import java.sql.Clob;
+import java.sql.Date;
+import java.sql.SQLException;
+import java.sql.Time;
+import java.sql.Timestamp;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import com.mockrunner.mock.jdbc.MockResultSet;
+
+/**
+ * A {@link MockResultSet} memoizing the conversion of string cells to typed values, so mappers calling e.g.
+ * {@link #getInt(int)} or {@link #getTimestamp(String)} for the same cells over and over again (e.g. when a
+ * cached result is replayed) don't parse the same strings each time.
+ * <p>
+ * Cells are converted lazily on first typed access, using {@link MockResultSet}'s conversion. As the conversion only
+ * depends on a cell's text, converted values are memoized by text and target type, i.e. equal cells are only
+ * converted once. The memoized values are shared with all {@link #shallowCopy() shallow copies}, e.g. the cursors
+ * handed out by the {@link ResultSetTemplateCache}. Mutable values (dates and timestamps) are copied before being
+ * returned.
+ * <p>
+ * Large object cells ({@link StreamingLob}) are streamed by the stream, {@link Blob} and {@link Clob} accessors.
+ * {@link #getString(int)} and {@link #getBytes(int)} read them as a whole.
+ */
+public class ConvertingMockResultSet extends MockResultSet {
+
+    private enum Conversion {INT, LONG, SHORT, BYTE, FLOAT, DOUBLE, BOOLEAN, BIG_DECIMAL, DATE, TIME, TIMESTAMP}
+
+    private static final Conversion[] CONVERSIONS = Conversion.values();
+
+    /**
+     * Converted values by target type and text, allocated on first use of a target type.
+     */
+    private final AtomicReferenceArray<ConcurrentMap<String, Object>> converted = new AtomicReferenceArray<>(CONVERSIONS.length);
+
+    public ConvertingMockResultSet(String id) {
+        super(id);
+    }
+
+    @Override
+    public int getInt(int columnIndex) throws SQLException {
+        return (Integer) getConverted(columnIndex, Conversion.INT);
+    }
+
+    @Override
+    public int getInt(String columnLabel) throws SQLException {
+        return (Integer) getConverted(columnLabel, Conversion.INT);
+    }
+
+    @Override
+    public long getLong(int columnIndex) throws SQLException {
+        return (Long) getConverted(columnIndex, Conversion.LONG);
+    }
+
+    @Override
+    public long getLong(String columnLabel) throws SQLException {
+        return (Long) getConverted(columnLabel, Conversion.LONG);
+    }
+
+    @Override
+    public short getShort(int columnIndex) throws SQLException {
+        return (Short) getConverted(columnIndex, Conversion.SHORT);
+    }
+
+    @Override
+    public short getShort(String columnLabel) throws SQLException {
+        return (Short) getConverted(columnLabel, Conversion.SHORT);
+    }
+
+    @Override
+    public byte getByte(int columnIndex) throws SQLException {
+        return (Byte) getConverted(columnIndex, Conversion.BYTE);
+    }
+
+    @Override
+    public byte getByte(String columnLabel) throws SQLException {
+        return (Byte) getConverted(columnLabel, Conversion.BYTE);
+    }
+
+    @Override
+    public float getFloat(int columnIndex) throws SQLException {
+        return (Float) getConverted(columnIndex, Conversion.FLOAT);
+    }
+
+    @Override
+    public float getFloat(String columnLabel) throws SQLException {
+        return (Float) getConverted(columnLabel, Conversion.FLOAT);
+    }
+
+    @Override
+    public double getDouble(int columnIndex) throws SQLException {
+        return (Double) getConverted(columnIndex, Conversion.DOUBLE);
+    }
+
+    @Override
+    public double getDouble(String columnLabel) throws SQLException {
+        return (Double) getConverted(columnLabel, Conversion.DOUBLE);
+    }
+
+    @Override
+    public boolean getBoolean(int columnIndex) throws SQLException {
+        return (Boolean) getConverted(columnIndex, Conversion.BOOLEAN);
+    }
+
+    @Override
+    public boolean getBoolean(String columnLabel) throws SQLException {
+        return (Boolean) getConverted(columnLabel, Conversion.BOOLEAN);
+    }
+
+    @Override
+    public BigDecimal getBigDecimal(int columnIndex) throws SQLException {
+        return (BigDecimal) getConverted(columnIndex, Conversion.BIG_DECIMAL);
+    }
+
+    @Override
+    public BigDecimal getBigDecimal(String columnLabel) throws SQLException {
+        return (BigDecimal) getConverted(columnLabel, Conversion.BIG_DECIMAL);
+    }
+
+    @Override
+    public Date getDate(int columnIndex) throws SQLException {
+        return copy((Date) getConverted(columnIndex, Conversion.DATE));
+    }
+
+    @Override
+    public Date getDate(String columnLabel) throws SQLException {
+        return copy((Date) getConverted(columnLabel, Conversion.DATE));
+    }
+
+    @Override
+    public Time getTime(int columnIndex) throws SQLException {
+        return copy((Time) getConverted(columnIndex, Conversion.TIME));
+    }
+
+    @Override
+    public Time getTime(String columnLabel) throws SQLException {
+        return copy((Time) getConverted(columnLabel, Conversion.TIME));
+    }
+
+    @Override
+    public Timestamp getTimestamp(int columnIndex) throws SQLException {
+        return copy((Timestamp) getConverted(columnIndex, Conversion.TIMESTAMP));
+    }
+
+    @Override
+    public Timestamp getTimestamp(String columnLabel) throws SQLException {
+        return copy((Timestamp) getConverted(columnLabel, Conversion.TIMESTAMP));
+    }
+
+    @Override
+    public String getString(int columnIndex) throws SQLException {
+        final Object value = getObject(columnIndex);
+        if (value instanceof StreamingLob) {
+            return ((StreamingLob) value).getString();
+        }
+        return super.getString(columnIndex);
+    }
+
+    @Override
+    public String getString(String columnLabel) throws SQLException {
+        final Object value = getObject(columnLabel);
+        if (value instanceof StreamingLob) {
+            return ((StreamingLob) value).getString();
+        }
+        return super.getString(columnLabel);
+    }
+
+    @Override
+    public byte[] getBytes(int columnIndex) throws SQLException {
+        final Object value = getObject(columnIndex);
+        if (value instanceof StreamingLob) {
+            return ((StreamingLob) value).getBytes();
+        }
+        return super.getBytes(columnIndex);
+    }
+
+    @Override
+    public byte[] getBytes(String columnLabel) throws SQLException {
+        final Object value = getObject(columnLabel);
+        if (value instanceof StreamingLob) {
+            return ((StreamingLob) value).getBytes();
+        }
+        return super.getBytes(columnLabel);
+    }
+
+    @Override
+    public InputStream getBinaryStream(int columnIndex) throws SQLException {
+        final Object value = getObject(columnIndex);
+        if (value instanceof StreamingLob) {
+            return ((StreamingLob) value).getBinaryStream();
+        }
+        return super.getBinaryStream(columnIndex);
+    }
+
+    @Override
+    public InputStream getBinaryStream(String columnLabel) throws SQLException {
+        final Object value = getObject(columnLabel);
+        if (value instanceof StreamingLob) {
+            return ((StreamingLob) value).getBinaryStream();
+        }
+        return super.getBinaryStream(columnLabel);
+    }
+
+    @Override
+    public Reader getCharacterStream(int columnIndex) throws SQLException {
+        final Object value = getObject(columnIndex);
+        if (value instanceof StreamingLob) {
+            return ((StreamingLob) value).getCharacterStream();
+        }
+        return super.getCharacterStream(columnIndex);
+    }
+
+    @Override
+    public Reader getCharacterStream(String columnLabel) throws SQLException {
+        final Object value = getObject(columnLabel);
+        if (value instanceof StreamingLob) {
+            return ((StreamingLob) value).getCharacterStream();
+        }
+        return super.getCharacterStream(columnLabel);
+    }
+
+    @Override
+    public Blob getBlob(int columnIndex) throws SQLException {
+        final Object value = getObject(columnIndex);
+        if (value instanceof StreamingLob) {
+            return ((StreamingLob) value).asBlob();
+        }
+        return super.getBlob(columnIndex);
+    }
+
+    @Override
+    public Blob getBlob(String columnLabel) throws SQLException {
+        final Object value = getObject(columnLabel);
+        if (value instanceof StreamingLob) {
+            return ((StreamingLob) value).asBlob();
+        }
+        return super.getBlob(columnLabel);
+    }
+
+    @Override
+    public Clob getClob(int columnIndex) throws SQLException {
+        final Object value = getObject(columnIndex);
+        if (value instanceof StreamingLob) {
+            return ((StreamingLob) value).asClob();
+        }
+        return super.getClob(columnIndex);
+    }
+
+    @Override
+    public Clob getClob(String columnLabel) throws SQLException {
+        final Object value = getObject(columnLabel);
+        if (value instanceof StreamingLob) {
+            return ((StreamingLob) value).asClob();
+        }
+        return super.getClob(columnLabel);
+    }
+
+    private Object getConverted(int columnIndex, Conversion conversion) throws SQLException {
+        final Object text = getObject(columnIndex);
+        if (!(text instanceof String)) {
+            return convert(columnIndex, conversion);
+        }
+        final ConcurrentMap<String, Object> values = getConvertedValues(conversion);
+        Object value = values.get(text);
+        if (value == null) {
+            value = convert(columnIndex, conversion);
+            if (value != null) {
+                values.putIfAbsent((String) text, value);
+            }
+        }
+        return value;
+    }
+
+    private Object getConverted(String columnLabel, Conversion conversion) throws SQLException {
+        final Object text = getObject(columnLabel);
+        if (!(text instanceof String)) {
+            return convert(columnLabel, conversion);
+        }
+        final ConcurrentMap<String, Object> values = getConvertedValues(conversion);
+        Object value = values.get(text);
+        if (value == null) {
+            value = convert(columnLabel, conversion);
+            if (value != null) {
+                values.putIfAbsent((String) text, value);
+            }
+        }
+        return value;
+    }
+
+    private ConcurrentMap<String, Object> getConvertedValues(Conversion conversion) {
+        ConcurrentMap<String, Object> values = converted.get(conversion.ordinal());
+        if (values == null) {
+            converted.compareAndSet(conversion.ordinal(), null, new ConcurrentHashMap<>());
+            values = converted.get(conversion.ordinal());
+        }
+        return values;
+    }
+
+    private Object convert(int columnIndex, Conversion conversion) throws SQLException {
+        switch (conversion) {
+            case INT: return super.getInt(columnIndex);
+            case LONG: return super.getLong(columnIndex);
+            case SHORT: return super.getShort(columnIndex);
+            case BYTE: return super.getByte(columnIndex);
+            case FLOAT: return super.getFloat(columnIndex);
+            case DOUBLE: return super.getDouble(columnIndex);
+            case BOOLEAN: return super.getBoolean(columnIndex);
+            case BIG_DECIMAL: return super.getBigDecimal(columnIndex);
+            case DATE: return super.getDate(columnIndex);
+            case TIME: return super.getTime(columnIndex);
+            case TIMESTAMP: return super.getTimestamp(columnIndex);
+            default: throw new AssertionError(conversion);
+        }
+    }
+
+    private Object convert(String columnLabel, Conversion conversion) throws SQLException {
+        switch (conversion) {
+            case INT: return super.getInt(columnLabel);
+            case LONG: return super.getLong(columnLabel);
+            case SHORT: return super.getShort(columnLabel);
+            case BYTE: return super.getByte(columnLabel);
+            case FLOAT: return super.getFloat(columnLabel);
+            case DOUBLE: return super.getDouble(columnLabel);
+            case BOOLEAN: return super.getBoolean(columnLabel);
+            case BIG_DECIMAL: return super.getBigDecimal(columnLabel);
+            case DATE: return super.getDate(columnLabel);
+            case TIME: return super.getTime(columnLabel);
+            case TIMESTAMP: return super.getTimestamp(columnLabel);
+            default: throw new AssertionError(conversion);
+        }
+    }
+
+    private static Date copy(Date date) {
+        return date != null ? new Date(date.getTime()) : null;
+    }
+
+    private static Time copy(Time time) {
+        return time != null ? new Time(time.getTime()) : null;
+    }
+
+    private static Timestamp copy(Timestamp timestamp) {
+        if (timestamp == null) {
+            return null;
+        }
+        final Timestamp copy = new Timestamp(timestamp.getTime());
+        copy.setNanos(timestamp.getNanos());
+        return copy;
+    }
+}
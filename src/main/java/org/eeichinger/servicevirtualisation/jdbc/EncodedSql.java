@@ -0,0 +1,58 @@
+package org.eeichinger.servicevirtualisation.jdbc;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A SQL statement together with its {@link SqlFingerprint} and request body encodings. Prepared statements
+ * compute it once and reuse it for every execution, so executing a statement doesn't re-encode its SQL.
+ */
+public final class EncodedSql {
+
+    private final String sql;
+    private final String fingerprint;
+    private final byte[] utf8;
+    private volatile byte[] gzipped;
+
+    public EncodedSql(String sql, String fingerprint) {
+        this.sql = sql;
+        this.fingerprint = fingerprint;
+        this.utf8 = sql.getBytes(StandardCharsets.UTF_8);
+    }
+
+    public static EncodedSql of(String sql) {
+        return new EncodedSql(sql, SqlFingerprint.of(sql));
+    }
+
+    public String getSql() {
+        return sql;
+    }
+
+    public String getFingerprint() {
+        return fingerprint;
+    }
+
+    /**
+     * @return the UTF-8 encoded SQL, must not be modified
+     */
+    public byte[] getUtf8() {
+        return utf8;
+    }
+
+    /**
+     * @return the gzip compressed UTF-8 encoded SQL, computed on first use. Must not be modified.
+     */
+    public byte[] getGzipped() {
+        byte[] result = gzipped;
+        if (result == null) {
+            // racing threads compute the same result
+            result = StubCompression.gzip(utf8);
+            gzipped = result;
+        }
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return sql;
+    }
+}
@@ -0,0 +1,68 @@
+package org.eeichinger.servicevirtualisation.jdbc;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Request statistics of a single {@link StubEndpoint}.
+ */
+public class EndpointMetrics {
+
+    private final LongAdder requests = new LongAdder();
+    private final LongAdder failures = new LongAdder();
+    private final LongAdder ejections = new LongAdder();
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final LatencyHistogram latency = new LatencyHistogram();
+
+    void requestStarted() {
+        requests.increment();
+        inFlight.incrementAndGet();
+    }
+
+    void requestCompleted(long durationNanos, boolean failed) {
+        inFlight.decrementAndGet();
+        latency.recordNanos(durationNanos);
+        if (failed) {
+            failures.increment();
+        }
+    }
+
+    void ejected() {
+        ejections.increment();
+    }
+
+    /**
+     * @return the total number of requests sent to this endpoint
+     */
+    public long getRequests() {
+        return requests.sum();
+    }
+
+    /**
+     * @return the number of requests that failed with an I/O error or a 5xx status
+     */
+    public long getFailures() {
+        return failures.sum();
+    }
+
+    /**
+     * @return how often this endpoint was ejected from the set of available endpoints
+     */
+    public long getEjections() {
+        return ejections.sum();
+    }
+
+    public int getInFlight() {
+        return inFlight.get();
+    }
+
+    public LatencyHistogram getLatency() {
+        return latency;
+    }
+
+    @Override
+    public String toString() {
+        return "requests=" + getRequests() + ", failures=" + getFailures() + ", ejections=" + getEjections()
+            + ", inFlight=" + getInFlight() + ", latency=[" + latency + "]";
+    }
+}
@@ -0,0 +1,67 @@
+package org.eeichinger.servicevirtualisation.jdbc;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Configures request hedging for idempotent statements: if the stub server didn't answer within the delay,
+ * a duplicate request is sent (to another endpoint if available) and whichever response arrives first is used.
+ * <p>
+ * The delay is derived from the observed latency distribution (e.g. the 95th percentile) and clamped to
+ * [minDelay, maxDelay]. Until enough samples have been collected, maxDelay is used.
+ *
+ * @see HedgingStubClient
+ */
+public class HedgingPolicy {
+
+    private final double percentile;
+    private final long minDelayMicros;
+    private final long maxDelayMicros;
+    private final int minSamples;
+
+    /**
+     * @param percentile the latency percentile (0-100) after which a hedged request is sent
+     * @param minDelay the lower bound of the hedging delay
+     * @param maxDelay the upper bound of the hedging delay, also used until minSamples latencies are known
+     * @param unit the unit of minDelay and maxDelay
+     */
+    public HedgingPolicy(double percentile, long minDelay, long maxDelay, TimeUnit unit) {
+        this(percentile, minDelay, maxDelay, unit, 100);
+    }
+
+    public HedgingPolicy(double percentile, long minDelay, long maxDelay, TimeUnit unit, int minSamples) {
+        if (percentile <= 0 || percentile > 100) {
+            throw new IllegalArgumentException("percentile must be in (0, 100]");
+        }
+        this.percentile = percentile;
+        this.minDelayMicros = unit.toMicros(minDelay);
+        this.maxDelayMicros = Math.max(minDelayMicros, unit.toMicros(maxDelay));
+        this.minSamples = minSamples;
+    }
+
+    public double getPercentile() {
+        return percentile;
+    }
+
+    public long getMinDelayMicros() {
+        return minDelayMicros;
+    }
+
+    public long getMaxDelayMicros() {
+        return maxDelayMicros;
+    }
+
+    public int getMinSamples() {
+        return minSamples;
+    }
+
+    /**
+     * @return the delay in microseconds after which to send a hedged request, given the observed latencies
+     */
+    public long getDelayMicros(LatencyHistogram observedLatency) {
+        if (observedLatency.getCount() < minSamples) {
+            return maxDelayMicros;
+        }
+        long delay = observedLatency.getPercentileMicros(percentile);
+        return Math.min(maxDelayMicros, Math.max(minDelayMicros, delay));
+    }
+}
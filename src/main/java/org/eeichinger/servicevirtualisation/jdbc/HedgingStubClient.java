@@ -0,0 +1,263 @@
+package org.eeichinger.servicevirtualisation.jdbc;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Sends a second ("hedged") request for idempotent statements if the first one didn't return within the
+ * delay determined by the {@link HedgingPolicy}, and returns whichever response arrives first. The slower
+ * attempt is {@link StubRequest#abort() aborted}. Non-idempotent requests are passed on unchanged.
+ * <p>
+ * The first attempt is sent on the caller's thread. Only hedged requests run on a pool of at most
+ * {@code maxConcurrentHedges} threads; while all of them are busy, no further hedged requests are sent. Given a
+ * {@link ConcurrencyLimiter}, a hedged request is only sent if it admits it right away, so hedging doesn't exceed
+ * the concurrency limit.
+ */
+public class HedgingStubClient implements StubClient {
+
+    public static final int DEFAULT_MAX_CONCURRENT_HEDGES = 16;
+
+    private final LoadBalancingStubClient delegate;
+    private final HedgingPolicy policy;
+    private final ScheduledThreadPoolExecutor scheduler;
+    private final ThreadPoolExecutor executor;
+    private final ConcurrencyLimiter limiter;
+    private final LatencyHistogram latency = new LatencyHistogram();
+    private final LongAdder hedgedRequests = new LongAdder();
+    private final LongAdder hedgeWins = new LongAdder();
+    private final LongAdder skippedHedges = new LongAdder();
+
+    public HedgingStubClient(LoadBalancingStubClient delegate, HedgingPolicy policy) {
+        this(delegate, policy, DEFAULT_MAX_CONCURRENT_HEDGES);
+    }
+
+    /**
+     * @param maxConcurrentHedges the maximum number of hedged requests in flight
+     */
+    public HedgingStubClient(LoadBalancingStubClient delegate, HedgingPolicy policy, int maxConcurrentHedges) {
+        this(delegate, policy, maxConcurrentHedges, null);
+    }
+
+    /**
+     * @param maxConcurrentHedges the maximum number of hedged requests in flight
+     * @param limiter the limiter hedged requests need a permit of, null if not limited
+     */
+    public HedgingStubClient(LoadBalancingStubClient delegate, HedgingPolicy policy, int maxConcurrentHedges, ConcurrencyLimiter limiter) {
+        this.delegate = delegate;
+        this.limiter = limiter;
+        this.policy = policy;
+        this.scheduler = new ScheduledThreadPoolExecutor(1, daemonThreads("stub-hedging-timer-"));
+        this.scheduler.setRemoveOnCancelPolicy(true);
+        this.executor = new ThreadPoolExecutor(0, maxConcurrentHedges
+            , 60, TimeUnit.SECONDS
+            , new SynchronousQueue<Runnable>()
+            , daemonThreads("stub-hedging-"));
+    }
+
+    private static ThreadFactory daemonThreads(String namePrefix) {
+        final AtomicInteger threadCount = new AtomicInteger();
+        return r -> {
+            Thread t = new Thread(r, namePrefix + threadCount.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        };
+    }
+
+    /**
+     * @return the number of requests for which a hedged request was sent
+     */
+    public long getHedgedRequests() {
+        return hedgedRequests.sum();
+    }
+
+    /**
+     * @return the number of hedged requests that returned before the original request
+     */
+    public long getHedgeWins() {
+        return hedgeWins.sum();
+    }
+
+    /**
+     * @return the number of hedged requests not sent because {@code maxConcurrentHedges} were in flight or the
+     * concurrency limit was reached
+     */
+    public long getSkippedHedges() {
+        return skippedHedges.sum();
+    }
+
+    /**
+     * @return the observed latencies of single attempts, the base for the hedging delay
+     */
+    public LatencyHistogram getLatency() {
+        return latency;
+    }
+
+    @Override
+    public StubResponse execute(StubRequest request) throws IOException {
+        if (!request.isIdempotent()) {
+            return delegate.execute(request);
+        }
+
+        final StubEndpoint primaryEndpoint = delegate.selectEndpoint(request.getFingerprint(), null);
+        final StubRequest primary = request.newAttempt();
+        final Hedge hedge = new Hedge(request, primaryEndpoint, primary);
+        hedge.timer = scheduler.schedule(hedge, policy.getDelayMicros(latency), TimeUnit.MICROSECONDS);
+
+        final StubResponse response;
+        try {
+            response = send(primaryEndpoint, primary);
+        } catch (IOException e) {
+            if (hedge.cancel()) {
+                if (Thread.currentThread().isInterrupted()) {
+                    throw e;
+                }
+                // primary failed before hedging, fail over like the load balancer does
+                final StubEndpoint failoverEndpoint = delegate.selectEndpoint(request.getFingerprint(), primaryEndpoint);
+                if (failoverEndpoint == null) {
+                    throw e;
+                }
+                return delegate.send(failoverEndpoint, request.newAttempt());
+            }
+            // the hedge is in flight, it may even have aborted the primary
+            return hedge.await(e);
+        } catch (RuntimeException | Error e) {
+            hedge.cancel();
+            hedge.attempt.abort();
+            throw e;
+        }
+
+        if (hedge.cancel() || hedge.result.complete(response) || hedge.result.isCompletedExceptionally()) {
+            // the hedge wasn't sent, is still in flight or failed
+            hedge.attempt.abort();
+            return response;
+        }
+        // the hedge won
+        return hedge.result.getNow(response);
+    }
+
+    private StubResponse send(StubEndpoint endpoint, StubRequest attempt) throws IOException {
+        final long start = System.nanoTime();
+        final StubResponse response = delegate.send(endpoint, attempt);
+        latency.recordNanos(System.nanoTime() - start);
+        return response;
+    }
+
+    /**
+     * The hedged attempt of a request, scheduled after the hedging delay and raced against the primary attempt.
+     */
+    private final class Hedge implements Runnable {
+        private static final int PENDING = 0;
+        private static final int STARTED = 1;
+        private static final int CANCELLED = 2;
+
+        final StubRequest attempt;
+        final CompletableFuture<StubResponse> result = new CompletableFuture<>();
+        private final StubRequest request;
+        private final StubEndpoint primaryEndpoint;
+        private final StubRequest primary;
+        private final AtomicInteger state = new AtomicInteger(PENDING);
+        volatile ScheduledFuture<?> timer;
+
+        Hedge(StubRequest request, StubEndpoint primaryEndpoint, StubRequest primary) {
+            this.request = request;
+            this.primaryEndpoint = primaryEndpoint;
+            this.primary = primary;
+            this.attempt = request.newAttempt();
+        }
+
+        /**
+         * Runs on the timer thread once the hedging delay elapsed.
+         */
+        @Override
+        public void run() {
+            if (!state.compareAndSet(PENDING, STARTED)) {
+                return;
+            }
+            try {
+                executor.execute(this::sendHedge);
+            } catch (RejectedExecutionException e) {
+                skippedHedges.increment();
+                result.completeExceptionally(e);
+            }
+        }
+
+        private void sendHedge() {
+            if (limiter != null && !limiter.tryAcquire()) {
+                skippedHedges.increment();
+                result.completeExceptionally(new IOException("concurrency limit reached"));
+                return;
+            }
+            hedgedRequests.increment();
+            StubEndpoint hedgeEndpoint = delegate.selectEndpoint(request.getFingerprint(), primaryEndpoint);
+            if (hedgeEndpoint == null) {
+                hedgeEndpoint = primaryEndpoint;
+            }
+            final long start = System.nanoTime();
+            boolean failed = true;
+            try {
+                final StubResponse response = send(hedgeEndpoint, attempt);
+                failed = response.getStatus() == 429;
+                if (result.complete(response)) {
+                    hedgeWins.increment();
+                    primary.abort();
+                }
+            } catch (IOException | RuntimeException e) {
+                // losing the race is no overload signal
+                failed = !attempt.isAborted();
+                result.completeExceptionally(e);
+            } finally {
+                if (limiter != null) {
+                    limiter.release(start, failed);
+                }
+            }
+        }
+
+        /**
+         * @return true, if the hedge was cancelled before being started
+         */
+        boolean cancel() {
+            if (state.compareAndSet(PENDING, CANCELLED)) {
+                final ScheduledFuture<?> t = timer;
+                if (t != null) {
+                    t.cancel(false);
+                }
+                return true;
+            }
+            return state.get() == CANCELLED;
+        }
+
+        /**
+         * Wait for the hedge after the primary failed with the given exception.
+         */
+        StubResponse await(IOException primaryFailure) throws IOException {
+            try {
+                return result.get();
+            } catch (ExecutionException e) {
+                // both attempts failed, or the hedge was never sent
+                throw primaryFailure;
+            } catch (InterruptedException e) {
+                attempt.abort();
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("interrupted while waiting for stub response");
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        scheduler.shutdownNow();
+        executor.shutdownNow();
+        delegate.close();
+    }
+}
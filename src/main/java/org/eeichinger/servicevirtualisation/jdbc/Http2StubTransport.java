@@ -0,0 +1,112 @@
+package org.eeichinger.servicevirtualisation.jdbc;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeMap;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.apache.hc.client5.http.async.methods.SimpleHttpRequest;
+import org.apache.hc.client5.http.async.methods.SimpleHttpResponse;
+import org.apache.hc.client5.http.impl.async.CloseableHttpAsyncClient;
+import org.apache.hc.client5.http.impl.async.HttpAsyncClients;
+import org.apache.hc.core5.http.ContentType;
+import org.apache.hc.core5.http.Header;
+import org.apache.hc.core5.http2.config.H2Config;
+
+/**
+ * HTTP/2 cleartext (h2c with prior knowledge) {@link StubTransport} based on Apache HttpClient 5. All in-flight
+ * requests to an endpoint are multiplexed over a single connection, so a large number of concurrently executing
+ * statements doesn't require a socket each.
+ */
+public class Http2StubTransport implements StubTransport {
+
+    private static final ContentType TEXT_PLAIN_UTF8 = ContentType.create("text/plain", StandardCharsets.UTF_8);
+
+    private final CloseableHttpAsyncClient httpClient;
+    private final StubCompression compression;
+    private final int timeoutMillis;
+    private final ConcurrentMap<String, URI> endpointUris = new ConcurrentHashMap<>();
+
+    public Http2StubTransport() {
+        this(StubCompression.DEFAULT);
+    }
+
+    public Http2StubTransport(StubCompression compression) {
+        this(compression, 0);
+    }
+
+    /**
+     * @param timeoutMillis the maximum time to wait for a response, 0 to wait indefinitely
+     */
+    public Http2StubTransport(StubCompression compression, int timeoutMillis) {
+        this.compression = compression;
+        this.timeoutMillis = timeoutMillis;
+        this.httpClient = HttpAsyncClients.customHttp2()
+            .setH2Config(H2Config.custom().setPushEnabled(false).build())
+            .build();
+        this.httpClient.start();
+    }
+
+    @Override
+    public StubResponse send(String endpointUrl, StubRequest request) throws IOException {
+        SimpleHttpRequest httpPost = new SimpleHttpRequest("POST", endpointUris.computeIfAbsent(endpointUrl, URI::create));
+        for (Map.Entry<Integer, Object> e : request.getParameterValues().entrySet()) {
+            httpPost.addHeader(StubRequest.getParameterHeaderName(e.getKey()), Objects.toString(e.getValue()));
+        }
+        for (Map.Entry<String, String> e : request.getHeaders().entrySet()) {
+            httpPost.addHeader(e.getKey(), e.getValue());
+        }
+        if (compression.getAcceptEncoding() != null) {
+            httpPost.addHeader("Accept-Encoding", compression.getAcceptEncoding());
+        }
+        final EncodedSql sql = request.getEncodedSql();
+        final byte[] requestBody = sql.getUtf8();
+        if (compression.isCompressRequest(requestBody.length)) {
+            httpPost.addHeader("Content-Encoding", StubCompression.GZIP);
+            httpPost.setBody(sql.getGzipped(), TEXT_PLAIN_UTF8);
+        } else {
+            httpPost.setBody(requestBody, TEXT_PLAIN_UTF8);
+        }
+
+        final Future<SimpleHttpResponse> future = httpClient.execute(httpPost, null);
+        request.setAbortCallback(() -> future.cancel(true));
+        try {
+            SimpleHttpResponse response = timeoutMillis > 0 ? future.get(timeoutMillis, TimeUnit.MILLISECONDS) : future.get();
+            Map<String, String> headers = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+            for (Header header : response.getHeaders()) {
+                headers.putIfAbsent(header.getName(), header.getValue());
+            }
+            return new StubResponse(response.getCode(), headers, response.getBodyBytes());
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        } catch (TimeoutException e) {
+            future.cancel(true);
+            throw new SocketTimeoutException("no stub response within " + timeoutMillis + "ms");
+        } catch (CancellationException e) {
+            throw new InterruptedIOException("request aborted");
+        } catch (InterruptedException e) {
+            future.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while waiting for stub response");
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        httpClient.close();
+    }
+}
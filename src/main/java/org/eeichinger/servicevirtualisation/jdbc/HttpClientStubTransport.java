@@ -0,0 +1,123 @@
+package org.eeichinger.servicevirtualisation.jdbc;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentType;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.message.BasicHeader;
+import org.apache.http.util.EntityUtils;
+
+/**
+ * HTTP/1.1 {@link StubTransport} based on Apache HttpClient, reusing connections from a pool shared by all
+ * endpoints.
+ */
+public class HttpClientStubTransport implements StubTransport {
+
+    private static final ContentType TEXT_PLAIN_UTF8 = ContentType.create("text/plain", StandardCharsets.UTF_8);
+
+    private final CloseableHttpClient httpClient;
+    private final StubCompression compression;
+    private final Header acceptEncoding;
+    private final ConcurrentMap<String, URI> endpointUris = new ConcurrentHashMap<>();
+
+    public HttpClientStubTransport(int maxConnectionsPerEndpoint, int maxConnectionsTotal) {
+        this(maxConnectionsPerEndpoint, maxConnectionsTotal, StubCompression.DEFAULT);
+    }
+
+    public HttpClientStubTransport(int maxConnectionsPerEndpoint, int maxConnectionsTotal, StubCompression compression) {
+        this(maxConnectionsPerEndpoint, maxConnectionsTotal, compression, 0);
+    }
+
+    /**
+     * @param timeoutMillis the maximum time to wait for a pooled connection, to connect and for response data,
+     * 0 to wait indefinitely
+     */
+    public HttpClientStubTransport(int maxConnectionsPerEndpoint, int maxConnectionsTotal, StubCompression compression, int timeoutMillis) {
+        PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager();
+        connectionManager.setDefaultMaxPerRoute(maxConnectionsPerEndpoint);
+        connectionManager.setMaxTotal(maxConnectionsTotal);
+        this.httpClient = HttpClients.custom()
+            .setConnectionManager(connectionManager)
+            .setDefaultRequestConfig(RequestConfig.custom()
+                .setConnectionRequestTimeout(timeoutMillis)
+                .setConnectTimeout(timeoutMillis)
+                .setSocketTimeout(timeoutMillis)
+                .build()
+            )
+            .disableCookieManagement()
+            // responses are decompressed while being parsed, see StubResponse#openBody()
+            .disableContentCompression()
+            .build();
+        this.compression = compression;
+        this.acceptEncoding = createAcceptEncodingHeader(compression);
+    }
+
+    public HttpClientStubTransport(CloseableHttpClient httpClient) {
+        this(httpClient, StubCompression.NONE);
+    }
+
+    public HttpClientStubTransport(CloseableHttpClient httpClient, StubCompression compression) {
+        this.httpClient = httpClient;
+        this.compression = compression;
+        this.acceptEncoding = createAcceptEncodingHeader(compression);
+    }
+
+    private static Header createAcceptEncodingHeader(StubCompression compression) {
+        return compression.getAcceptEncoding() != null ? new BasicHeader("Accept-Encoding", compression.getAcceptEncoding()) : null;
+    }
+
+    @Override
+    public StubResponse send(String endpointUrl, StubRequest request) throws IOException {
+        // only the parameter values are encoded per request, everything else is computed once
+        HttpPost httpPost = new HttpPost(endpointUris.computeIfAbsent(endpointUrl, URI::create));
+        for (Map.Entry<Integer, Object> e : request.getParameterValues().entrySet()) {
+            httpPost.addHeader(StubRequest.getParameterHeaderName(e.getKey()), Objects.toString(e.getValue()));
+        }
+        for (Map.Entry<String, String> e : request.getHeaders().entrySet()) {
+            httpPost.addHeader(e.getKey(), e.getValue());
+        }
+        if (acceptEncoding != null) {
+            httpPost.addHeader(acceptEncoding);
+        }
+        final EncodedSql sql = request.getEncodedSql();
+        final byte[] requestBody = sql.getUtf8();
+        if (compression.isCompressRequest(requestBody.length)) {
+            ByteArrayEntity entity = new ByteArrayEntity(sql.getGzipped(), TEXT_PLAIN_UTF8);
+            entity.setContentEncoding(StubCompression.GZIP);
+            httpPost.setEntity(entity);
+        } else {
+            httpPost.setEntity(new ByteArrayEntity(requestBody, TEXT_PLAIN_UTF8));
+        }
+        request.setAbortCallback(httpPost::abort);
+
+        try (CloseableHttpResponse response = httpClient.execute(httpPost)) {
+            Map<String, String> headers = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+            for (Header header : response.getAllHeaders()) {
+                headers.putIfAbsent(header.getName(), header.getValue());
+            }
+            HttpEntity entity = response.getEntity();
+            byte[] body = entity != null ? EntityUtils.toByteArray(entity) : null;
+            return new StubResponse(response.getStatusLine().getStatusCode(), headers, body);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        httpClient.close();
+    }
+}
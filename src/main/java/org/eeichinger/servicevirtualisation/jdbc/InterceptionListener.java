@@ -0,0 +1,57 @@
+package org.eeichinger.servicevirtualisation.jdbc;
+
+/**
+ * Observes the interception of prepared statements, e.g. for tracing or profiling, see
+ * {@link JdbcServiceVirtualizationFactory#addInterceptionListener(InterceptionListener)}. All methods do nothing by
+ * default, so listeners only implement the events they are interested in.
+ * <p>
+ * Listeners are called synchronously on the thread executing the statement and must be thread-safe. Exceptions
+ * thrown by a listener are propagated to the caller. Writes buffered until commit are reported as the single,
+ * combined request sent on commit.
+ */
+public interface InterceptionListener {
+
+    /**
+     * Called before a statement is prepared on the underlying connection.
+     */
+    default void beforePrepare(String sql) {
+    }
+
+    /**
+     * Called before a request is sent to the stub server, including requests for further pages of a
+     * {@link PagedResultSet}.
+     */
+    default void beforeRequest(StubRequest request) {
+    }
+
+    /**
+     * Called once the stub server answered a request.
+     *
+     * @param response the response, its status and {@link StubResponse#getRawBody() body as received}
+     * @param elapsedNanos the time from sending the request until the response was received
+     */
+    default void afterResponse(StubRequest request, StubResponse response, long elapsedNanos) {
+    }
+
+    /**
+     * Called once a successful response has been converted into the statement's result.
+     *
+     * @param result the update count(s) or the result set
+     * @param elapsedNanos the time spent parsing the response
+     */
+    default void afterParse(StubRequest request, Object result, long elapsedNanos) {
+    }
+
+    /**
+     * Called before a statement the stub server didn't answer is executed by the underlying statement.
+     */
+    default void onPassThrough(StubRequest request, StubResponse response) {
+    }
+
+    /**
+     * Called if a request failed, i.e. the stub server could not be reached, answered with an error or its response
+     * could not be parsed.
+     */
+    default void onError(StubRequest request, Throwable error) {
+    }
+}
@@ -3,11 +3,13 @@ package org.eeichinger.servicevirtualisation.jdbc;
 import com.mockrunner.jdbc.CallableStatementResultSetHandler;
 import com.mockrunner.jdbc.PreparedStatementResultSetHandler;
 import com.mockrunner.jdbc.StatementResultSetHandler;
+import com.mockrunner.mock.jdbc.MockCallableStatement;
 import com.mockrunner.mock.jdbc.MockConnection;
 import com.mockrunner.mock.jdbc.MockDataSource;
+import com.mockrunner.mock.jdbc.MockPreparedStatement;
+import com.mockrunner.mock.jdbc.MockResultSet;
 import com.mockrunner.mock.jdbc.MockStatement;
 import com.p6spy.engine.common.ConnectionInformation;
-import com.p6spy.engine.logging.P6LogOptions;
 import com.p6spy.engine.proxy.Delegate;
 import com.p6spy.engine.proxy.GenericInvocationHandler;
 import com.p6spy.engine.proxy.MethodNameMatcher;
@@ -16,83 +18,825 @@ import com.p6spy.engine.spy.P6Factory;
 import com.p6spy.engine.spy.P6LoadableOptions;
 import com.p6spy.engine.spy.option.P6OptionsRepository;
 import lombok.SneakyThrows;
-import org.apache.http.Header;
-import org.apache.http.client.methods.CloseableHttpResponse;
-import org.apache.http.client.methods.HttpPost;
-import org.apache.http.entity.StringEntity;
-import org.apache.http.impl.client.CloseableHttpClient;
-import org.apache.http.impl.client.HttpClients;
-import org.apache.http.util.EntityUtils;
 
 import javax.sql.DataSource;
 
+import java.io.Closeable;
+import java.io.IOException;
 import java.lang.reflect.Field;
 import java.lang.reflect.Method;
+import java.nio.file.Path;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.SQLException;
+import java.sql.Savepoint;
 import java.sql.Statement;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.function.Consumer;
 import java.util.stream.Stream;
 
 /**
  * This is implemented as a {@link P6Factory}, the plan is to integrate it as a P6Module.
+ * <p>
+ * Statements may be answered by several stub servers (see {@link #setTargetUrls(List)}), requests are then
+ * distributed by a {@link LoadBalancingStubClient}. HTTP connections are pooled, so the factory should be
+ * {@link #close() closed} when no longer needed.
+ * <p>
+ * No monitors are held while waiting for the stub server, so the factory may be used from virtual threads without
+ * pinning their carrier threads.
  *
  * @author Erich Eichinger
  * @since 30/10/2015
  */
-public class JdbcServiceVirtualizationFactory implements P6Factory {
+public class JdbcServiceVirtualizationFactory implements P6Factory, Closeable {
 
-    private String targetUrl;
+    private List<String> targetUrls = Collections.emptyList();
+    private int maxConnectionsPerEndpoint = 100;
+    private int timeoutMillis;
+    private int endpointFailureThreshold = 3;
+    private long endpointEjectionMillis = 5000;
+    private HedgingPolicy hedgingPolicy;
+    private ShapingPolicy shapingPolicy;
+    private boolean requestCoalescing;
+    private ConcurrencyLimiter concurrencyLimiter;
+    private final LongAdder coalescedRequests = new LongAdder();
+    private StubTransportProtocol transportProtocol = StubTransportProtocol.HTTP_1_1;
+    private StubCompression compression = StubCompression.DEFAULT;
+    private boolean writeBuffering;
+    private int maxTrackedStatements = 1000;
+    private volatile ResultSetTemplateCache resultSetTemplateCache;
+    private volatile PreparedStatementCache preparedStatementCache;
+    private int bufferedUpdateCount = 1;
+    private volatile int lobSpoolThreshold = StreamingLob.DEFAULT_SPOOL_THRESHOLD;
+    private volatile int parallelParseThreshold = MockResultSetHelper.DEFAULT_PARALLEL_PARSE_THRESHOLD;
+    private StubMappings stubMappings;
+    private volatile ShadowRunner shadowRunner;
+    private final ConcurrentMap<String, ShadowStatistics> shadowStatistics = new ConcurrentHashMap<>();
+    private volatile PassThroughProfiler passThroughProfiler;
+
+    private static final InterceptionListener[] NO_LISTENERS = new InterceptionListener[0];
+    private final Lock listenersLock = new ReentrantLock();
+    // copy-on-write, so the hot path only reads the array's length if there are no listeners
+    private volatile InterceptionListener[] listeners = NO_LISTENERS;
+
+    private volatile boolean enabled = true;
+    private volatile boolean scopedActivation;
+    private final ThreadLocal<VirtualizationScope> activeScope = new ThreadLocal<>();
+
+    private final Lock stubClientLock = new ReentrantLock();
+    private volatile StubClient stubClient;
+    private volatile List<StubEndpoint> stubEndpoints = Collections.emptyList();
 
     public String getTargetUrl() {
-        return targetUrl;
+        return targetUrls.isEmpty() ? null : targetUrls.get(0);
     }
 
     public void setTargetUrl(String targetUrl) {
-        this.targetUrl = targetUrl;
+        setTargetUrls(targetUrl != null ? Collections.singletonList(targetUrl) : Collections.<String>emptyList());
+    }
+
+    public List<String> getTargetUrls() {
+        return targetUrls;
+    }
+
+    /**
+     * Set the stub server endpoints. Statements are distributed across endpoints by consistent hashing on
+     * their {@link SqlFingerprint}.
+     */
+    public void setTargetUrls(List<String> targetUrls) {
+        this.targetUrls = Collections.unmodifiableList(new ArrayList<>(targetUrls));
+        resetStubClient();
+    }
+
+    public int getMaxConnectionsPerEndpoint() {
+        return maxConnectionsPerEndpoint;
+    }
+
+    /**
+     * Set the maximum number of pooled HTTP connections per stub server endpoint (default 100).
+     */
+    public void setMaxConnectionsPerEndpoint(int maxConnectionsPerEndpoint) {
+        this.maxConnectionsPerEndpoint = maxConnectionsPerEndpoint;
+        resetStubClient();
+    }
+
+    public int getTimeoutMillis() {
+        return timeoutMillis;
+    }
+
+    /**
+     * Set the maximum time to wait for the stub server to connect and respond. A timeout counts as a failure of
+     * the endpoint. Defaults to 0, i.e. wait indefinitely.
+     */
+    public void setTimeoutMillis(int timeoutMillis) {
+        this.timeoutMillis = timeoutMillis;
+        resetStubClient();
+    }
+
+    public StubTransportProtocol getTransportProtocol() {
+        return transportProtocol;
+    }
+
+    /**
+     * Set the protocol used to talk to the stub server(s), defaults to pooled HTTP/1.1.
+     * Use {@link StubTransportProtocol#H2C} to multiplex all in-flight requests over a few HTTP/2 connections, or
+     * {@link StubTransportProtocol#JDK_HTTP_1_1} when statements are executed from virtual threads.
+     */
+    public void setTransportProtocol(StubTransportProtocol transportProtocol) {
+        this.transportProtocol = transportProtocol;
+        resetStubClient();
+    }
+
+    public StubCompression getCompression() {
+        return compression;
+    }
+
+    /**
+     * Configure HTTP compression, defaults to {@link StubCompression#DEFAULT} (accept gzip/deflate encoded
+     * responses, send uncompressed requests). Use {@link StubCompression#NONE} to save CPU if the stub server is
+     * close by, or a request compression threshold if statements are large and the network is slow.
+     */
+    public void setCompression(StubCompression compression) {
+        this.compression = compression != null ? compression : StubCompression.NONE;
+        resetStubClient();
+    }
+
+    public int getEndpointFailureThreshold() {
+        return endpointFailureThreshold;
+    }
+
+    /**
+     * Set the number of consecutive failures (I/O errors or 5xx responses) after which an endpoint is
+     * temporarily ejected (default 3).
+     */
+    public void setEndpointFailureThreshold(int endpointFailureThreshold) {
+        this.endpointFailureThreshold = endpointFailureThreshold;
+        resetStubClient();
+    }
+
+    public long getEndpointEjectionMillis() {
+        return endpointEjectionMillis;
+    }
+
+    /**
+     * Set for how long an ejected endpoint is excluded from routing (default 5000ms).
+     */
+    public void setEndpointEjectionMillis(long endpointEjectionMillis) {
+        this.endpointEjectionMillis = endpointEjectionMillis;
+        resetStubClient();
+    }
+
+    public HedgingPolicy getHedgingPolicy() {
+        return hedgingPolicy;
+    }
+
+    /**
+     * Enable hedging of queries ({@link PreparedStatement#executeQuery()}): if the stub server didn't answer
+     * within a delay derived from the observed latencies, a duplicate request is sent to another endpoint and
+     * the first response wins. Disabled by default (null).
+     */
+    public void setHedgingPolicy(HedgingPolicy hedgingPolicy) {
+        this.hedgingPolicy = hedgingPolicy;
+        resetStubClient();
+    }
+
+    public ShapingPolicy getShapingPolicy() {
+        return shapingPolicy;
+    }
+
+    /**
+     * Emulate realistic latencies and throughput limits for virtualized statements (disabled by default).
+     */
+    public void setShapingPolicy(ShapingPolicy shapingPolicy) {
+        this.shapingPolicy = shapingPolicy;
+        resetStubClient();
+    }
+
+    public boolean isRequestCoalescing() {
+        return requestCoalescing;
+    }
+
+    /**
+     * Let concurrent identical queries share a single in-flight request to the stub server (disabled by default),
+     * see {@link CoalescingStubClient}. Each caller still gets its own result set.
+     */
+    public void setRequestCoalescing(boolean requestCoalescing) {
+        this.requestCoalescing = requestCoalescing;
+        resetStubClient();
+    }
+
+    /**
+     * @return the number of queries answered by another caller's identical in-flight request
+     */
+    public long getCoalescedRequestCount() {
+        return coalescedRequests.sum();
+    }
+
+    public ConcurrencyLimitPolicy getConcurrencyLimitPolicy() {
+        final ConcurrencyLimiter limiter = concurrencyLimiter;
+        return limiter != null ? limiter.getPolicy() : null;
+    }
+
+    /**
+     * Bound the number of requests in flight to the stub server(s) (unlimited by default), so load tests don't
+     * overwhelm the stub server. Queued requests wait at most the {@link #setTimeoutMillis(int) timeout}.
+     *
+     * @param concurrencyLimitPolicy the limit, null for unlimited
+     */
+    public void setConcurrencyLimitPolicy(ConcurrencyLimitPolicy concurrencyLimitPolicy) {
+        this.concurrencyLimiter = concurrencyLimitPolicy != null ? new ConcurrencyLimiter(concurrencyLimitPolicy) : null;
+        resetStubClient();
+    }
+
+    /**
+     * @return the current limit, requests in flight and queue vs service times, null if unlimited
+     */
+    public ConcurrencyLimiter getConcurrencyLimiter() {
+        return concurrencyLimiter;
+    }
+
+    public int getMaxTrackedStatements() {
+        return maxTrackedStatements;
+    }
+
+    /**
+     * Set the maximum number of statements the connections of a {@link #createMockDataSource() mock DataSource}
+     * keep track of (default 1000), e.g. for verification using Mockrunner's result set handlers. Closed statements
+     * are released first. Use 0 to not track any statements, -1 to track all statements (which grows the heap
+     * without bound in long-running tests).
+     */
+    public void setMaxTrackedStatements(int maxTrackedStatements) {
+        this.maxTrackedStatements = maxTrackedStatements;
+    }
+
+    public int getResultSetCacheSize() {
+        final ResultSetTemplateCache cache = resultSetTemplateCache;
+        return cache != null ? cache.getMaxEntries() : 0;
+    }
+
+    /**
+     * Set the maximum number of parsed result sets cached by their response body, see
+     * {@link ResultSetTemplateCache}. Default is 0, i.e. every response is parsed.
+     */
+    public void setResultSetCacheSize(int resultSetCacheSize) {
+        this.resultSetTemplateCache = resultSetCacheSize > 0 ? new ResultSetTemplateCache(resultSetCacheSize, lobSpoolThreshold, parallelParseThreshold) : null;
+    }
+
+    public int getLobSpoolThreshold() {
+        return lobSpoolThreshold;
+    }
+
+    /**
+     * Set the size of base64 encoded large objects in characters above which they are decoded into a temporary file
+     * while parsing the response (default 1MiB), see {@link StreamingLob}. Smaller ones are kept in memory. Use
+     * -1 to never spool. Clears the result set cache.
+     */
+    public void setLobSpoolThreshold(int lobSpoolThreshold) {
+        this.lobSpoolThreshold = lobSpoolThreshold;
+        setResultSetCacheSize(getResultSetCacheSize());
+    }
+
+    public int getParallelParseThreshold() {
+        return parallelParseThreshold;
+    }
+
+    /**
+     * Set the size of response bodies in bytes from which on their result sets are split into chunks of rows parsed
+     * in parallel (default 4MiB), see
+     * {@link MockResultSetHelper#parseResultSetFromSybaseXmlString(String, String, int, int)}. Smaller bodies are
+     * parsed on the calling thread. Use -1 to never parse in parallel. Clears the result set cache.
+     */
+    public void setParallelParseThreshold(int parallelParseThreshold) {
+        this.parallelParseThreshold = parallelParseThreshold;
+        setResultSetCacheSize(getResultSetCacheSize());
+    }
+
+    /**
+     * @return the result set cache, giving access to its hit and miss counts. Null if disabled.
+     */
+    public ResultSetTemplateCache getResultSetTemplateCache() {
+        return resultSetTemplateCache;
+    }
+
+    public int getPreparedStatementCacheSize() {
+        final PreparedStatementCache cache = preparedStatementCache;
+        return cache != null ? cache.getMaxEntries() : 0;
+    }
+
+    /**
+     * Cache up to the given number of prepared statement proxies and their per-SQL state, see
+     * {@link PreparedStatementCache}. Connections of {@link #createMockDataSource() mock DataSources} created
+     * afterwards additionally keep up to as many closed statements for reuse. For spied DataSources, proxies are
+     * only reused if the connection pool caches prepared statements. Disabled by default (0).
+     */
+    public void setPreparedStatementCacheSize(int preparedStatementCacheSize) {
+        this.preparedStatementCache = preparedStatementCacheSize > 0 ? new PreparedStatementCache(preparedStatementCacheSize) : null;
+    }
+
+    /**
+     * @return the prepared statement cache, giving access to its hit and miss counts. Null if disabled.
+     */
+    public PreparedStatementCache getPreparedStatementCache() {
+        return preparedStatementCache;
+    }
+
+    public List<InterceptionListener> getInterceptionListeners() {
+        return Collections.unmodifiableList(Arrays.asList(listeners));
+    }
+
+    /**
+     * Replace all registered listeners, see {@link #addInterceptionListener(InterceptionListener)}.
+     */
+    public void setInterceptionListeners(List<InterceptionListener> interceptionListeners) {
+        listenersLock.lock();
+        try {
+            this.listeners = interceptionListeners.isEmpty() ? NO_LISTENERS : interceptionListeners.toArray(new InterceptionListener[0]);
+        } finally {
+            listenersLock.unlock();
+        }
+    }
+
+    /**
+     * Register a listener notified about each interception, e.g. for tracing or profiling. Listeners are called in
+     * the order they were registered. Without any listeners, intercepting a statement neither allocates nor takes
+     * timings on their behalf.
+     */
+    public void addInterceptionListener(InterceptionListener listener) {
+        listenersLock.lock();
+        try {
+            final InterceptionListener[] current = listeners;
+            final InterceptionListener[] updated = Arrays.copyOf(current, current.length + 1);
+            updated[current.length] = listener;
+            listeners = updated;
+        } finally {
+            listenersLock.unlock();
+        }
+    }
+
+    public void removeInterceptionListener(InterceptionListener listener) {
+        listenersLock.lock();
+        try {
+            final List<InterceptionListener> remaining = new ArrayList<>(Arrays.asList(listeners));
+            remaining.remove(listener);
+            listeners = remaining.isEmpty() ? NO_LISTENERS : remaining.toArray(new InterceptionListener[0]);
+        } finally {
+            listenersLock.unlock();
+        }
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Globally switch interception of spied DataSources on or off at runtime (default on). While switched off,
+     * spied DataSources hand out their connections as they are and statements of previously obtained connections are
+     * passed through. Mock DataSources are always virtualized, as there is no database to pass statements through to.
+     */
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    public boolean isScopedActivation() {
+        return scopedActivation;
+    }
+
+    /**
+     * Only intercept spied DataSources within a {@link #activate() scope}, leaving all other traffic alone. Disabled
+     * by default, i.e. all statements are intercepted.
+     */
+    public void setScopedActivation(boolean scopedActivation) {
+        this.scopedActivation = scopedActivation;
+    }
+
+    /**
+     * Activate interception for the current thread until the returned scope is closed, see
+     * {@link #setScopedActivation(boolean)}.
+     */
+    public VirtualizationScope activate() {
+        return new VirtualizationScope(this, activeScope);
+    }
+
+    /**
+     * @return true, if statements of spied DataSources executed by the current thread are intercepted
+     */
+    public boolean isActive() {
+        return enabled && (!scopedActivation || activeScope.get() != null);
+    }
+
+    /**
+     * @return true, if the given (underlying) DataSource, connection or statement must be passed through, i.e. it
+     * doesn't belong to a mock DataSource and interception is not active
+     */
+    private boolean isPassThrough(Object underlying) {
+        return !isActive()
+            && !(underlying instanceof MockStatement)
+            && !(underlying instanceof MockConnection)
+            && !(underlying instanceof MockDataSource);
+    }
+
+    public boolean isWriteBuffering() {
+        return writeBuffering;
+    }
+
+    /**
+     * Buffer intercepted {@link PreparedStatement#executeUpdate()} calls while a connection is not in auto-commit
+     * mode, and send them to the stub server as a single request on {@link Connection#commit()} (see
+     * {@link TransactionWriteBuffer}). Buffered writes are discarded on {@link Connection#rollback()}. Disabled
+     * by default.
+     * <p>
+     * {@link PreparedStatement#execute()} and {@link PreparedStatement#executeBatch()} aren't buffered. They flush
+     * the writes buffered so far first, so the stub server sees all writes in order, but rolling back discards only
+     * the writes buffered since.
+     * <p>
+     * Since the stub server only sees buffered writes on commit, it can't have them passed through to the real
+     * database. Only enable write buffering if all writes within transactions are answered by the stub server.
+     */
+    public void setWriteBuffering(boolean writeBuffering) {
+        this.writeBuffering = writeBuffering;
+    }
+
+    public int getBufferedUpdateCount() {
+        return bufferedUpdateCount;
+    }
+
+    /**
+     * Set the update count returned by buffered writes (default 1).
+     */
+    public void setBufferedUpdateCount(int bufferedUpdateCount) {
+        this.bufferedUpdateCount = bufferedUpdateCount;
+    }
+
+    public StubMappings getStubMappings() {
+        return stubMappings;
+    }
+
+    /**
+     * Answer statements matching the given mappings from memory (default none), see {@link StubMappings}.
+     */
+    public void setStubMappings(StubMappings stubMappings) {
+        this.stubMappings = stubMappings;
+        resetStubClient();
+    }
+
+    /**
+     * Fetch all stub mappings from the (first) stub server in a single request and answer matching statements from
+     * memory from now on. Requires the stub server to be a WireMock server.
+     *
+     * @return the loaded mappings, giving access to their hit and miss counts
+     */
+    public StubMappings preloadStubMappings() throws IOException {
+        if (targetUrls.isEmpty()) {
+            throw new IllegalStateException("no targetUrl configured");
+        }
+        final StubMappings mappings = StubMappings.fetch(targetUrls.get(0), timeoutMillis, lobSpoolThreshold);
+        setStubMappings(mappings);
+        return mappings;
+    }
+
+    /**
+     * Read the stub mappings from a WireMock root directory (containing the "mappings" and "__files" directories)
+     * and answer matching statements from memory from now on.
+     *
+     * @return the loaded mappings, giving access to their hit and miss counts
+     */
+    public StubMappings preloadStubMappings(Path rootDirectory) throws IOException {
+        if (targetUrls.isEmpty()) {
+            throw new IllegalStateException("no targetUrl configured");
+        }
+        final StubMappings mappings = StubMappings.load(rootDirectory, targetUrls.get(0), lobSpoolThreshold);
+        setStubMappings(mappings);
+        return mappings;
+    }
+
+    public ShadowPolicy getShadowPolicy() {
+        final ShadowRunner runner = shadowRunner;
+        return runner != null ? runner.getPolicy() : null;
+    }
+
+    /**
+     * Execute queries of spied DataSources against both the stub server and the database concurrently, returning the
+     * result determined by the policy (disabled by default). The results are compared and the differences and paired
+     * latencies recorded per fingerprint, see {@link #getShadowStatistics()}. Results are read into memory to compare
+     * them. Updates and statements of mock DataSources are executed as usual.
+     *
+     * @param shadowPolicy the result to return, null to disable shadowing
+     */
+    public void setShadowPolicy(ShadowPolicy shadowPolicy) {
+        final ShadowRunner previous = shadowRunner;
+        shadowRunner = shadowPolicy != null ? new ShadowRunner(this, shadowPolicy, shadowStatistics) : null;
+        if (previous != null) {
+            previous.close();
+        }
+    }
+
+    /**
+     * @return the shadow mode's statistics by fingerprint
+     */
+    public Map<String, ShadowStatistics> getShadowStatistics() {
+        return Collections.unmodifiableMap(shadowStatistics);
+    }
+
+    public void resetShadowStatistics() {
+        shadowStatistics.clear();
+    }
+
+    /**
+     * @return the currently configured endpoints, giving access to their health state and {@link EndpointMetrics}
+     */
+    public List<StubEndpoint> getStubEndpoints() {
+        getStubClient();
+        return stubEndpoints;
+    }
+
+    /**
+     * Release pooled connections.
+     */
+    @Override
+    public void close() throws IOException {
+        resetStubClient();
+    }
+
+    protected StubClient getStubClient() {
+        StubClient client = stubClient;
+        if (client == null) {
+            stubClientLock.lock();
+            try {
+                client = stubClient;
+                if (client == null) {
+                    if (targetUrls.isEmpty()) {
+                        throw new IllegalStateException("no targetUrl configured");
+                    }
+                    List<StubEndpoint> endpoints = new ArrayList<>();
+                    for (String url : targetUrls) {
+                        endpoints.add(new StubEndpoint(url, endpointFailureThreshold, endpointEjectionMillis, TimeUnit.MILLISECONDS));
+                    }
+                    client = createStubClient(createStubTransport(), endpoints);
+                    stubEndpoints = Collections.unmodifiableList(endpoints);
+                    stubClient = client;
+                }
+            } finally {
+                stubClientLock.unlock();
+            }
+        }
+        return client;
+    }
+
+    @SneakyThrows
+    protected void resetStubClient() {
+        StubClient client;
+        stubClientLock.lock();
+        try {
+            client = stubClient;
+            stubClient = null;
+        } finally {
+            stubClientLock.unlock();
+        }
+        if (client != null) {
+            client.close();
+        }
+    }
+
+    protected StubTransport createStubTransport() {
+        if (transportProtocol == StubTransportProtocol.H2C) {
+            return new Http2StubTransport(getCompression(), timeoutMillis);
+        }
+        if (transportProtocol == StubTransportProtocol.JDK_HTTP_1_1) {
+            return new UrlConnectionStubTransport(maxConnectionsPerEndpoint, getCompression(), timeoutMillis);
+        }
+        return new HttpClientStubTransport(maxConnectionsPerEndpoint, maxConnectionsPerEndpoint * Math.max(1, targetUrls.size()), getCompression(), timeoutMillis);
+    }
+
+    protected StubClient createStubClient(StubTransport transport, List<StubEndpoint> endpoints) {
+        LoadBalancingStubClient loadBalancer = new LoadBalancingStubClient(transport, endpoints);
+        StubClient client = loadBalancer;
+        if (hedgingPolicy != null) {
+            // hedged attempts need a permit of their own
+            client = new HedgingStubClient(loadBalancer, hedgingPolicy, HedgingStubClient.DEFAULT_MAX_CONCURRENT_HEDGES, concurrencyLimiter);
+        }
+        if (concurrencyLimiter != null) {
+            client = new ConcurrencyLimitingStubClient(client, concurrencyLimiter, timeoutMillis);
+        }
+        // outside of hedging, as a hedged request's attempts are identical, and of the limit, as coalesced
+        // requests don't add load
+        if (requestCoalescing) {
+            client = new CoalescingStubClient(client, coalescedRequests);
+        }
+        // preloaded responses neither need hedging nor bypass shaping
+        if (stubMappings != null) {
+            client = new PreloadingStubClient(client, stubMappings);
+        }
+        // outermost, emulated latencies must not affect hedging decisions
+        if (shapingPolicy != null) {
+            client = new ShapingStubClient(client, shapingPolicy);
+        }
+        return client;
     }
 
     public DataSource spyOnDataSource(DataSource ds) {
         return interceptDataSource(ds);
     }
 
+    /**
+     * Create a DataSource answering all statements from the stub server(s). Each {@link DataSource#getConnection()}
+     * returns an independent connection, so concurrent callers don't contend on a shared connection.
+     */
     public DataSource createMockDataSource() {
-        MockDataSource dataSource = new MockDataSource() {{
-            setupConnection(new StubbingMockConnection());
-        }};
-        return interceptDataSource(dataSource);
+        return interceptDataSource(new StubbingMockDataSource(maxTrackedStatements, getPreparedStatementCacheSize()));
+    }
+
+    /**
+     * Hands out a separate {@link StubbingMockConnection} per {@link #getConnection()}. Closed connections are reset
+     * and kept for reuse, up to a bounded number of idle connections. Callers get a {@link CheckoutHandle} per
+     * checkout, so closing a connection twice doesn't reset it while another caller uses it.
+     */
+    private static class StubbingMockDataSource extends MockDataSource {
+        private static final int MAX_IDLE_CONNECTIONS = 2 * Runtime.getRuntime().availableProcessors();
+
+        private final int maxTrackedStatements;
+        private final int maxIdleStatements;
+        private final Queue<StubbingMockConnection> idleConnections = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger idleCount = new AtomicInteger();
+
+        StubbingMockDataSource(int maxTrackedStatements, int maxIdleStatements) {
+            this.maxTrackedStatements = maxTrackedStatements;
+            this.maxIdleStatements = maxIdleStatements;
+        }
+
+        @Override
+        public Connection getConnection() {
+            StubbingMockConnection connection = idleConnections.poll();
+            if (connection == null) {
+                connection = new StubbingMockConnection(maxTrackedStatements, maxIdleStatements, this::release);
+            } else {
+                idleCount.decrementAndGet();
+                connection.reopen();
+            }
+            return connection;
+        }
+
+        @Override
+        public Connection getConnection(String username, String password) {
+            return getConnection();
+        }
+
+        private void release(StubbingMockConnection connection) {
+            if (idleCount.incrementAndGet() <= MAX_IDLE_CONNECTIONS) {
+                idleConnections.offer(connection);
+            } else {
+                idleCount.decrementAndGet();
+            }
+        }
     }
 
     private static class StubbingMockConnection extends MockConnection {
-        public StubbingMockConnection() {
-            this(new SynchronizedStatementResultSetHandler()
-                , new PreparedStatementResultSetHandler() {
-                    @Override
-                    public SQLException getSQLException(String sql) {
-                        throw new AssertionError("unmatched sql statement: '" + sql + "'");
-                    }
-                }
-                , new CallableStatementResultSetHandler() {
-                    @Override
-                    public SQLException getSQLException(String sql) {
-                        throw new AssertionError("unmatched sql statement: '" + sql + "'");
-                    }
-                }
+        private final Consumer<StubbingMockConnection> onClose;
+        private final int maxIdleStatements;
+        private final Lock idleStatementsLock = new ReentrantLock();
+        private final LinkedHashMap<String, ReusableMockPreparedStatement> idleStatements;
+        private volatile boolean released;
+        /**
+         * Incremented whenever closing the connection unregisters all statements.
+         */
+        private volatile int generation;
+
+        public StubbingMockConnection(int maxTrackedStatements, int maxIdleStatements, Consumer<StubbingMockConnection> onClose) {
+            this(new SynchronizedStatementResultSetHandler(maxTrackedStatements)
+                , new SynchronizedPreparedStatementResultSetHandler(maxTrackedStatements)
+                , new SynchronizedCallableStatementResultSetHandler(maxTrackedStatements)
+                , maxIdleStatements
+                , onClose
             );
         }
 
-        public StubbingMockConnection(StatementResultSetHandler statementHandler, PreparedStatementResultSetHandler preparedStatementHandler, CallableStatementResultSetHandler callableStatementHandler) {
+        @SneakyThrows
+        public StubbingMockConnection(StatementResultSetHandler statementHandler, PreparedStatementResultSetHandler preparedStatementHandler, CallableStatementResultSetHandler callableStatementHandler, int maxIdleStatements, Consumer<StubbingMockConnection> onClose) {
             super(synchronizeMembers(statementHandler), synchronizeMembers(preparedStatementHandler), synchronizeMembers(callableStatementHandler));
+            this.onClose = onClose;
+            this.maxIdleStatements = maxIdleStatements;
+            this.idleStatements = new LinkedHashMap<String, ReusableMockPreparedStatement>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, ReusableMockPreparedStatement> eldest) {
+                    return size() > StubbingMockConnection.this.maxIdleStatements;
+                }
+            };
+            // like any JDBC connection, start in auto-commit mode
+            setAutoCommit(true);
+        }
+
+        /**
+         * Reuse a closed statement for the same SQL if available, like a pool's statement cache.
+         */
+        @Override
+        public PreparedStatement prepareStatement(String sql) throws SQLException {
+            if (maxIdleStatements <= 0) {
+                return super.prepareStatement(sql);
+            }
+            ReusableMockPreparedStatement statement;
+            idleStatementsLock.lock();
+            try {
+                statement = idleStatements.remove(sql);
+            } finally {
+                idleStatementsLock.unlock();
+            }
+            if (statement != null) {
+                statement.reopen();
+            } else {
+                statement = new ReusableMockPreparedStatement(this, sql);
+            }
+            if (statement.registeredGeneration != generation) {
+                // new, or unregistered when the connection was closed since
+                statement.registeredGeneration = generation;
+                getPreparedStatementResultSetHandler().addPreparedStatement(statement);
+            }
+            return statement;
+        }
+
+        private void releaseStatement(ReusableMockPreparedStatement statement) {
+            idleStatementsLock.lock();
+            try {
+                idleStatements.putIfAbsent(statement.getSQL(), statement);
+            } finally {
+                idleStatementsLock.unlock();
+            }
+        }
+
+        /**
+         * A statement which is reset and handed back to its connection on close. Mockrunner's statements can't be
+         * reopened once closed, hence closing is tracked separately.
+         */
+        private static class ReusableMockPreparedStatement extends MockPreparedStatement {
+            private final StubbingMockConnection connection;
+            private volatile boolean released;
+            private int registeredGeneration = -1;
+
+            ReusableMockPreparedStatement(StubbingMockConnection connection, String sql) {
+                super(connection, sql);
+                this.connection = connection;
+            }
+
+            @Override
+            public void close() throws SQLException {
+                if (released) {
+                    return;
+                }
+                released = true;
+                clearParameters();
+                setMaxRows(0);
+                setFetchSize(0);
+                connection.releaseStatement(this);
+            }
+
+            @Override
+            public boolean isClosed() {
+                return released;
+            }
+
+            void reopen() {
+                released = false;
+            }
+        }
+
+        /**
+         * Reset the connection to its initial state and hand it back to the DataSource for reuse. Mockrunner's
+         * connections can't be reopened once closed, hence closing is tracked separately.
+         */
+        @Override
+        public void close() throws SQLException {
+            if (released) {
+                return;
+            }
+            released = true;
+            setAutoCommit(true);
+            setReadOnly(false);
+            resetSavepointMap();
+            getStatementResultSetHandler().clearStatements();
+            getPreparedStatementResultSetHandler().clearPreparedStatements();
+            getCallableStatementResultSetHandler().clearCallableStatements();
+            generation++;
+            onClose.accept(this);
+        }
+
+        @Override
+        public boolean isClosed() {
+            return released;
+        }
+
+        void reopen() {
+            released = false;
         }
 
         @SneakyThrows
         private static <T> T synchronizeMembers(T o) {
             doWithFields(o.getClass(), f->syncField(o, f));
-            for(Field f : o.getClass().getDeclaredFields()) {
-                syncField(o, f);
-            }
             return o;
         }
 
@@ -121,28 +865,180 @@ public class JdbcServiceVirtualizationFactory implements P6Factory {
             }
         }
 
+        /**
+         * Bounds the number of statements retained by a Mockrunner result set handler, which otherwise keeps every
+         * statement ever created. Closed statements are released first, then the oldest ones. Eviction re-registers
+         * the retained statements, so it is only done once twice the maximum number of statements is tracked.
+         */
+        private static class StatementTracker<T extends MockStatement> {
+            private final int maxTrackedStatements;
+            private final Consumer<T> register;
+            private final Runnable clear;
+            private final ArrayDeque<T> tracked = new ArrayDeque<>();
+
+            StatementTracker(int maxTrackedStatements, Consumer<T> register, Runnable clear) {
+                this.maxTrackedStatements = maxTrackedStatements;
+                this.register = register;
+                this.clear = clear;
+            }
+
+            void track(T statement) {
+                register.accept(statement);
+                if (maxTrackedStatements < 0) {
+                    return;
+                }
+                tracked.addLast(statement);
+                if (tracked.size() > 2 * maxTrackedStatements) {
+                    tracked.removeIf(MockStatement::isClosed);
+                    while (tracked.size() > maxTrackedStatements) {
+                        tracked.removeFirst();
+                    }
+                    clear.run();
+                    tracked.forEach(register);
+                }
+            }
+
+            void clear() {
+                tracked.clear();
+            }
+        }
+
+        // registering statements is guarded by j.u.c locks instead of monitors to avoid pinning virtual threads
+
         private static class SynchronizedStatementResultSetHandler extends StatementResultSetHandler {
+            private final Lock lock = new ReentrantLock();
+            private final StatementTracker<MockStatement> tracker;
+
+            SynchronizedStatementResultSetHandler(int maxTrackedStatements) {
+                tracker = new StatementTracker<>(maxTrackedStatements, super::addStatement, super::clearStatements);
+            }
+
+            @Override
+            public void clearStatements() {
+                lock.lock();
+                try {
+                    tracker.clear();
+                    super.clearStatements();
+                } finally {
+                    lock.unlock();
+                }
+            }
+
             @Override
             public SQLException getSQLException(String sql) {
                 throw new AssertionError("unmatched sql statement: '" + sql + "'");
             }
 
             @Override
-            public synchronized void addStatement(MockStatement statement) {
-                super.addStatement(statement);
+            public void addStatement(MockStatement statement) {
+                lock.lock();
+                try {
+                    tracker.track(statement);
+                } finally {
+                    lock.unlock();
+                }
+            }
+        }
+
+        private static class SynchronizedPreparedStatementResultSetHandler extends PreparedStatementResultSetHandler {
+            private final Lock lock = new ReentrantLock();
+            private final StatementTracker<MockPreparedStatement> tracker;
+
+            SynchronizedPreparedStatementResultSetHandler(int maxTrackedStatements) {
+                tracker = new StatementTracker<>(maxTrackedStatements, super::addPreparedStatement, super::clearPreparedStatements);
+            }
+
+            @Override
+            public void clearPreparedStatements() {
+                lock.lock();
+                try {
+                    tracker.clear();
+                    super.clearPreparedStatements();
+                } finally {
+                    lock.unlock();
+                }
+            }
+
+            @Override
+            public SQLException getSQLException(String sql) {
+                throw new AssertionError("unmatched sql statement: '" + sql + "'");
+            }
+
+            @Override
+            public void addPreparedStatement(MockPreparedStatement statement) {
+                lock.lock();
+                try {
+                    tracker.track(statement);
+                } finally {
+                    lock.unlock();
+                }
+            }
+        }
+
+        private static class SynchronizedCallableStatementResultSetHandler extends CallableStatementResultSetHandler {
+            private final Lock lock = new ReentrantLock();
+            private final StatementTracker<MockCallableStatement> tracker;
+
+            SynchronizedCallableStatementResultSetHandler(int maxTrackedStatements) {
+                tracker = new StatementTracker<>(maxTrackedStatements, super::addCallableStatement, super::clearCallableStatements);
+            }
+
+            @Override
+            public void clearCallableStatements() {
+                lock.lock();
+                try {
+                    tracker.clear();
+                    super.clearCallableStatements();
+                } finally {
+                    lock.unlock();
+                }
+            }
+
+            @Override
+            public SQLException getSQLException(String sql) {
+                throw new AssertionError("unmatched sql statement: '" + sql + "'");
+            }
+
+            @Override
+            public void addCallableStatement(MockCallableStatement statement) {
+                lock.lock();
+                try {
+                    tracker.track(statement);
+                } finally {
+                    lock.unlock();
+                }
             }
         }
     }
 
     @Override
     public Connection getConnection(Connection conn) throws SQLException {
+        if (isPassThrough(conn)) {
+            return conn;
+        }
         return interceptConnection(conn);
     }
 
+    public PassThroughProfiler getPassThroughProfiler() {
+        return passThroughProfiler;
+    }
+
+    /**
+     * Profile the statements passed through to the database (default none), i.e. statements of spied DataSources not
+     * answered by the stub server or executed while interception is not active, to find the statements worth
+     * virtualizing.
+     */
+    public void setPassThroughProfiler(PassThroughProfiler passThroughProfiler) {
+        this.passThroughProfiler = passThroughProfiler;
+    }
+
+    /**
+     * @return options applied to this factory whenever P6Spy (re)loads its configuration, see
+     * {@link JdbcServiceVirtualizationOptions}
+     */
     @Override
     public P6LoadableOptions getOptions(P6OptionsRepository optionsRepository) {
-        // TODO
-        return new P6LogOptions(optionsRepository);
+        return new JdbcServiceVirtualizationOptions(optionsRepository, this);
     }
 
     protected DataSource interceptDataSource(DataSource ds) {
@@ -166,55 +1062,258 @@ public class JdbcServiceVirtualizationFactory implements P6Factory {
      */
     @SneakyThrows
     protected Object interceptPreparedStatementExecution(PreparedStatementInformation preparedStatementInformation, Object underlying, Method method, Object[] args) {
-        CloseableHttpClient httpclient = HttpClients.createDefault();
-
-        final String sql = preparedStatementInformation.getSql();
-        HttpPost httpPost = new HttpPost(targetUrl);
-        for (Map.Entry<Integer, Object> e : preparedStatementInformation.getParameterValues().entrySet()) {
-            httpPost.setHeader(e.getKey().toString(), Objects.toString(e.getValue()));
+        if (isPassThrough(underlying)) {
+            // a connection obtained within a scope, used outside of it
+            final PassThroughProfiler profiler = passThroughProfiler;
+            if (profiler == null) {
+                return method.invoke(underlying, args);
+            }
+            return invokeProfiled(profiler, createStubRequest(preparedStatementInformation, method), underlying, method, args);
         }
-        httpPost.setEntity(new StringEntity(sql, "utf-8"));
-
-        try (CloseableHttpResponse response = httpclient.execute(httpPost)) {
-            if (response.getStatusLine().getStatusCode() == 200) {
-                String responseContent = EntityUtils.toString(response.getEntity(), "utf-8");
-                if (int[].class.equals(method.getReturnType())) {
-                    return parseBatchUpdateRowsAffected(responseContent);
+        final StubRequest request = createStubRequest(preparedStatementInformation, method);
+        final TransactionWriteBuffer writeBuffer = preparedStatementInformation.getWriteBuffer();
+        if (writeBuffer != null && !request.isIdempotent()) {
+            if ("executeUpdate".equals(method.getName())) {
+                if (writeBuffer.add(request)) {
+                    return bufferedUpdateCount;
                 }
-                if (int.class.equals(method.getReturnType())) {
-                    return Integer.parseInt(responseContent);
-                }
-                return MockResultSetHelper.parseResultSetFromSybaseXmlString("x", responseContent);
+            } else if (writeBuffer.isActive()) {
+                // execute() and executeBatch() can't be buffered, keep them in order with the buffered writes
+                flushBufferedWrites(writeBuffer.drain());
             }
-            if (response.getStatusLine().getStatusCode() == 400) {
-                final Header reasonHeader = response.getFirstHeader("reason");
-                if (reasonHeader == null) throw new AssertionError("missing 'reason' response header");
-                final String sqlState = response.getFirstHeader("sqlstate") != null ? response.getFirstHeader("sqlstate").getValue() : null;
-                final int vendorCode = response.getFirstHeader("vendorcode") != null ? Integer.parseInt(response.getFirstHeader("vendorcode").getValue()) : 0;
-                throw new SQLException(reasonHeader.getValue(), sqlState, vendorCode);
+        }
+        final ShadowRunner shadow = shadowRunner;
+        if (shadow != null && request.isIdempotent() && !(underlying instanceof MockStatement)) {
+            return shadow.execute(preparedStatementInformation, request, underlying, method, args);
+        }
+        final StubResponse response = sendStubRequest(request);
+
+        if (response.getStatus() == 200) {
+            final InterceptionListener[] listeners = this.listeners;
+            final long parseStart = listeners.length != 0 ? System.nanoTime() : 0L;
+            final Object result;
+            try {
+                result = parseResult(preparedStatementInformation, request, response, method);
+            } catch (Throwable e) {
+                fireError(request, e);
+                throw e;
             }
+            if (listeners.length != 0) {
+                final long elapsedNanos = System.nanoTime() - parseStart;
+                for (InterceptionListener listener : listeners) {
+                    listener.afterParse(request, result, elapsedNanos);
+                }
+            }
+            return result;
+        }
+        if (response.getStatus() == 400) {
+            throw createSQLException(request, response);
+        }
+
+        if (underlying instanceof MockStatement && ConcurrencyLimitingStubClient.isOverloaded(response)) {
+            // a mock DataSource has no database to pass through to
+            final IOException e = new IOException("stub server overloaded, no database to pass " + request + " through to");
+            fireError(request, e);
+            throw e;
         }
+        final InterceptionListener[] listeners = this.listeners;
+        for (InterceptionListener listener : listeners) {
+            listener.onPassThrough(request, response);
+        }
+        final PassThroughProfiler profiler = passThroughProfiler;
+        if (profiler != null) {
+            return invokeProfiled(profiler, request, underlying, method, args);
+        }
+        final Object result = method.invoke(underlying, args);
+        return result;
+    }
 
+    private static Object invokeProfiled(PassThroughProfiler profiler, StubRequest request, Object underlying, Method method, Object[] args) throws ReflectiveOperationException {
+        final long start = System.nanoTime();
         final Object result = method.invoke(underlying, args);
+        profiler.record(request, result, System.nanoTime() - start);
         return result;
     }
 
+    @SneakyThrows
+    Object parseResult(PreparedStatementInformation preparedStatementInformation, StubRequest request, StubResponse response, Method method) {
+        if (int[].class.equals(method.getReturnType())) {
+            return parseBatchUpdateRowsAffected(response.getBodyAsString());
+        }
+        if (int.class.equals(method.getReturnType())) {
+            return Integer.parseInt(response.getBodyAsString());
+        }
+        final PagedResultSet.Page page = parsePage(response);
+        final int maxRows = preparedStatementInformation.getMaxRows();
+        if (page.getContinuation() == null && maxRows <= 0) {
+            return page.getRows();
+        }
+        return PagedResultSet.create(page, maxRows, continuation -> fetchPage(request.withHeader(PagedResultSet.CONTINUATION_HEADER, continuation)));
+    }
+
+    /**
+     * Send a request to the stub server(s), notifying the {@link InterceptionListener}s.
+     */
+    protected StubResponse sendStubRequest(StubRequest request) throws IOException {
+        final InterceptionListener[] listeners = this.listeners;
+        if (listeners.length == 0) {
+            return getStubClient().execute(request);
+        }
+        for (InterceptionListener listener : listeners) {
+            listener.beforeRequest(request);
+        }
+        final long start = System.nanoTime();
+        final StubResponse response;
+        try {
+            response = getStubClient().execute(request);
+        } catch (IOException | RuntimeException e) {
+            fireError(request, e);
+            throw e;
+        }
+        final long elapsedNanos = System.nanoTime() - start;
+        for (InterceptionListener listener : listeners) {
+            listener.afterResponse(request, response, elapsedNanos);
+        }
+        return response;
+    }
+
+    private void fireError(StubRequest request, Throwable error) {
+        for (InterceptionListener listener : listeners) {
+            listener.onError(request, error);
+        }
+    }
+
+    /**
+     * Request a further page of a {@link PagedResultSet}.
+     */
+    protected PagedResultSet.Page fetchPage(StubRequest request) throws SQLException {
+        final StubResponse response;
+        try {
+            response = sendStubRequest(request);
+        } catch (IOException e) {
+            throw new SQLException("failed to fetch next page of " + request, e);
+        }
+        if (response.getStatus() == 400) {
+            throw createSQLException(request, response);
+        }
+        if (response.getStatus() != 200) {
+            SQLException e = new SQLException("stub server didn't answer continuation of " + request + ", status " + response.getStatus());
+            fireError(request, e);
+            throw e;
+        }
+        try {
+            return parsePage(response);
+        } catch (RuntimeException e) {
+            fireError(request, e);
+            throw e;
+        }
+    }
+
+    @SneakyThrows
+    private PagedResultSet.Page parsePage(StubResponse response) {
+        final ResultSetTemplateCache cache = resultSetTemplateCache;
+        final MockResultSet preparsed = response instanceof StubMappings.PreloadedResponse
+            ? ((StubMappings.PreloadedResponse) response).getResultSet()
+            : null;
+        final MockResultSet rows;
+        if (preparsed != null) {
+            rows = preparsed;
+        } else if (cache != null) {
+            rows = cache.getResultSet(response);
+        } else {
+            rows = MockResultSetHelper.parseResultSet(response, lobSpoolThreshold, parallelParseThreshold);
+        }
+        return new PagedResultSet.Page(rows, response.getHeader(PagedResultSet.CONTINUATION_HEADER));
+    }
+
+    /**
+     * Send the writes buffered by a connection as a single request.
+     *
+     * @throws SQLException if the stub server answered with an error or did not answer the request at all
+     */
+    protected void flushBufferedWrites(List<StubRequest> writes) throws SQLException, IOException {
+        if (writes.isEmpty()) {
+            return;
+        }
+        final StubRequest request = TransactionWriteBuffer.combine(writes);
+        final StubResponse response = sendStubRequest(request);
+        if (response.getStatus() == 400) {
+            throw createSQLException(request, response);
+        }
+        if (response.getStatus() != 200) {
+            // too late to pass the writes through to the underlying connection
+            SQLException e = new SQLException("stub server didn't acknowledge " + writes.size() + " buffered write(s), status " + response.getStatus());
+            fireError(request, e);
+            throw e;
+        }
+    }
+
+    SQLException createSQLException(StubRequest request, StubResponse response) {
+        final String reason = response.getHeader("reason");
+        if (reason == null) throw new AssertionError("missing 'reason' response header");
+        final String sqlState = response.getHeader("sqlstate");
+        final int vendorCode = response.getHeader("vendorcode") != null ? Integer.parseInt(response.getHeader("vendorcode")) : 0;
+        final SQLException e = new SQLException(reason, sqlState, vendorCode);
+        fireError(request, e);
+        return e;
+    }
+
+    protected StubRequest createStubRequest(PreparedStatementInformation preparedStatementInformation, Method method) {
+        Map<String, String> headers = Collections.emptyMap();
+        if (preparedStatementInformation.getFetchSize() > 0 || preparedStatementInformation.getMaxRows() > 0) {
+            headers = new HashMap<>();
+            if (preparedStatementInformation.getFetchSize() > 0) {
+                headers.put(StubRequest.FETCH_SIZE_HEADER, Integer.toString(preparedStatementInformation.getFetchSize()));
+            }
+            if (preparedStatementInformation.getMaxRows() > 0) {
+                headers.put(StubRequest.MAX_ROWS_HEADER, Integer.toString(preparedStatementInformation.getMaxRows()));
+            }
+        }
+        return new StubRequest(
+            preparedStatementInformation.getEncodedSql()
+            , preparedStatementInformation.getParameterValues()
+            , headers
+            , "executeQuery".equals(method.getName())
+        );
+    }
 
     static class PreparedStatementInformation {
         ConnectionInformation connectionInformation;
-        String sql;
+        TransactionWriteBuffer writeBuffer;
+        EncodedSql encodedSql;
         Map<Integer, Object> parameterValues = new HashMap<Integer, Object>();
+        int fetchSize;
+        int maxRows;
 
-        public PreparedStatementInformation(ConnectionInformation connectionInformation) {
+        public PreparedStatementInformation(ConnectionInformation connectionInformation, TransactionWriteBuffer writeBuffer) {
             this.connectionInformation = connectionInformation;
+            this.writeBuffer = writeBuffer;
         }
 
         public ConnectionInformation getConnectionInformation() {
             return connectionInformation;
         }
 
+        /**
+         * @return the connection's write buffer, null if write buffering is disabled
+         */
+        public TransactionWriteBuffer getWriteBuffer() {
+            return writeBuffer;
+        }
+
         public String getSql() {
-            return sql;
+            return encodedSql.getSql();
+        }
+
+        public String getFingerprint() {
+            return encodedSql.getFingerprint();
+        }
+
+        /**
+         * @return the SQL along with its request body encodings, computed once per prepared statement
+         */
+        public EncodedSql getEncodedSql() {
+            return encodedSql;
         }
 
         public Map<Integer, Object> getParameterValues() {
@@ -222,40 +1321,137 @@ public class JdbcServiceVirtualizationFactory implements P6Factory {
         }
 
         public void setStatementQuery(String sql) {
-            this.sql = sql;
+            this.encodedSql = EncodedSql.of(sql);
+        }
+
+        public void setEncodedSql(EncodedSql encodedSql) {
+            this.encodedSql = encodedSql;
+        }
+
+        /**
+         * Prepare for reuse by another caller, see {@link PreparedStatementCache}.
+         */
+        public void reset(ConnectionInformation connectionInformation, TransactionWriteBuffer writeBuffer) {
+            this.connectionInformation = connectionInformation;
+            this.writeBuffer = writeBuffer;
+            this.parameterValues.clear();
+            this.fetchSize = 0;
+            this.maxRows = 0;
         }
 
         public void setParameterValue(int position, Object value) {
             parameterValues.put(position, value);
         }
+
+        public int getFetchSize() {
+            return fetchSize;
+        }
+
+        public void setFetchSize(int fetchSize) {
+            this.fetchSize = fetchSize;
+        }
+
+        public int getMaxRows() {
+            return maxRows;
+        }
+
+        public void setMaxRows(int maxRows) {
+            this.maxRows = maxRows;
+        }
     }
 
     protected Delegate createDataSourceGetConnectionDelegate() {
         return (final Object proxy, final Object underlying, final Method method, final Object[] args) -> {
             Connection conn = (Connection) method.invoke(underlying, args);
-            return interceptConnection(conn);
+            if (isPassThrough(underlying)) {
+                // not even a proxy, outside of a scope the spied DataSource behaves as if it wasn't spied on
+                return conn;
+            }
+            final Connection intercepted = interceptConnection(conn);
+            if (underlying instanceof StubbingMockDataSource) {
+                // the connection gets reused once closed
+                return CheckoutHandle.wrap(Connection.class, intercepted);
+            }
+            return intercepted;
         };
     }
 
-    protected Delegate createConnectionPrepareStatementDelegate(final ConnectionInformation connectionInformation) {
+    protected Delegate createConnectionPrepareStatementDelegate(final ConnectionInformation connectionInformation, final TransactionWriteBuffer writeBuffer) {
+        // no lock here - preparing a statement may block on the underlying connection
         return (final Object proxy, final Object underlying, final Method method, final Object[] args) -> {
-            synchronized (this) {
-                PreparedStatement statement = (PreparedStatement) method.invoke(underlying, args);
+            for (InterceptionListener listener : listeners) {
+                listener.beforePrepare((String) args[0]);
+            }
+            PreparedStatement statement = (PreparedStatement) method.invoke(underlying, args);
+            final PreparedStatementCache cache = preparedStatementCache;
+            PreparedStatementCache.CachedProxy cached = cache != null ? cache.getProxy(statement) : null;
+            final PreparedStatement statementProxy;
+            if (cached != null) {
+                // the connection (pool) handed out a statement we already wrapped
+                cached.information.reset(connectionInformation, writeBuffer);
+                statementProxy = cached.proxy;
+            } else {
                 String query = (String) args[0];
-                GenericInvocationHandler<PreparedStatement> invocationHandler = createPreparedStatementInvocationHandler(connectionInformation, statement, query);
-                return ProxyFactory.createProxy(statement, invocationHandler);
+                P6MockPreparedStatementInvocationHandler invocationHandler = createPreparedStatementInvocationHandler(connectionInformation, writeBuffer, statement, query);
+                statementProxy = ProxyFactory.createProxy(statement, invocationHandler);
+                if (cache != null) {
+                    cache.putProxy(statement, new PreparedStatementCache.CachedProxy(statementProxy, invocationHandler.getPreparedStatementInformation()));
+                }
+            }
+            if (cache != null || statement instanceof StubbingMockConnection.ReusableMockPreparedStatement) {
+                // the statement (proxy) gets reused once closed
+                return CheckoutHandle.wrap(PreparedStatement.class, statementProxy);
             }
+            return statementProxy;
         };
     }
 
-    protected Delegate createPreparedStatementExecuteDelegate(final PreparedStatementInformation preparedStatementInformation) {
+    /**
+     * Handles commit, rollback and auto-commit mode changes for connections buffering their writes.
+     */
+    protected Delegate createConnectionTransactionDelegate(final TransactionWriteBuffer writeBuffer) {
         return (final Object proxy, final Object underlying, final Method method, final Object[] args) -> {
-            synchronized (preparedStatementInformation.getConnectionInformation()) {
-                return interceptPreparedStatementExecution(preparedStatementInformation, underlying, method, args);
+            if (writeBuffer == null) {
+                return method.invoke(underlying, args);
             }
+            switch (method.getName()) {
+                case "commit":
+                    flushBufferedWrites(writeBuffer.drain());
+                    break;
+                case "setAutoCommit":
+                    flushBufferedWrites(writeBuffer.setAutoCommit((Boolean) args[0]));
+                    break;
+                case "rollback":
+                    if (args == null || args.length == 0) {
+                        writeBuffer.discard();
+                    } else {
+                        writeBuffer.rollback((Savepoint) args[0]);
+                    }
+                    break;
+                case "releaseSavepoint":
+                    writeBuffer.releaseSavepoint((Savepoint) args[0]);
+                    break;
+                case "close":
+                    // like most drivers, roll back pending work
+                    writeBuffer.discard();
+                    break;
+                default:
+                    break;
+            }
+            final Object result = method.invoke(underlying, args);
+            if (result instanceof Savepoint) {
+                writeBuffer.setSavepoint((Savepoint) result);
+            }
+            return result;
         };
     }
 
+    protected Delegate createPreparedStatementExecuteDelegate(final PreparedStatementInformation preparedStatementInformation) {
+        // no lock here - the stub server roundtrip must not serialize (or pin) concurrent callers
+        return (final Object proxy, final Object underlying, final Method method, final Object[] args) ->
+            interceptPreparedStatementExecution(preparedStatementInformation, underlying, method, args);
+    }
+
     protected class P6MockDataSourceInvocationHandler extends GenericInvocationHandler<DataSource> {
 
         public P6MockDataSourceInvocationHandler(DataSource underlying) {
@@ -276,19 +1472,30 @@ public class JdbcServiceVirtualizationFactory implements P6Factory {
         public P6MockConnectionInvocationHandler(Connection underlying) {
             super(underlying);
             ConnectionInformation connectionInformation = new ConnectionInformation();
+            TransactionWriteBuffer writeBuffer = writeBuffering ? createTransactionWriteBuffer(underlying) : null;
 
-            Delegate prepareStatementDelegate = createConnectionPrepareStatementDelegate(connectionInformation);
+            Delegate prepareStatementDelegate = createConnectionPrepareStatementDelegate(connectionInformation, writeBuffer);
+            Delegate transactionDelegate = createConnectionTransactionDelegate(writeBuffer);
 
             // add delegates to return proxies for other methods
             addDelegate(
                 new MethodNameMatcher("prepareStatement"),
                 prepareStatementDelegate
             );
+            // delegates are cached per handler class, so always register them even if write buffering is disabled
+            for (String methodName : Arrays.asList("commit", "rollback", "setAutoCommit", "setSavepoint", "releaseSavepoint", "close")) {
+                addDelegate(
+                    new MethodNameMatcher(methodName),
+                    transactionDelegate
+                );
+            }
         }
     }
 
     protected class P6MockPreparedStatementInvocationHandler extends GenericInvocationHandler<PreparedStatement> {
 
+        private final PreparedStatementInformation preparedStatementInformation;
+
         class P6MockPreparedStatementSetParameterValueDelegate implements Delegate {
             protected final PreparedStatementInformation preparedStatementInformation;
 
@@ -298,8 +1505,14 @@ public class JdbcServiceVirtualizationFactory implements P6Factory {
 
             @Override
             public Object invoke(final Object proxy, final Object underlying, final Method method, final Object[] args) throws Throwable {
-                // ignore calls to any methods defined on the Statement interface!
-                if (!Statement.class.equals(method.getDeclaringClass())) {
+                // ignore calls to any methods defined on the Statement interface except for the hints sent along
+                if (Statement.class.equals(method.getDeclaringClass())) {
+                    if ("setFetchSize".equals(method.getName())) {
+                        preparedStatementInformation.setFetchSize((Integer) args[0]);
+                    } else if ("setMaxRows".equals(method.getName())) {
+                        preparedStatementInformation.setMaxRows((Integer) args[0]);
+                    }
+                } else {
                     int position = (Integer) args[0];
                     Object value = null;
                     if (!method.getName().equals("setNull") && args.length > 1) {
@@ -315,11 +1528,12 @@ public class JdbcServiceVirtualizationFactory implements P6Factory {
 
         public P6MockPreparedStatementInvocationHandler(PreparedStatement underlying,
                                                         ConnectionInformation connectionInformation,
+                                                        TransactionWriteBuffer writeBuffer,
                                                         String query) {
 
             super(underlying);
-            PreparedStatementInformation preparedStatementInformation = new PreparedStatementInformation(connectionInformation);
-            preparedStatementInformation.setStatementQuery(query);
+            preparedStatementInformation = new PreparedStatementInformation(connectionInformation, writeBuffer);
+            preparedStatementInformation.setEncodedSql(encodeSql(query));
 
             Delegate executeDelegate = createPreparedStatementExecuteDelegate(preparedStatementInformation);
             Delegate setParameterValueDelegate = new P6MockPreparedStatementSetParameterValueDelegate(preparedStatementInformation);
@@ -345,6 +1559,10 @@ public class JdbcServiceVirtualizationFactory implements P6Factory {
                 setParameterValueDelegate
             );
         }
+
+        PreparedStatementInformation getPreparedStatementInformation() {
+            return preparedStatementInformation;
+        }
     }
 
     protected P6MockDataSourceInvocationHandler createDataSourceInvocationHandler(DataSource dataSource) {
@@ -355,8 +1573,22 @@ public class JdbcServiceVirtualizationFactory implements P6Factory {
         return new P6MockConnectionInvocationHandler(conn);
     }
 
-    protected P6MockPreparedStatementInvocationHandler createPreparedStatementInvocationHandler(ConnectionInformation connectionInformation, PreparedStatement statement, String query) {
-        return new P6MockPreparedStatementInvocationHandler(statement, connectionInformation, query);
+    protected P6MockPreparedStatementInvocationHandler createPreparedStatementInvocationHandler(ConnectionInformation connectionInformation, TransactionWriteBuffer writeBuffer, PreparedStatement statement, String query) {
+        return new P6MockPreparedStatementInvocationHandler(statement, connectionInformation, writeBuffer, query);
+    }
+
+    /**
+     * @return the SQL's request body encodings, shared by all statements for the same SQL if the
+     * {@link PreparedStatementCache} is enabled
+     */
+    protected EncodedSql encodeSql(String sql) {
+        final PreparedStatementCache cache = preparedStatementCache;
+        return cache != null ? cache.encode(sql) : EncodedSql.of(sql);
+    }
+
+    @SneakyThrows
+    protected TransactionWriteBuffer createTransactionWriteBuffer(Connection conn) {
+        return new TransactionWriteBuffer(conn.getAutoCommit());
     }
 
     /**
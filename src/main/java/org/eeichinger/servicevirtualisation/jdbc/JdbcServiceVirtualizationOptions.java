@@ -0,0 +1,571 @@
+package org.eeichinger.servicevirtualisation.jdbc;
+
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Collectors;
+
+import javax.management.StandardMBean;
+
+import com.p6spy.engine.spy.P6LoadableOptions;
+import com.p6spy.engine.spy.P6ModuleManager;
+import com.p6spy.engine.spy.option.P6OptionsRepository;
+import lombok.SneakyThrows;
+
+/**
+ * Makes the transport and cache settings of a {@link JdbcServiceVirtualizationFactory} configurable through P6Spy's
+ * options mechanism, i.e. {@code spy.properties}, system properties prefixed with {@code p6spy.config.} or
+ * environment variables, and at runtime via JMX.
+ * <p>
+ * Options are applied to the factory right away, so DataSources created by the factory don't need to be
+ * recreated. Only options that actually changed are applied, e.g. reloading an unchanged configuration keeps
+ * pooled connections and caches. When registered as a P6Spy module (i.e. listed in the {@code modulelist} option),
+ * P6Spy applies the {@link #getDefaults() defaults} first and the configured options afterwards. Other than that,
+ * options missing from the configuration keep their current value.
+ */
+public class JdbcServiceVirtualizationOptions extends StandardMBean implements P6LoadableOptions, JdbcServiceVirtualizationOptionsMBean {
+
+    public static final String ENABLED = "stubEnabled";
+    public static final String SCOPED_ACTIVATION = "stubScopedActivation";
+    public static final String TARGET_URLS = "stubTargetUrls";
+    public static final String MAX_CONNECTIONS_PER_ENDPOINT = "stubMaxConnectionsPerEndpoint";
+    public static final String TIMEOUT_MILLIS = "stubTimeoutMillis";
+    public static final String ENDPOINT_FAILURE_THRESHOLD = "stubEndpointFailureThreshold";
+    public static final String ENDPOINT_EJECTION_MILLIS = "stubEndpointEjectionMillis";
+    public static final String TRANSPORT_PROTOCOL = "stubTransportProtocol";
+    public static final String ACCEPT_COMPRESSED_RESPONSES = "stubAcceptCompressedResponses";
+    public static final String REQUEST_COMPRESSION_THRESHOLD = "stubRequestCompressionThreshold";
+    public static final String RESULT_SET_CACHE_SIZE = "stubResultSetCacheSize";
+    public static final String LOB_SPOOL_THRESHOLD = "stubLobSpoolThreshold";
+    public static final String PARALLEL_PARSE_THRESHOLD = "stubParallelParseThreshold";
+    public static final String PREPARED_STATEMENT_CACHE_SIZE = "stubPreparedStatementCacheSize";
+    public static final String MAX_TRACKED_STATEMENTS = "stubMaxTrackedStatements";
+    public static final String WRITE_BUFFERING = "stubWriteBuffering";
+    public static final String BUFFERED_UPDATE_COUNT = "stubBufferedUpdateCount";
+    public static final String INTERCEPTION_LISTENERS = "stubInterceptionListeners";
+    public static final String REQUEST_COALESCING = "stubRequestCoalescing";
+    public static final String CONCURRENCY_LIMIT = "stubConcurrencyLimit";
+    public static final String OVERLOAD_POLICY = "stubOverloadPolicy";
+    public static final String SHADOW_POLICY = "stubShadowPolicy";
+    public static final String PASS_THROUGH_PROFILER_CAPACITY = "stubPassThroughProfilerCapacity";
+    public static final String PRELOAD_MAPPINGS = "stubPreloadMappings";
+
+    /**
+     * The {@link #PRELOAD_MAPPINGS} value to fetch the mappings from the stub server.
+     */
+    public static final String PRELOAD_FROM_SERVER = "server";
+
+    public static final Map<String, String> defaults;
+
+    static {
+        Map<String, String> map = new HashMap<>();
+        map.put(ENABLED, "true");
+        map.put(SCOPED_ACTIVATION, "false");
+        map.put(MAX_CONNECTIONS_PER_ENDPOINT, "100");
+        map.put(TIMEOUT_MILLIS, "0");
+        map.put(ENDPOINT_FAILURE_THRESHOLD, "3");
+        map.put(ENDPOINT_EJECTION_MILLIS, "5000");
+        map.put(TRANSPORT_PROTOCOL, StubTransportProtocol.HTTP_1_1.name());
+        map.put(ACCEPT_COMPRESSED_RESPONSES, "true");
+        map.put(REQUEST_COMPRESSION_THRESHOLD, "-1");
+        map.put(RESULT_SET_CACHE_SIZE, "0");
+        map.put(LOB_SPOOL_THRESHOLD, String.valueOf(StreamingLob.DEFAULT_SPOOL_THRESHOLD));
+        map.put(PARALLEL_PARSE_THRESHOLD, String.valueOf(MockResultSetHelper.DEFAULT_PARALLEL_PARSE_THRESHOLD));
+        map.put(PREPARED_STATEMENT_CACHE_SIZE, "0");
+        map.put(MAX_TRACKED_STATEMENTS, "1000");
+        map.put(WRITE_BUFFERING, "false");
+        map.put(BUFFERED_UPDATE_COUNT, "1");
+        map.put(REQUEST_COALESCING, "false");
+        map.put(OVERLOAD_POLICY, OverloadPolicy.QUEUE.name());
+        map.put(PASS_THROUGH_PROFILER_CAPACITY, "0");
+        defaults = Collections.unmodifiableMap(map);
+    }
+
+    private final P6OptionsRepository optionsRepository;
+    private final JdbcServiceVirtualizationFactory factory;
+    private final Lock lock = new ReentrantLock();
+    private String interceptionListenerClassNames = "";
+    private String preloadMappings = "";
+    private OverloadPolicy overloadPolicy = OverloadPolicy.QUEUE;
+    private List<InterceptionListener> interceptionListeners = Collections.emptyList();
+
+    public JdbcServiceVirtualizationOptions(P6OptionsRepository optionsRepository, JdbcServiceVirtualizationFactory factory) {
+        super(JdbcServiceVirtualizationOptionsMBean.class, false);
+        this.optionsRepository = optionsRepository;
+        this.factory = factory;
+    }
+
+    /**
+     * @return the options registered with P6Spy, null if the factory isn't registered as a P6Spy module
+     */
+    public static JdbcServiceVirtualizationOptions getActiveInstance() {
+        return P6ModuleManager.getInstance().getOptions(JdbcServiceVirtualizationOptions.class);
+    }
+
+    /**
+     * Apply the given options, ignoring options not contained in the map.
+     */
+    @Override
+    public void load(Map<String, String> options) {
+        lock.lock();
+        try {
+            if (options.get(ENABLED) != null) setStubEnabled(Boolean.parseBoolean(options.get(ENABLED).trim()));
+            if (options.get(SCOPED_ACTIVATION) != null) setStubScopedActivation(Boolean.parseBoolean(options.get(SCOPED_ACTIVATION).trim()));
+            if (options.get(TARGET_URLS) != null) setStubTargetUrls(options.get(TARGET_URLS));
+            if (options.get(MAX_CONNECTIONS_PER_ENDPOINT) != null) setStubMaxConnectionsPerEndpoint(Integer.parseInt(options.get(MAX_CONNECTIONS_PER_ENDPOINT)));
+            if (options.get(TIMEOUT_MILLIS) != null) setStubTimeoutMillis(Integer.parseInt(options.get(TIMEOUT_MILLIS)));
+            if (options.get(ENDPOINT_FAILURE_THRESHOLD) != null) setStubEndpointFailureThreshold(Integer.parseInt(options.get(ENDPOINT_FAILURE_THRESHOLD)));
+            if (options.get(ENDPOINT_EJECTION_MILLIS) != null) setStubEndpointEjectionMillis(Long.parseLong(options.get(ENDPOINT_EJECTION_MILLIS)));
+            if (options.get(TRANSPORT_PROTOCOL) != null) setStubTransportProtocol(options.get(TRANSPORT_PROTOCOL));
+            if (options.get(ACCEPT_COMPRESSED_RESPONSES) != null) setStubAcceptCompressedResponses(Boolean.parseBoolean(options.get(ACCEPT_COMPRESSED_RESPONSES).trim()));
+            if (options.get(REQUEST_COMPRESSION_THRESHOLD) != null) setStubRequestCompressionThreshold(Integer.parseInt(options.get(REQUEST_COMPRESSION_THRESHOLD)));
+            if (options.get(RESULT_SET_CACHE_SIZE) != null) setStubResultSetCacheSize(Integer.parseInt(options.get(RESULT_SET_CACHE_SIZE)));
+            if (options.get(LOB_SPOOL_THRESHOLD) != null) setStubLobSpoolThreshold(Integer.parseInt(options.get(LOB_SPOOL_THRESHOLD)));
+            if (options.get(PARALLEL_PARSE_THRESHOLD) != null) setStubParallelParseThreshold(Integer.parseInt(options.get(PARALLEL_PARSE_THRESHOLD)));
+            if (options.get(PREPARED_STATEMENT_CACHE_SIZE) != null) setStubPreparedStatementCacheSize(Integer.parseInt(options.get(PREPARED_STATEMENT_CACHE_SIZE)));
+            if (options.get(MAX_TRACKED_STATEMENTS) != null) setStubMaxTrackedStatements(Integer.parseInt(options.get(MAX_TRACKED_STATEMENTS)));
+            if (options.get(WRITE_BUFFERING) != null) setStubWriteBuffering(Boolean.parseBoolean(options.get(WRITE_BUFFERING).trim()));
+            if (options.get(BUFFERED_UPDATE_COUNT) != null) setStubBufferedUpdateCount(Integer.parseInt(options.get(BUFFERED_UPDATE_COUNT)));
+            if (options.get(INTERCEPTION_LISTENERS) != null) setStubInterceptionListeners(options.get(INTERCEPTION_LISTENERS));
+            if (options.get(REQUEST_COALESCING) != null) setStubRequestCoalescing(Boolean.parseBoolean(options.get(REQUEST_COALESCING).trim()));
+            if (options.get(CONCURRENCY_LIMIT) != null || options.get(OVERLOAD_POLICY) != null) {
+                setStubConcurrencyLimit(options.get(CONCURRENCY_LIMIT) != null ? options.get(CONCURRENCY_LIMIT) : getStubConcurrencyLimit()
+                    , options.get(OVERLOAD_POLICY) != null ? options.get(OVERLOAD_POLICY) : getStubOverloadPolicy());
+            }
+            if (options.get(SHADOW_POLICY) != null) setStubShadowPolicy(options.get(SHADOW_POLICY));
+            if (options.get(PASS_THROUGH_PROFILER_CAPACITY) != null) setStubPassThroughProfilerCapacity(Integer.parseInt(options.get(PASS_THROUGH_PROFILER_CAPACITY)));
+            // last, as it depends on the target URLs
+            if (options.get(PRELOAD_MAPPINGS) != null) setStubPreloadMappings(options.get(PRELOAD_MAPPINGS));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public Map<String, String> getDefaults() {
+        return defaults;
+    }
+
+    @Override
+    public boolean getStubEnabled() {
+        return factory.isEnabled();
+    }
+
+    @Override
+    public void setStubEnabled(boolean enabled) {
+        optionsRepository.set(Boolean.class, ENABLED, enabled);
+        factory.setEnabled(enabled);
+    }
+
+    @Override
+    public boolean getStubScopedActivation() {
+        return factory.isScopedActivation();
+    }
+
+    @Override
+    public void setStubScopedActivation(boolean scopedActivation) {
+        optionsRepository.set(Boolean.class, SCOPED_ACTIVATION, scopedActivation);
+        factory.setScopedActivation(scopedActivation);
+    }
+
+    @Override
+    public String getStubTargetUrls() {
+        return String.join(",", factory.getTargetUrls());
+    }
+
+    /**
+     * @param targetUrls comma separated list of stub server endpoints
+     */
+    @Override
+    public void setStubTargetUrls(String targetUrls) {
+        final List<String> urls = split(targetUrls);
+        optionsRepository.set(String.class, TARGET_URLS, targetUrls);
+        if (!urls.equals(factory.getTargetUrls())) {
+            factory.setTargetUrls(urls);
+        }
+    }
+
+    @Override
+    public int getStubMaxConnectionsPerEndpoint() {
+        return factory.getMaxConnectionsPerEndpoint();
+    }
+
+    @Override
+    public void setStubMaxConnectionsPerEndpoint(int maxConnectionsPerEndpoint) {
+        optionsRepository.set(Integer.class, MAX_CONNECTIONS_PER_ENDPOINT, maxConnectionsPerEndpoint);
+        if (maxConnectionsPerEndpoint != factory.getMaxConnectionsPerEndpoint()) {
+            factory.setMaxConnectionsPerEndpoint(maxConnectionsPerEndpoint);
+        }
+    }
+
+    @Override
+    public int getStubTimeoutMillis() {
+        return factory.getTimeoutMillis();
+    }
+
+    @Override
+    public void setStubTimeoutMillis(int timeoutMillis) {
+        optionsRepository.set(Integer.class, TIMEOUT_MILLIS, timeoutMillis);
+        if (timeoutMillis != factory.getTimeoutMillis()) {
+            factory.setTimeoutMillis(timeoutMillis);
+        }
+    }
+
+    @Override
+    public int getStubEndpointFailureThreshold() {
+        return factory.getEndpointFailureThreshold();
+    }
+
+    @Override
+    public void setStubEndpointFailureThreshold(int endpointFailureThreshold) {
+        optionsRepository.set(Integer.class, ENDPOINT_FAILURE_THRESHOLD, endpointFailureThreshold);
+        if (endpointFailureThreshold != factory.getEndpointFailureThreshold()) {
+            factory.setEndpointFailureThreshold(endpointFailureThreshold);
+        }
+    }
+
+    @Override
+    public long getStubEndpointEjectionMillis() {
+        return factory.getEndpointEjectionMillis();
+    }
+
+    @Override
+    public void setStubEndpointEjectionMillis(long endpointEjectionMillis) {
+        optionsRepository.set(Long.class, ENDPOINT_EJECTION_MILLIS, endpointEjectionMillis);
+        if (endpointEjectionMillis != factory.getEndpointEjectionMillis()) {
+            factory.setEndpointEjectionMillis(endpointEjectionMillis);
+        }
+    }
+
+    @Override
+    public String getStubTransportProtocol() {
+        return factory.getTransportProtocol().name();
+    }
+
+    /**
+     * @param transportProtocol the name of a {@link StubTransportProtocol}
+     */
+    @Override
+    public void setStubTransportProtocol(String transportProtocol) {
+        final StubTransportProtocol protocol = StubTransportProtocol.valueOf(transportProtocol.trim());
+        optionsRepository.set(String.class, TRANSPORT_PROTOCOL, protocol.name());
+        if (protocol != factory.getTransportProtocol()) {
+            factory.setTransportProtocol(protocol);
+        }
+    }
+
+    @Override
+    public boolean getStubAcceptCompressedResponses() {
+        return factory.getCompression().isAcceptCompressedResponses();
+    }
+
+    @Override
+    public void setStubAcceptCompressedResponses(boolean acceptCompressedResponses) {
+        optionsRepository.set(Boolean.class, ACCEPT_COMPRESSED_RESPONSES, acceptCompressedResponses);
+        final StubCompression compression = factory.getCompression();
+        if (acceptCompressedResponses != compression.isAcceptCompressedResponses()) {
+            factory.setCompression(new StubCompression(acceptCompressedResponses, compression.getRequestCompressionThreshold()));
+        }
+    }
+
+    @Override
+    public int getStubRequestCompressionThreshold() {
+        return factory.getCompression().getRequestCompressionThreshold();
+    }
+
+    /**
+     * @param requestCompressionThreshold the minimum size of SQL to compress in bytes, -1 to never compress requests
+     */
+    @Override
+    public void setStubRequestCompressionThreshold(int requestCompressionThreshold) {
+        optionsRepository.set(Integer.class, REQUEST_COMPRESSION_THRESHOLD, requestCompressionThreshold);
+        final StubCompression compression = factory.getCompression();
+        if (requestCompressionThreshold != compression.getRequestCompressionThreshold()) {
+            factory.setCompression(new StubCompression(compression.isAcceptCompressedResponses(), requestCompressionThreshold));
+        }
+    }
+
+    @Override
+    public int getStubResultSetCacheSize() {
+        return factory.getResultSetCacheSize();
+    }
+
+    @Override
+    public void setStubResultSetCacheSize(int resultSetCacheSize) {
+        optionsRepository.set(Integer.class, RESULT_SET_CACHE_SIZE, resultSetCacheSize);
+        if (resultSetCacheSize != factory.getResultSetCacheSize()) {
+            factory.setResultSetCacheSize(resultSetCacheSize);
+        }
+    }
+
+    @Override
+    public int getStubLobSpoolThreshold() {
+        return factory.getLobSpoolThreshold();
+    }
+
+    @Override
+    public void setStubLobSpoolThreshold(int lobSpoolThreshold) {
+        optionsRepository.set(Integer.class, LOB_SPOOL_THRESHOLD, lobSpoolThreshold);
+        if (lobSpoolThreshold != factory.getLobSpoolThreshold()) {
+            factory.setLobSpoolThreshold(lobSpoolThreshold);
+        }
+    }
+
+    @Override
+    public int getStubParallelParseThreshold() {
+        return factory.getParallelParseThreshold();
+    }
+
+    @Override
+    public void setStubParallelParseThreshold(int parallelParseThreshold) {
+        optionsRepository.set(Integer.class, PARALLEL_PARSE_THRESHOLD, parallelParseThreshold);
+        if (parallelParseThreshold != factory.getParallelParseThreshold()) {
+            factory.setParallelParseThreshold(parallelParseThreshold);
+        }
+    }
+
+    @Override
+    public int getStubPreparedStatementCacheSize() {
+        return factory.getPreparedStatementCacheSize();
+    }
+
+    @Override
+    public void setStubPreparedStatementCacheSize(int preparedStatementCacheSize) {
+        optionsRepository.set(Integer.class, PREPARED_STATEMENT_CACHE_SIZE, preparedStatementCacheSize);
+        if (preparedStatementCacheSize != factory.getPreparedStatementCacheSize()) {
+            factory.setPreparedStatementCacheSize(preparedStatementCacheSize);
+        }
+    }
+
+    @Override
+    public int getStubMaxTrackedStatements() {
+        return factory.getMaxTrackedStatements();
+    }
+
+    /**
+     * Only applies to mock DataSources created afterwards.
+     */
+    @Override
+    public void setStubMaxTrackedStatements(int maxTrackedStatements) {
+        optionsRepository.set(Integer.class, MAX_TRACKED_STATEMENTS, maxTrackedStatements);
+        factory.setMaxTrackedStatements(maxTrackedStatements);
+    }
+
+    @Override
+    public boolean getStubWriteBuffering() {
+        return factory.isWriteBuffering();
+    }
+
+    /**
+     * Only applies to connections obtained afterwards.
+     */
+    @Override
+    public void setStubWriteBuffering(boolean writeBuffering) {
+        optionsRepository.set(Boolean.class, WRITE_BUFFERING, writeBuffering);
+        factory.setWriteBuffering(writeBuffering);
+    }
+
+    @Override
+    public int getStubBufferedUpdateCount() {
+        return factory.getBufferedUpdateCount();
+    }
+
+    @Override
+    public void setStubBufferedUpdateCount(int bufferedUpdateCount) {
+        optionsRepository.set(Integer.class, BUFFERED_UPDATE_COUNT, bufferedUpdateCount);
+        factory.setBufferedUpdateCount(bufferedUpdateCount);
+    }
+
+    @Override
+    public String getStubInterceptionListeners() {
+        lock.lock();
+        try {
+            return interceptionListenerClassNames;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Replace the listeners registered by these options, e.g. to switch metrics collection on and off. Listeners
+     * registered by other means are retained.
+     *
+     * @param interceptionListenerClassNames comma separated list of {@link InterceptionListener} implementations
+     * with a public no-arg constructor
+     */
+    @Override
+    public void setStubInterceptionListeners(String interceptionListenerClassNames) {
+        final List<String> classNames = split(interceptionListenerClassNames);
+        lock.lock();
+        try {
+            if (classNames.equals(split(this.interceptionListenerClassNames))) {
+                return;
+            }
+            final List<InterceptionListener> listeners = new ArrayList<>();
+            for (String className : classNames) {
+                listeners.add(createInterceptionListener(className));
+            }
+            optionsRepository.set(String.class, INTERCEPTION_LISTENERS, interceptionListenerClassNames);
+            for (InterceptionListener listener : interceptionListeners) {
+                factory.removeInterceptionListener(listener);
+            }
+            for (InterceptionListener listener : listeners) {
+                factory.addInterceptionListener(listener);
+            }
+            this.interceptionListeners = listeners;
+            this.interceptionListenerClassNames = String.join(",", classNames);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public String getStubPreloadMappings() {
+        lock.lock();
+        try {
+            return preloadMappings;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @param preloadMappings {@value #PRELOAD_FROM_SERVER} to fetch the mappings from the stub server, otherwise the
+     * WireMock root directory to read them from. Empty to not preload mappings.
+     */
+    @Override
+    @SneakyThrows
+    public void setStubPreloadMappings(String preloadMappings) {
+        final String source = preloadMappings.trim();
+        lock.lock();
+        try {
+            if (source.equals(this.preloadMappings)) {
+                return;
+            }
+            if (source.isEmpty()) {
+                factory.setStubMappings(null);
+            } else if (source.equals(PRELOAD_FROM_SERVER)) {
+                factory.preloadStubMappings();
+            } else {
+                factory.preloadStubMappings(Paths.get(source));
+            }
+            optionsRepository.set(String.class, PRELOAD_MAPPINGS, source);
+            this.preloadMappings = source;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public boolean getStubRequestCoalescing() {
+        return factory.isRequestCoalescing();
+    }
+
+    @Override
+    public void setStubRequestCoalescing(boolean requestCoalescing) {
+        optionsRepository.set(Boolean.class, REQUEST_COALESCING, requestCoalescing);
+        if (requestCoalescing != factory.isRequestCoalescing()) {
+            factory.setRequestCoalescing(requestCoalescing);
+        }
+    }
+
+    @Override
+    public String getStubConcurrencyLimit() {
+        final ConcurrencyLimitPolicy policy = factory.getConcurrencyLimitPolicy();
+        return policy != null ? policy.toSpec() : "";
+    }
+
+    /**
+     * @param concurrencyLimit a limit as parsed by {@link ConcurrencyLimitPolicy#parse(String, OverloadPolicy)},
+     * empty for unlimited
+     */
+    @Override
+    public void setStubConcurrencyLimit(String concurrencyLimit) {
+        setStubConcurrencyLimit(concurrencyLimit, getStubOverloadPolicy());
+    }
+
+    @Override
+    public String getStubOverloadPolicy() {
+        return overloadPolicy.name();
+    }
+
+    /**
+     * @param overloadPolicy the name of an {@link OverloadPolicy}
+     */
+    @Override
+    public void setStubOverloadPolicy(String overloadPolicy) {
+        setStubConcurrencyLimit(getStubConcurrencyLimit(), overloadPolicy);
+    }
+
+    private void setStubConcurrencyLimit(String concurrencyLimit, String overloadPolicy) {
+        final String spec = concurrencyLimit.trim();
+        final OverloadPolicy overload = OverloadPolicy.valueOf(overloadPolicy.trim());
+        final ConcurrencyLimitPolicy policy = spec.isEmpty() ? null : ConcurrencyLimitPolicy.parse(spec, overload);
+        lock.lock();
+        try {
+            optionsRepository.set(String.class, CONCURRENCY_LIMIT, spec);
+            optionsRepository.set(String.class, OVERLOAD_POLICY, overload.name());
+            this.overloadPolicy = overload;
+            if (!String.valueOf(policy).equals(String.valueOf(factory.getConcurrencyLimitPolicy()))) {
+                factory.setConcurrencyLimitPolicy(policy);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public String getStubShadowPolicy() {
+        final ShadowPolicy policy = factory.getShadowPolicy();
+        return policy != null ? policy.name() : "";
+    }
+
+    /**
+     * @param shadowPolicy the name of a {@link ShadowPolicy}, empty to disable shadow mode
+     */
+    @Override
+    public void setStubShadowPolicy(String shadowPolicy) {
+        final String name = shadowPolicy.trim();
+        final ShadowPolicy policy = name.isEmpty() ? null : ShadowPolicy.valueOf(name);
+        optionsRepository.set(String.class, SHADOW_POLICY, name);
+        if (policy != factory.getShadowPolicy()) {
+            factory.setShadowPolicy(policy);
+        }
+    }
+
+    @Override
+    public int getStubPassThroughProfilerCapacity() {
+        final PassThroughProfiler profiler = factory.getPassThroughProfiler();
+        return profiler != null ? profiler.getCapacity() : 0;
+    }
+
+    /**
+     * @param capacity the number of fingerprints tracked by the {@link PassThroughProfiler}, 0 to disable profiling
+     */
+    @Override
+    public void setStubPassThroughProfilerCapacity(int capacity) {
+        optionsRepository.set(Integer.class, PASS_THROUGH_PROFILER_CAPACITY, capacity);
+        if (capacity != getStubPassThroughProfilerCapacity()) {
+            factory.setPassThroughProfiler(capacity > 0 ? new PassThroughProfiler(capacity) : null);
+        }
+    }
+
+    @SneakyThrows
+    protected InterceptionListener createInterceptionListener(String className) {
+        Class<?> clazz = Class.forName(className, true, JdbcServiceVirtualizationOptions.class.getClassLoader());
+        return (InterceptionListener) clazz.newInstance();
+    }
+
+    private static List<String> split(String values) {
+        return Arrays.stream(values.split(","))
+            .map(String::trim)
+            .filter(s -> !s.isEmpty())
+            .collect(Collectors.toList());
+    }
+}
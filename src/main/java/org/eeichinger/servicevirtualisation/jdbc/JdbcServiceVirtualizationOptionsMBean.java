@@ -0,0 +1,104 @@
+package org.eeichinger.servicevirtualisation.jdbc;
+
+/**
+ * The options of a {@link JdbcServiceVirtualizationFactory} exposed via JMX, see
+ * {@link JdbcServiceVirtualizationOptions}.
+ */
+public interface JdbcServiceVirtualizationOptionsMBean {
+
+    boolean getStubEnabled();
+
+    void setStubEnabled(boolean enabled);
+
+    boolean getStubScopedActivation();
+
+    void setStubScopedActivation(boolean scopedActivation);
+
+    String getStubTargetUrls();
+
+    void setStubTargetUrls(String targetUrls);
+
+    int getStubMaxConnectionsPerEndpoint();
+
+    void setStubMaxConnectionsPerEndpoint(int maxConnectionsPerEndpoint);
+
+    int getStubTimeoutMillis();
+
+    void setStubTimeoutMillis(int timeoutMillis);
+
+    int getStubEndpointFailureThreshold();
+
+    void setStubEndpointFailureThreshold(int endpointFailureThreshold);
+
+    long getStubEndpointEjectionMillis();
+
+    void setStubEndpointEjectionMillis(long endpointEjectionMillis);
+
+    String getStubTransportProtocol();
+
+    void setStubTransportProtocol(String transportProtocol);
+
+    boolean getStubAcceptCompressedResponses();
+
+    void setStubAcceptCompressedResponses(boolean acceptCompressedResponses);
+
+    int getStubRequestCompressionThreshold();
+
+    void setStubRequestCompressionThreshold(int requestCompressionThreshold);
+
+    int getStubResultSetCacheSize();
+
+    void setStubResultSetCacheSize(int resultSetCacheSize);
+
+    int getStubLobSpoolThreshold();
+
+    void setStubLobSpoolThreshold(int lobSpoolThreshold);
+
+    int getStubParallelParseThreshold();
+
+    void setStubParallelParseThreshold(int parallelParseThreshold);
+
+    int getStubPreparedStatementCacheSize();
+
+    void setStubPreparedStatementCacheSize(int preparedStatementCacheSize);
+
+    int getStubMaxTrackedStatements();
+
+    void setStubMaxTrackedStatements(int maxTrackedStatements);
+
+    boolean getStubWriteBuffering();
+
+    void setStubWriteBuffering(boolean writeBuffering);
+
+    int getStubBufferedUpdateCount();
+
+    void setStubBufferedUpdateCount(int bufferedUpdateCount);
+
+    String getStubInterceptionListeners();
+
+    void setStubInterceptionListeners(String interceptionListenerClassNames);
+
+    boolean getStubRequestCoalescing();
+
+    void setStubRequestCoalescing(boolean requestCoalescing);
+
+    String getStubConcurrencyLimit();
+
+    void setStubConcurrencyLimit(String concurrencyLimit);
+
+    String getStubOverloadPolicy();
+
+    void setStubOverloadPolicy(String overloadPolicy);
+
+    String getStubShadowPolicy();
+
+    void setStubShadowPolicy(String shadowPolicy);
+
+    int getStubPassThroughProfilerCapacity();
+
+    void setStubPassThroughProfilerCapacity(int capacity);
+
+    String getStubPreloadMappings();
+
+    void setStubPreloadMappings(String preloadMappings);
+}
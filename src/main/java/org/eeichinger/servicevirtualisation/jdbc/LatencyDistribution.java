@@ -0,0 +1,84 @@
+package org.eeichinger.servicevirtualisation.jdbc;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The latency to emulate for a virtualized statement, see {@link ShapingPolicy}.
+ */
+public interface LatencyDistribution {
+
+    /**
+     * The response header which may specify the latency of an individual stub, see {@link #fromResponseHeader}.
+     */
+    String LATENCY_HEADER = "x-latency";
+
+    /**
+     * @param response the stub server's response, allows latencies to be specified per stub
+     * @return the total latency in nanoseconds the statement execution should take
+     */
+    long sampleNanos(StubResponse response);
+
+    static LatencyDistribution none() {
+        return response -> 0;
+    }
+
+    static LatencyDistribution fixed(long delay, TimeUnit unit) {
+        final long nanos = unit.toNanos(delay);
+        return response -> nanos;
+    }
+
+    /**
+     * Latencies uniformly distributed in [min, max].
+     */
+    static LatencyDistribution uniform(long min, long max, TimeUnit unit) {
+        final long minNanos = unit.toNanos(min);
+        final long maxNanos = Math.max(minNanos, unit.toNanos(max));
+        return response -> minNanos + (long) (ThreadLocalRandom.current().nextDouble() * (maxNanos - minNanos));
+    }
+
+    /**
+     * Log-normally distributed latencies, the typical shape of database response times: most statements are
+     * close to the median, with a long tail.
+     *
+     * @param median the 50th percentile
+     * @param p99 the 99th percentile, must be greater than the median
+     */
+    static LatencyDistribution logNormal(long median, long p99, TimeUnit unit) {
+        if (p99 <= median || median <= 0) {
+            throw new IllegalArgumentException("0 < median < p99 required");
+        }
+        final double mu = Math.log(unit.toNanos(median));
+        // 2.326 is the standard normal distribution's 99th percentile
+        final double sigma = Math.log((double) p99 / median) / 2.326;
+        return response -> (long) Math.exp(mu + sigma * ThreadLocalRandom.current().nextGaussian());
+    }
+
+    /**
+     * Take the latency from the stub's {@value #LATENCY_HEADER} response header, which allows to configure the
+     * latency per stub. See {@link #parse(String)} for the header's format. Parsed header values are cached.
+     *
+     * @param fallback the distribution to use for responses without the header, or with an invalid one
+     */
+    static LatencyDistribution fromResponseHeader(LatencyDistribution fallback) {
+        final LatencySpecs specs = new LatencySpecs(fallback);
+        return response -> {
+            final String spec = response.getHeader(LATENCY_HEADER);
+            return spec != null ? specs.get(spec).sampleNanos(response) : fallback.sampleNanos(response);
+        };
+    }
+
+    /**
+     * Parse a latency specification in milliseconds, one of
+     * <ul>
+     * <li>{@code 50} or {@code fixed(50)}</li>
+     * <li>{@code uniform(10,50)} - min and max</li>
+     * <li>{@code lognormal(20,200)} - median and 99th percentile</li>
+     * </ul>
+     *
+     * @throws IllegalArgumentException if the specification is invalid
+     */
+    static LatencyDistribution parse(String spec) {
+        return LatencySpecs.parse(spec);
+    }
+}
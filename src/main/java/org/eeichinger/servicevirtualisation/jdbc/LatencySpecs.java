@@ -0,0 +1,73 @@
+package org.eeichinger.servicevirtualisation.jdbc;
+
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Parses the latency specifications of {@link LatencyDistribution#parse(String)}, and caches the distributions
+ * parsed from {@value LatencyDistribution#LATENCY_HEADER} response headers.
+ */
+final class LatencySpecs {
+
+    /**
+     * Stubs usually share a handful of specifications, don't grow without bounds if they don't.
+     */
+    private static final int MAX_CACHED_SPECS = 256;
+
+    private static final Pattern SPEC_PATTERN = Pattern.compile("\\s*(?:(\\w+)\\s*\\(\\s*(\\d+)\\s*(?:,\\s*(\\d+)\\s*)?\\)|(\\d+))\\s*");
+
+    private final LatencyDistribution fallback;
+    private final ConcurrentMap<String, LatencyDistribution> distributions = new ConcurrentHashMap<>();
+
+    LatencySpecs(LatencyDistribution fallback) {
+        this.fallback = fallback;
+    }
+
+    /**
+     * @return the distribution of the given specification, the fallback if it is invalid
+     */
+    LatencyDistribution get(String spec) {
+        LatencyDistribution distribution = distributions.get(spec);
+        if (distribution == null) {
+            try {
+                distribution = parse(spec);
+            } catch (IllegalArgumentException e) {
+                // a misconfigured stub mustn't fail the statement
+                distribution = fallback;
+            }
+            if (distributions.size() < MAX_CACHED_SPECS) {
+                distributions.putIfAbsent(spec, distribution);
+            }
+        }
+        return distribution;
+    }
+
+    static LatencyDistribution parse(String spec) {
+        final Matcher m = SPEC_PATTERN.matcher(spec);
+        if (!m.matches()) {
+            throw new IllegalArgumentException("invalid latency specification '" + spec + "'");
+        }
+        if (m.group(4) != null) {
+            return LatencyDistribution.fixed(Long.parseLong(m.group(4)), TimeUnit.MILLISECONDS);
+        }
+        final String type = m.group(1).toLowerCase(Locale.ROOT);
+        final long first = Long.parseLong(m.group(2));
+        if ("fixed".equals(type) && m.group(3) == null) {
+            return LatencyDistribution.fixed(first, TimeUnit.MILLISECONDS);
+        }
+        if (m.group(3) != null) {
+            final long second = Long.parseLong(m.group(3));
+            if ("uniform".equals(type)) {
+                return LatencyDistribution.uniform(first, second, TimeUnit.MILLISECONDS);
+            }
+            if ("lognormal".equals(type)) {
+                return LatencyDistribution.logNormal(first, second, TimeUnit.MILLISECONDS);
+            }
+        }
+        throw new IllegalArgumentException("invalid latency specification '" + spec + "'");
+    }
+}
@@ -0,0 +1,151 @@
+package org.eeichinger.servicevirtualisation.jdbc;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Distributes requests across several {@link StubEndpoint}s using consistent hashing on the statement's
+ * {@link SqlFingerprint}, so the same statement is always answered by the same stub server as long as it is
+ * available (keeping that server's caches hot), and only the statements of a failed server move elsewhere.
+ * <p>
+ * Idempotent requests failing with an I/O error are retried once on the next available endpoint on the ring.
+ */
+public class LoadBalancingStubClient implements StubClient {
+
+    private static final int VIRTUAL_NODES_PER_ENDPOINT = 128;
+
+    private final StubTransport transport;
+    private final List<StubEndpoint> endpoints;
+    private final long[] ringHashes;
+    private final StubEndpoint[] ringEndpoints;
+
+    public LoadBalancingStubClient(StubTransport transport, List<StubEndpoint> endpoints) {
+        if (endpoints.isEmpty()) {
+            throw new IllegalArgumentException("at least one endpoint required");
+        }
+        this.transport = transport;
+        this.endpoints = Collections.unmodifiableList(new ArrayList<>(endpoints));
+
+        final int ringSize = endpoints.size() * VIRTUAL_NODES_PER_ENDPOINT;
+        long[] hashes = new long[ringSize];
+        int n = 0;
+        for (int e = 0; e < endpoints.size(); e++) {
+            for (int i = 0; i < VIRTUAL_NODES_PER_ENDPOINT; i++) {
+                // low 16 bits of each ring position carry the endpoint's index
+                hashes[n++] = (hash(endpoints.get(e).getUrl() + "#" + i) & ~0xFFFFL) | e;
+            }
+        }
+        Arrays.sort(hashes);
+        this.ringHashes = hashes;
+        this.ringEndpoints = new StubEndpoint[ringSize];
+        for (int i = 0; i < ringSize; i++) {
+            ringEndpoints[i] = endpoints.get((int) (hashes[i] & 0xFFFFL));
+        }
+    }
+
+    public List<StubEndpoint> getEndpoints() {
+        return endpoints;
+    }
+
+    @Override
+    public StubResponse execute(StubRequest request) throws IOException {
+        final StubEndpoint primary = selectEndpoint(request.getFingerprint(), null);
+        try {
+            return send(primary, request);
+        } catch (IOException e) {
+            if (!request.isIdempotent()) {
+                throw e;
+            }
+            final StubEndpoint secondary = selectEndpoint(request.getFingerprint(), primary);
+            if (secondary == null) {
+                throw e;
+            }
+            return send(secondary, request);
+        }
+    }
+
+    /**
+     * Select the endpoint responsible for the given routing key, i.e. the first available endpoint found
+     * walking the ring clockwise from the key's position.
+     *
+     * @param routingKey usually the statement's fingerprint
+     * @param excluded an endpoint to skip (e.g. because it was already tried) or null
+     * @return the selected endpoint. If no endpoint is available, the preferred one is returned (fail open), null
+     * if there is no endpoint other than the excluded one.
+     */
+    public StubEndpoint selectEndpoint(String routingKey, StubEndpoint excluded) {
+        if (endpoints.size() == 1) {
+            return endpoints.get(0) == excluded ? null : endpoints.get(0);
+        }
+        int start = Arrays.binarySearch(ringHashes, hash(routingKey));
+        if (start < 0) {
+            start = -start - 1;
+        }
+        StubEndpoint fallback = null;
+        for (int i = 0; i < ringEndpoints.length; i++) {
+            StubEndpoint candidate = ringEndpoints[(start + i) % ringEndpoints.length];
+            if (candidate == excluded) {
+                continue;
+            }
+            if (candidate.isAvailable()) {
+                return candidate;
+            }
+            if (fallback == null) {
+                fallback = candidate;
+            }
+        }
+        // no (further) endpoint available - fail open
+        return fallback;
+    }
+
+    /**
+     * Send the request to the given endpoint, tracking the endpoint's health and metrics. Aborted requests do not
+     * count as failures.
+     */
+    public StubResponse send(StubEndpoint endpoint, StubRequest request) throws IOException {
+        final EndpointMetrics metrics = endpoint.getMetrics();
+        final long start = System.nanoTime();
+        metrics.requestStarted();
+        boolean failed = true;
+        try {
+            StubResponse response = transport.send(endpoint.getUrl(), request);
+            failed = response.getStatus() >= 500;
+            return response;
+        } finally {
+            metrics.requestCompleted(System.nanoTime() - start, failed);
+            if (request.isAborted()) {
+                // neither a success nor a failure of the endpoint
+            } else if (failed) {
+                endpoint.recordFailure();
+            } else {
+                endpoint.recordSuccess();
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        transport.close();
+    }
+
+    /**
+     * 64bit FNV-1a followed by MurmurHash3's finalizer for a good spread of similar keys.
+     */
+    static long hash(String key) {
+        long h = 0xcbf29ce484222325L;
+        for (byte b : key.getBytes(StandardCharsets.UTF_8)) {
+            h ^= (b & 0xff);
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
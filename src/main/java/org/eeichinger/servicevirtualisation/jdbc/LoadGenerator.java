@@ -0,0 +1,241 @@
+package org.eeichinger.servicevirtualisation.jdbc;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import javax.sql.DataSource;
+
+/**
+ * Drives a {@link DataSource} (usually one created by {@link JdbcServiceVirtualizationFactory#createMockDataSource()}
+ * or {@link JdbcServiceVirtualizationFactory#spyOnDataSource(DataSource)}) with a weighted mix of statements and
+ * reports throughput and latency percentiles, e.g. to capacity-test stub servers or measure the interception
+ * overhead.
+ * <p>
+ * In closed loop mode (the default), each worker executes statements back to back. In open loop mode
+ * ({@link #setArrivalRate(double)}), executions are scheduled at a fixed rate independent of response times and
+ * latencies are measured from the scheduled start, so a saturated system shows up as growing latencies rather than
+ * being hidden by the workers slowing down ("coordinated omission").
+ * <p>
+ * Usage:
+ * <pre>
+ * LoadGenerator loadGenerator = new LoadGenerator(dataSource);
+ * loadGenerator.addQuery("SELECT name FROM PEOPLE WHERE id = ?", 9, ParameterGenerator.randomLong(1, 1000));
+ * loadGenerator.addUpdate("UPDATE PEOPLE SET name = ? WHERE id = ?", 1, ParameterGenerator.constant("Erich"), ParameterGenerator.sequence(1, 1000));
+ * loadGenerator.setConcurrency(50);
+ * loadGenerator.setDuration(30, TimeUnit.SECONDS);
+ * LoadReport report = loadGenerator.run();
+ * </pre>
+ */
+public class LoadGenerator {
+
+    private final DataSource dataSource;
+    private final List<WorkloadStatement> workload = new ArrayList<>();
+    private double totalWeight;
+    private int concurrency = 10;
+    private double arrivalRate;
+    private long durationMillis = 10000;
+    private long warmupMillis;
+
+    public LoadGenerator(DataSource dataSource) {
+        this.dataSource = dataSource;
+    }
+
+    /**
+     * Add a query to the workload, executed using {@link PreparedStatement#executeQuery()} with all rows consumed.
+     *
+     * @param weight the relative frequency of this statement within the workload
+     * @param parameters one generator per statement parameter
+     */
+    public void addQuery(String sql, double weight, ParameterGenerator... parameters) {
+        addStatement(new WorkloadStatement(sql, weight, true, parameters));
+    }
+
+    /**
+     * Add an update to the workload, executed using {@link PreparedStatement#executeUpdate()}.
+     *
+     * @param weight the relative frequency of this statement within the workload
+     * @param parameters one generator per statement parameter
+     */
+    public void addUpdate(String sql, double weight, ParameterGenerator... parameters) {
+        addStatement(new WorkloadStatement(sql, weight, false, parameters));
+    }
+
+    private void addStatement(WorkloadStatement statement) {
+        if (statement.weight <= 0) {
+            throw new IllegalArgumentException("weight must be positive");
+        }
+        workload.add(statement);
+        totalWeight += statement.weight;
+    }
+
+    public int getConcurrency() {
+        return concurrency;
+    }
+
+    /**
+     * Set the number of worker threads executing statements (default 10).
+     */
+    public void setConcurrency(int concurrency) {
+        this.concurrency = concurrency;
+    }
+
+    public double getArrivalRate() {
+        return arrivalRate;
+    }
+
+    /**
+     * Set the number of executions per second to schedule (open loop), 0 to execute back to back (closed loop,
+     * default).
+     */
+    public void setArrivalRate(double arrivalRate) {
+        this.arrivalRate = arrivalRate;
+    }
+
+    public long getDurationMillis() {
+        return durationMillis;
+    }
+
+    /**
+     * Set for how long to generate load, excluding the warmup (default 10s).
+     */
+    public void setDuration(long duration, TimeUnit unit) {
+        this.durationMillis = unit.toMillis(duration);
+    }
+
+    public long getWarmupMillis() {
+        return warmupMillis;
+    }
+
+    /**
+     * Set for how long to generate load before starting to measure (default 0).
+     */
+    public void setWarmup(long warmup, TimeUnit unit) {
+        this.warmupMillis = unit.toMillis(warmup);
+    }
+
+    /**
+     * Generate load for the configured warmup and duration.
+     *
+     * @return the measurements taken after the warmup
+     */
+    public LoadReport run() throws InterruptedException {
+        if (workload.isEmpty()) {
+            throw new IllegalStateException("no statements added to the workload");
+        }
+        final Set<String> statements = new LinkedHashSet<>();
+        for (WorkloadStatement statement : workload) {
+            statements.add(statement.sql);
+        }
+        final LoadReport report = new LoadReport(statements);
+        final long start = System.nanoTime();
+        final long measureFrom = start + TimeUnit.MILLISECONDS.toNanos(warmupMillis);
+        final long end = measureFrom + TimeUnit.MILLISECONDS.toNanos(durationMillis);
+        final long intervalNanos = arrivalRate > 0 ? (long) (TimeUnit.SECONDS.toNanos(1) / arrivalRate) : 0;
+        final AtomicLong iterations = new AtomicLong();
+
+        final AtomicInteger threadCount = new AtomicInteger();
+        final ExecutorService workers = Executors.newFixedThreadPool(concurrency, r -> {
+            Thread t = new Thread(r, "load-generator-" + threadCount.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        try {
+            for (int i = 0; i < concurrency; i++) {
+                workers.execute(() -> {
+                    while (!Thread.currentThread().isInterrupted()) {
+                        final long iteration = iterations.getAndIncrement();
+                        final long scheduledStart = intervalNanos > 0 ? start + iteration * intervalNanos : System.nanoTime();
+                        if (scheduledStart - end >= 0) {
+                            return;
+                        }
+                        awaitNanoTime(scheduledStart);
+                        final WorkloadStatement statement = selectStatement();
+                        try {
+                            statement.execute(dataSource, iteration);
+                            if (scheduledStart - measureFrom >= 0) {
+                                report.recordSuccess(statement.sql, System.nanoTime() - scheduledStart);
+                            }
+                        } catch (SQLException | RuntimeException | AssertionError e) {
+                            // mock DataSources report unmatched statements as AssertionError
+                            if (scheduledStart - measureFrom >= 0) {
+                                report.recordError(e);
+                            }
+                        }
+                    }
+                });
+            }
+            workers.shutdown();
+            workers.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        } finally {
+            workers.shutdownNow();
+        }
+        report.setElapsedNanos(Math.max(0, System.nanoTime() - measureFrom));
+        return report;
+    }
+
+    private WorkloadStatement selectStatement() {
+        double r = ThreadLocalRandom.current().nextDouble() * totalWeight;
+        for (WorkloadStatement statement : workload) {
+            r -= statement.weight;
+            if (r < 0) {
+                return statement;
+            }
+        }
+        return workload.get(workload.size() - 1);
+    }
+
+    private static void awaitNanoTime(long nanoTime) {
+        long remaining;
+        while ((remaining = nanoTime - System.nanoTime()) > 0 && !Thread.currentThread().isInterrupted()) {
+            LockSupport.parkNanos(remaining);
+        }
+    }
+
+    private static class WorkloadStatement {
+        final String sql;
+        final double weight;
+        final boolean query;
+        final ParameterGenerator[] parameters;
+
+        WorkloadStatement(String sql, double weight, boolean query, ParameterGenerator[] parameters) {
+            this.sql = sql;
+            this.weight = weight;
+            this.query = query;
+            this.parameters = parameters.clone();
+        }
+
+        void execute(DataSource dataSource, long iteration) throws SQLException {
+            try (Connection connection = dataSource.getConnection();
+                 PreparedStatement ps = connection.prepareStatement(sql)) {
+                for (int i = 0; i < parameters.length; i++) {
+                    ps.setObject(i + 1, parameters[i].next(iteration));
+                }
+                if (!query) {
+                    ps.executeUpdate();
+                    return;
+                }
+                try (ResultSet rs = ps.executeQuery()) {
+                    final int columns = rs.getMetaData().getColumnCount();
+                    while (rs.next()) {
+                        for (int c = 1; c <= columns; c++) {
+                            rs.getObject(c);
+                        }
+                    }
+                }
+            }
+        }
+    }
+}
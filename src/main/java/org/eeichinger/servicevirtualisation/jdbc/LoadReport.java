@@ -0,0 +1,93 @@
+package org.eeichinger.servicevirtualisation.jdbc;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The outcome of a {@link LoadGenerator} run: throughput, errors and latency percentiles overall and per statement.
+ * Latencies of open loop runs are measured from each execution's scheduled start, so they include the time spent
+ * waiting for a free worker.
+ */
+public class LoadReport {
+
+    private final LatencyHistogram latency = new LatencyHistogram();
+    private final Map<String, LatencyHistogram> statementLatencies = new LinkedHashMap<>();
+    private final LongAdder errors = new LongAdder();
+    private volatile Throwable lastError;
+    private volatile long elapsedNanos;
+
+    LoadReport(Iterable<String> statements) {
+        for (String sql : statements) {
+            statementLatencies.put(sql, new LatencyHistogram());
+        }
+    }
+
+    void recordSuccess(String sql, long latencyNanos) {
+        latency.recordNanos(latencyNanos);
+        statementLatencies.get(sql).recordNanos(latencyNanos);
+    }
+
+    void recordError(Throwable error) {
+        errors.increment();
+        lastError = error;
+    }
+
+    void setElapsedNanos(long elapsedNanos) {
+        this.elapsedNanos = elapsedNanos;
+    }
+
+    /**
+     * @return the number of successful executions
+     */
+    public long getExecutions() {
+        return latency.getCount();
+    }
+
+    public long getErrors() {
+        return errors.sum();
+    }
+
+    /**
+     * @return the most recent error, null if there was none
+     */
+    public Throwable getLastError() {
+        return lastError;
+    }
+
+    public long getElapsedMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(elapsedNanos);
+    }
+
+    /**
+     * @return successful executions per second
+     */
+    public double getThroughput() {
+        return elapsedNanos == 0 ? 0 : getExecutions() / (elapsedNanos / (double) TimeUnit.SECONDS.toNanos(1));
+    }
+
+    public LatencyHistogram getLatency() {
+        return latency;
+    }
+
+    /**
+     * @return the latencies by SQL statement, in the order the statements were added to the workload
+     */
+    public Map<String, LatencyHistogram> getStatementLatencies() {
+        return Collections.unmodifiableMap(statementLatencies);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format("executions=%d, errors=%d, elapsed=%dms, throughput=%.1f/s%n"
+            , getExecutions(), getErrors(), getElapsedMillis(), getThroughput()));
+        sb.append("  all: ").append(latency);
+        for (Map.Entry<String, LatencyHistogram> e : statementLatencies.entrySet()) {
+            sb.append(String.format("%n  %s: %s", e.getKey(), e.getValue()));
+        }
+        return sb.toString();
+    }
+}
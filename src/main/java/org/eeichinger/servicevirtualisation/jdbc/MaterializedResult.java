@@ -0,0 +1,166 @@
+package org.eeichinger.servicevirtualisation.jdbc;
+
+import java.math.BigDecimal;
+import java.sql.Blob;
+import java.sql.Clob;
+import java.sql.Date;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Time;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+
+import com.mockrunner.mock.jdbc.MockResultSet;
+
+/**
+ * All rows of a result set read into memory, so the results of the stub server and the database can be compared
+ * and replayed in shadow mode.
+ */
+final class MaterializedResult {
+
+    private final List<String> columns;
+    private final List<Object[]> rows;
+
+    private MaterializedResult(List<String> columns, List<Object[]> rows) {
+        this.columns = columns;
+        this.rows = rows;
+    }
+
+    /**
+     * Read all remaining rows and close the result set. Large objects are copied, as the driver's handles become
+     * invalid once the result set is closed.
+     */
+    static MaterializedResult of(ResultSet resultSet) throws SQLException {
+        try {
+            final ResultSetMetaData metaData = resultSet.getMetaData();
+            final List<String> columns = new ArrayList<>(metaData.getColumnCount());
+            for (int i = 1; i <= metaData.getColumnCount(); i++) {
+                columns.add(metaData.getColumnLabel(i));
+            }
+            final List<Object[]> rows = new ArrayList<>();
+            while (resultSet.next()) {
+                final Object[] row = new Object[columns.size()];
+                for (int i = 0; i < row.length; i++) {
+                    row[i] = copyLob(resultSet.getObject(i + 1));
+                }
+                rows.add(row);
+            }
+            return new MaterializedResult(columns, rows);
+        } finally {
+            resultSet.close();
+        }
+    }
+
+    private static Object copyLob(Object value) throws SQLException {
+        if (value instanceof Blob) {
+            final Blob blob = (Blob) value;
+            try {
+                return blob.getBytes(1, (int) blob.length());
+            } finally {
+                blob.free();
+            }
+        }
+        if (value instanceof Clob) {
+            // includes NClob
+            final Clob clob = (Clob) value;
+            try {
+                return clob.getSubString(1, (int) clob.length());
+            } finally {
+                clob.free();
+            }
+        }
+        return value;
+    }
+
+    /**
+     * @return a new cursor over the rows
+     */
+    MockResultSet toResultSet() {
+        final MockResultSet resultSet = new ConvertingMockResultSet("x");
+        for (int i = 0; i < columns.size(); i++) {
+            final List<Object> values = new ArrayList<>(rows.size());
+            for (Object[] row : rows) {
+                values.add(row[i]);
+            }
+            resultSet.addColumn(columns.get(i), values);
+        }
+        return resultSet;
+    }
+
+    /**
+     * Compare the database's result to the stub server's answer. Column labels are compared case-insensitively,
+     * values by the database value's type, e.g. numbers by value.
+     *
+     * @return the first difference, null if the results are equal
+     */
+    String diff(MaterializedResult stub) throws SQLException {
+        if (!equalsIgnoreCase(columns, stub.columns)) {
+            return "columns " + columns + " != " + stub.columns;
+        }
+        for (int r = 0; r < Math.min(rows.size(), stub.rows.size()); r++) {
+            for (int c = 0; c < columns.size(); c++) {
+                final Object expected = rows.get(r)[c];
+                final Object actual = stub.rows.get(r)[c];
+                if (!valueEquals(expected, actual)) {
+                    return "row " + (r + 1) + ", column " + columns.get(c) + ": database " + format(expected) + " != stub " + format(actual);
+                }
+            }
+        }
+        if (rows.size() != stub.rows.size()) {
+            return "database returned " + rows.size() + " rows, stub " + stub.rows.size();
+        }
+        return null;
+    }
+
+    private static boolean equalsIgnoreCase(List<String> a, List<String> b) {
+        if (a.size() != b.size()) {
+            return false;
+        }
+        for (int i = 0; i < a.size(); i++) {
+            if (!a.get(i).equalsIgnoreCase(b.get(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    static boolean valueEquals(Object database, Object stub) throws SQLException {
+        if (database == null || stub == null) {
+            return database == stub;
+        }
+        if (stub instanceof StreamingLob) {
+            final StreamingLob lob = (StreamingLob) stub;
+            return database instanceof byte[] ? Arrays.equals((byte[]) database, lob.getBytes()) : database.toString().equals(lob.getString());
+        }
+        final String text = stub.toString();
+        try {
+            if (database instanceof Number) {
+                return new BigDecimal(database.toString()).compareTo(new BigDecimal(text.trim())) == 0;
+            }
+            if (database instanceof Boolean) {
+                return database.equals(Boolean.valueOf(text.trim()) || "1".equals(text.trim()));
+            }
+            if (database instanceof Timestamp) {
+                return database.equals(Timestamp.valueOf(text.trim()));
+            }
+            if (database instanceof Date) {
+                return database.toString().equals(Date.valueOf(text.trim()).toString());
+            }
+            if (database instanceof Time) {
+                return database.toString().equals(Time.valueOf(text.trim()).toString());
+            }
+        } catch (IllegalArgumentException e) {
+            // not parseable as the database's type
+            return false;
+        }
+        return Objects.equals(database.toString(), text);
+    }
+
+    private static String format(Object value) {
+        return value == null ? "NULL" : "'" + value + "'";
+    }
+}
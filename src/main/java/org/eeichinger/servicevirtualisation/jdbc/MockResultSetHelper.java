@@ -1,14 +1,20 @@
 package org.eeichinger.servicevirtualisation.jdbc;
 
+import java.io.IOException;
+import java.io.Reader;
 import java.io.StringReader;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 
 import com.mockrunner.base.NestedApplicationException;
 import com.mockrunner.mock.jdbc.MockResultSet;
+import lombok.SneakyThrows;
 import org.jdom.Document;
 import org.jdom.Element;
 import org.jdom.Namespace;
@@ -20,6 +26,11 @@ import org.jdom.input.SAXBuilder;
  */
 public class MockResultSetHelper {
 
+    /**
+     * The default size of a response body from which on its result set is parsed in parallel (4MiB).
+     */
+    public static final int DEFAULT_PARALLEL_PARSE_THRESHOLD = 4 << 20;
+
     /**
      * Parse a MockResultSet from the provided Sybase-style formatted XML Document.
      * See <a href="http://dcx.sybase.com/1200/en/dbusage/xmldraftchapter-s-3468454.html">Sybase - Using FOR XML RAW</a> documentation and
@@ -37,50 +48,285 @@ public class MockResultSetHelper {
      * </resultset>
      * }</pre>
      */
-    @SuppressWarnings({"rawtypes", "unchecked"})
     public static MockResultSet parseResultSetFromSybaseXmlString(String id, String xml) {
-        MockResultSet resultSet = new MockResultSet(id);
+        return parseResultSetFromSybaseXml(id, new StringReader(xml));
+    }
+
+    /**
+     * Parse a MockResultSet from the provided Sybase-style formatted XML Document, reading it from the given reader,
+     * e.g. while it is being decompressed. Typed values are converted on first access and memoized, see
+     * {@link ConvertingMockResultSet}.
+     *
+     * @see #parseResultSetFromSybaseXmlString(String, String)
+     */
+    public static MockResultSet parseResultSetFromSybaseXml(String id, Reader xml) {
+        return parseResultSetFromSybaseXml(id, xml, StreamingLob.DEFAULT_SPOOL_THRESHOLD);
+    }
+
+    /**
+     * Parse a MockResultSet from the provided Sybase-style formatted XML Document. Cells marked
+     * {@code encoding="base64"} are large objects, see {@link StreamingLob}.
+     *
+     * @param lobSpoolThreshold the size of encoded large objects in characters above which they are spooled to a
+     * temporary file, -1 to never spool
+     * @see #parseResultSetFromSybaseXmlString(String, String)
+     */
+    public static MockResultSet parseResultSetFromSybaseXml(String id, Reader xml, int lobSpoolThreshold) {
+        MockResultSet resultSet = new ConvertingMockResultSet(id);
         SAXBuilder builder = new SAXBuilder();
         Document doc;
 
         try {
-            doc = builder.build(new StringReader(xml));
+            doc = builder.build(xml);
 
-            List<String> columnNames = parseColumnNames(resultSet, doc.getRootElement());
+            List<String> columnNames = parseColumnNames(doc.getRootElement());
 
             Element root = doc.getRootElement();
-            List<Element> rows = root.getChildren("row");
-            for (Element currentRow : rows) {
-                List<Element> columns = (List<Element>) currentRow.getChildren();
-                DatabaseRow rowValues = new DatabaseRow(columnNames);
-                for (Element col : columns) {
-                    rowValues.add(col);
-                }
-                resultSet.addRow(rowValues.toRowValues());
-            }
+            addColumns(resultSet, columnNames, parseRows(root, columnNames, lobSpoolThreshold));
         } catch (Exception exc) {
             throw new NestedApplicationException("Failure while reading from XML file", exc);
         }
         return resultSet;
     }
 
+    /**
+     * Parse a MockResultSet from the provided Sybase-style formatted XML Document. Documents of at least
+     * {@code parallelThreshold} characters are split into chunks of rows, which are parsed in parallel on the
+     * common {@link ForkJoinPool}. The rows keep their order.
+     *
+     * @param lobSpoolThreshold see {@link #parseResultSetFromSybaseXml(String, Reader, int)}
+     * @param parallelThreshold the size of the document in characters from which on it is parsed in parallel, -1 to
+     * always parse on the calling thread
+     * @see #parseResultSetFromSybaseXmlString(String, String)
+     */
+    public static MockResultSet parseResultSetFromSybaseXmlString(String id, String xml, int lobSpoolThreshold, int parallelThreshold) {
+        final int parallelism = ForkJoinPool.getCommonPoolParallelism();
+        if (parallelThreshold < 0 || xml.length() < parallelThreshold || parallelism < 2) {
+            return parseResultSetFromSybaseXml(id, new StringReader(xml), lobSpoolThreshold);
+        }
+        final RowChunks chunks = RowChunks.split(xml, parallelism * 4);
+        if (chunks == null) {
+            return parseResultSetFromSybaseXml(id, new StringReader(xml), lobSpoolThreshold);
+        }
+
+        MockResultSet resultSet = new ConvertingMockResultSet(id);
+        try {
+            // the header contains the column list or the first row to determine the columns from
+            Document header = new SAXBuilder().build(new StringReader(chunks.getHeader()));
+            List<String> columnNames = parseColumnNames(header.getRootElement());
+
+            List<List<Object>> rows = IntStream.range(0, chunks.size())
+                .parallel()
+                .mapToObj(i -> parseChunk(chunks.getChunk(i), columnNames, lobSpoolThreshold))
+                .flatMap(List::stream)
+                .collect(Collectors.toList());
+            addColumns(resultSet, columnNames, rows);
+        } catch (Exception exc) {
+            throw new NestedApplicationException("Failure while reading from XML file", exc);
+        }
+        return resultSet;
+    }
+
+    /**
+     * Parse the result set contained in the response body, in parallel if the body as received has at least
+     * {@code parallelThreshold} bytes.
+     */
+    static MockResultSet parseResultSet(StubResponse response, int lobSpoolThreshold, int parallelThreshold) throws IOException {
+        if (parallelThreshold >= 0 && response.getRawBody().length >= parallelThreshold) {
+            return parseResultSetFromSybaseXmlString("x", response.getBodyAsString(), lobSpoolThreshold, 0);
+        }
+        // decompress while parsing
+        try (Reader reader = response.openBodyReader()) {
+            return parseResultSetFromSybaseXml("x", reader, lobSpoolThreshold);
+        }
+    }
+
+    /**
+     * Add the rows column by column, as {@link MockResultSet#addRow(List)} copies all rows added before.
+     */
+    private static void addColumns(MockResultSet resultSet, List<String> columnNames, List<List<Object>> rows) {
+        for (int i = 0; i < columnNames.size(); i++) {
+            final List<Object> values = new ArrayList<>(rows.size());
+            for (List<Object> row : rows) {
+                values.add(row.get(i));
+            }
+            resultSet.addColumn(columnNames.get(i), values);
+        }
+    }
+
+    @SneakyThrows
+    private static List<List<Object>> parseChunk(String chunk, List<String> columnNames, int lobSpoolThreshold) {
+        Document doc = new SAXBuilder().build(new StringReader(chunk));
+        return parseRows(doc.getRootElement(), columnNames, lobSpoolThreshold);
+    }
+
+    private static List<List<Object>> parseRows(Element root, List<String> columnNames, int lobSpoolThreshold) throws IOException {
+        List<Element> rows = cast(root.getChildren("row"), Element.class);
+        List<List<Object>> result = new ArrayList<>(rows.size());
+        for (Element currentRow : rows) {
+            DatabaseRow rowValues = new DatabaseRow(columnNames, lobSpoolThreshold);
+            for (Element col : cast(currentRow.getChildren(), Element.class)) {
+                rowValues.add(col);
+            }
+            result.add(rowValues.toRowValues());
+        }
+        return result;
+    }
+
+    /**
+     * A document split into chunks of rows. Each chunk is a document of its own, consisting of the root element
+     * and some of its rows.
+     */
+    private static class RowChunks {
+        final String xml;
+        final String rootStartTag;
+        final String rootEndTag;
+        final String header;
+        final List<Integer> offsets;
+
+        RowChunks(String xml, String rootStartTag, String rootEndTag, String header, List<Integer> offsets) {
+            this.xml = xml;
+            this.rootStartTag = rootStartTag;
+            this.rootEndTag = rootEndTag;
+            this.header = header;
+            this.offsets = offsets;
+        }
+
+        /**
+         * @return the chunks, null if the document can't be split (e.g. because it declares a DTD)
+         */
+        static RowChunks split(String xml, int maxChunks) {
+            int depth = 0;
+            int rootStart = -1;
+            int rootStartEnd = -1;
+            String rootName = null;
+            int rootEnd = -1;
+            final List<Integer> rowStarts = new ArrayList<>();
+            int i = 0;
+            while (rootEnd < 0 && (i = xml.indexOf('<', i)) >= 0) {
+                if (xml.startsWith("<!--", i)) {
+                    i = skipPast(xml, "-->", i + 4);
+                } else if (xml.startsWith("<![CDATA[", i)) {
+                    i = skipPast(xml, "]]>", i + 9);
+                } else if (xml.startsWith("<?", i)) {
+                    i = skipPast(xml, "?>", i + 2);
+                } else if (xml.startsWith("<!", i)) {
+                    // DOCTYPE, entities wouldn't be resolved in chunks
+                    return null;
+                } else {
+                    final int end = findTagEnd(xml, i);
+                    if (end < 0) {
+                        return null;
+                    }
+                    if (xml.charAt(i + 1) == '/') {
+                        if (--depth == 0) {
+                            rootEnd = i;
+                        }
+                    } else {
+                        if (depth == 0) {
+                            rootStart = i;
+                            rootStartEnd = end + 1;
+                            rootName = getTagName(xml, i + 1);
+                        } else if (depth == 1 && getTagName(xml, i + 1).equals("row")) {
+                            rowStarts.add(i);
+                        }
+                        if (xml.charAt(end - 1) != '/') {
+                            depth++;
+                        }
+                    }
+                    i = end + 1;
+                }
+                if (i < 0) {
+                    return null;
+                }
+            }
+            if (rootEnd < 0 || rowStarts.size() < 2) {
+                return null;
+            }
+
+            final int targetSize = Math.max(1, (rootEnd - rowStarts.get(0)) / maxChunks);
+            final List<Integer> offsets = new ArrayList<>();
+            offsets.add(rowStarts.get(0));
+            for (int row : rowStarts) {
+                if (row - offsets.get(offsets.size() - 1) >= targetSize) {
+                    offsets.add(row);
+                }
+            }
+            offsets.add(rootEnd);
+
+            final String rootEndTag = "</" + rootName + ">";
+            final String header = xml.substring(0, rowStarts.get(1)) + rootEndTag;
+            return new RowChunks(xml, xml.substring(rootStart, rootStartEnd), rootEndTag, header, offsets);
+        }
+
+        int size() {
+            return offsets.size() - 1;
+        }
+
+        String getHeader() {
+            return header;
+        }
+
+        String getChunk(int index) {
+            final String rows = xml.substring(offsets.get(index), offsets.get(index + 1));
+            return new StringBuilder(rootStartTag.length() + rows.length() + rootEndTag.length())
+                .append(rootStartTag).append(rows).append(rootEndTag)
+                .toString();
+        }
+
+        private static int skipPast(String xml, String terminator, int from) {
+            final int end = xml.indexOf(terminator, from);
+            return end < 0 ? -1 : end + terminator.length();
+        }
+
+        /**
+         * @return the index of the tag's closing '>', skipping quoted attribute values
+         */
+        private static int findTagEnd(String xml, int start) {
+            char quote = 0;
+            for (int i = start + 1; i < xml.length(); i++) {
+                final char c = xml.charAt(i);
+                if (quote != 0) {
+                    if (c == quote) {
+                        quote = 0;
+                    }
+                } else if (c == '"' || c == '\'') {
+                    quote = c;
+                } else if (c == '>') {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        private static String getTagName(String xml, int start) {
+            int end = start;
+            while (end < xml.length() && !Character.isWhitespace(xml.charAt(end)) && xml.charAt(end) != '>' && xml.charAt(end) != '/') {
+                end++;
+            }
+            return xml.substring(start, end);
+        }
+    }
+
     private static class DatabaseRow {
         final List<String> colNames;
-        final Map<String, String> namedValues;
-        final String[] positionalValues;
+        final Map<String, Object> namedValues;
+        final Object[] positionalValues;
+        final int lobSpoolThreshold;
 
         int colCount;
 
-        public DatabaseRow(List<String> colNames) {
+        public DatabaseRow(List<String> colNames, int lobSpoolThreshold) {
             this.colNames = colNames;
             this.colCount = 0;
             this.namedValues = new HashMap<>();
-            this.positionalValues = new String[this.colNames.size()];
+            this.positionalValues = new Object[this.colNames.size()];
+            this.lobSpoolThreshold = lobSpoolThreshold;
         }
 
-        public void add(Element col) {
+        public void add(Element col) throws IOException {
             String name = getElementName(col);
-            String val = getNilableElementText(col);
+            Object val = getNilableElementValue(col, lobSpoolThreshold);
             if (colNames.contains(name)) {
                 namedValues.put(name, val);
             } else {
@@ -93,7 +339,7 @@ public class MockResultSetHelper {
             List<Object> vals = new ArrayList<>(this.colNames.size());
             for(int i=0;i<colNames.size();i++) {
                 String colName = colNames.get(i);
-                String colValue;
+                Object colValue;
                 if (namedValues.containsKey(colName)) {
                     colValue = namedValues.get(colName);
                 } else {
@@ -105,30 +351,28 @@ public class MockResultSetHelper {
         }
     }
 
-    private static String getNilableElementText(Element col) {
-        String val = col.getText();
+    private static Object getNilableElementValue(Element col, int lobSpoolThreshold) throws IOException {
         if ("true".equalsIgnoreCase(col.getAttributeValue("nil", nsXsi))) {
-            val = null;
+            return null;
+        }
+        if ("base64".equalsIgnoreCase(col.getAttributeValue("encoding"))) {
+            return StreamingLob.fromBase64(col.getText(), lobSpoolThreshold);
         }
-        return val;
+        return col.getText();
     }
 
-    private static List<String> parseColumnNames(MockResultSet resultSet, Element root) {
+    private static List<String> parseColumnNames(Element root) {
         // determine columns
         Element colsHeaderRow = root.getChild("cols");
         List<String> colNames = new ArrayList<>();
         if (colsHeaderRow != null) {
             for(Element col : cast(colsHeaderRow.getChildren("col"), Element.class)) {
-                final String colName = col.getText();
-                resultSet.addColumn(colName);
-                colNames.add(colName);
+                colNames.add(col.getText());
             }
         } else {
             Element headerRow = cast(root.getChildren("row"), Element.class).get(0);
             for(Element col : cast(headerRow.getChildren(), Element.class)) {
-                String colName = getElementName(col);
-                resultSet.addColumn(colName);
-                colNames.add(colName);
+                colNames.add(getElementName(col));
             }
         }
         return Collections.unmodifiableList(colNames);
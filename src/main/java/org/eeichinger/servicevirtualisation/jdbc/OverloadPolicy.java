@@ -0,0 +1,25 @@
+package org.eeichinger.servicevirtualisation.jdbc;
+
+/**
+ * Determines what happens to a request exceeding the {@link ConcurrencyLimitPolicy concurrency limit} towards the
+ * stub server.
+ */
+public enum OverloadPolicy {
+
+    /**
+     * Wait for a request in flight to complete, at most the factory's timeout if one is configured.
+     */
+    QUEUE,
+
+    /**
+     * Fail the statement right away with an {@link java.io.IOException}.
+     */
+    FAIL_FAST,
+
+    /**
+     * Pass the statement through to the underlying statement, as if the stub server didn't answer it. Meant for
+     * spied DataSources, statements of mock DataSources have no database to pass through to and fail like
+     * {@link #FAIL_FAST}.
+     */
+    PASS_THROUGH
+}
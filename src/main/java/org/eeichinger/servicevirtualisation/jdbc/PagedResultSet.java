@@ -0,0 +1,155 @@
+package org.eeichinger.servicevirtualisation.jdbc;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * A forward-only {@link ResultSet} spanning several pages returned by the stub server. The next page is only
+ * requested once the caller iterated past the last row of the current page, so callers reading only the first
+ * few rows don't pay for the remaining ones.
+ * <p>
+ * The stub server indicates that there are more rows by returning a continuation token in the
+ * {@link #CONTINUATION_HEADER} response header. To fetch the next page, the same request is sent again, this
+ * time including the token in the same header. Additionally, a statement's {@link java.sql.Statement#setMaxRows(int)
+ * maximum number of rows} is enforced across all pages.
+ * <p>
+ * All methods but navigation are delegated to the current page, i.e. {@link ResultSet#getMetaData()} reflects the
+ * current page.
+ */
+public class PagedResultSet implements InvocationHandler {
+
+    /**
+     * Returned by the stub server if there are more rows, sent back to the stub server to request them.
+     */
+    public static final String CONTINUATION_HEADER = "x-continuation";
+
+    /**
+     * A page of the result.
+     */
+    public static class Page {
+        private final ResultSet rows;
+        private final String continuation;
+
+        /**
+         * @param continuation the token to request the next page, null if this is the last page
+         */
+        public Page(ResultSet rows, String continuation) {
+            this.rows = rows;
+            this.continuation = continuation;
+        }
+
+        public ResultSet getRows() {
+            return rows;
+        }
+
+        public String getContinuation() {
+            return continuation;
+        }
+    }
+
+    /**
+     * Requests the page identified by a continuation token.
+     */
+    public interface PageFetcher {
+        Page fetch(String continuation) throws SQLException;
+    }
+
+    private final PageFetcher pageFetcher;
+    private final int maxRows;
+    private ResultSet current;
+    private String continuation;
+    private int row;
+    private boolean afterLast;
+    private boolean closed;
+
+    private PagedResultSet(Page firstPage, int maxRows, PageFetcher pageFetcher) {
+        this.current = firstPage.getRows();
+        this.continuation = firstPage.getContinuation();
+        this.maxRows = maxRows;
+        this.pageFetcher = pageFetcher;
+    }
+
+    /**
+     * @param firstPage the page returned with the response to the statement's execution
+     * @param maxRows the maximum number of rows to return in total, 0 for no limit
+     * @param pageFetcher requests further pages
+     */
+    public static ResultSet create(Page firstPage, int maxRows, PageFetcher pageFetcher) {
+        return (ResultSet) Proxy.newProxyInstance(
+            PagedResultSet.class.getClassLoader()
+            , new Class<?>[]{ResultSet.class}
+            , new PagedResultSet(firstPage, maxRows, pageFetcher)
+        );
+    }
+
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+        switch (method.getName()) {
+            case "next":
+                return next();
+            case "getRow":
+                return afterLast ? 0 : row;
+            case "isBeforeFirst":
+                return row == 0 && !afterLast;
+            case "isAfterLast":
+                return afterLast;
+            case "getType":
+                return ResultSet.TYPE_FORWARD_ONLY;
+            case "close":
+                close();
+                return null;
+            case "isClosed":
+                return closed;
+            case "equals":
+                return proxy == args[0];
+            case "hashCode":
+                return System.identityHashCode(proxy);
+            case "toString":
+                return "PagedResultSet{row=" + row + ", continuation=" + continuation + "}";
+            default:
+                break;
+        }
+        if (closed) {
+            throw new SQLException("result set is closed");
+        }
+        try {
+            return method.invoke(current, args);
+        } catch (InvocationTargetException e) {
+            throw e.getCause();
+        }
+    }
+
+    private boolean next() throws SQLException {
+        if (closed) {
+            throw new SQLException("result set is closed");
+        }
+        if (afterLast || (maxRows > 0 && row >= maxRows)) {
+            afterLast = true;
+            return false;
+        }
+        while (!current.next()) {
+            if (continuation == null) {
+                afterLast = true;
+                return false;
+            }
+            Page page = pageFetcher.fetch(continuation);
+            current.close();
+            current = page.getRows();
+            continuation = page.getContinuation();
+        }
+        row++;
+        return true;
+    }
+
+    private void close() throws SQLException {
+        if (!closed) {
+            closed = true;
+            continuation = null;
+            current.close();
+        }
+    }
+}
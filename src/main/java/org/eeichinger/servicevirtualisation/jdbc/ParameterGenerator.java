@@ -0,0 +1,40 @@
+package org.eeichinger.servicevirtualisation.jdbc;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Generates the value of a statement parameter for each execution by the {@link LoadGenerator}.
+ */
+public interface ParameterGenerator {
+
+    /**
+     * @param iteration the (0-based) number of the execution across all workers
+     * @return the parameter value to bind
+     */
+    Object next(long iteration);
+
+    static ParameterGenerator constant(Object value) {
+        return iteration -> value;
+    }
+
+    /**
+     * @return start, start+1, ... wrapping at start+count
+     */
+    static ParameterGenerator sequence(long start, long count) {
+        return iteration -> start + iteration % count;
+    }
+
+    /**
+     * @return uniformly distributed values in [min, max]
+     */
+    static ParameterGenerator randomLong(long min, long max) {
+        return iteration -> ThreadLocalRandom.current().nextLong(min, max + 1);
+    }
+
+    /**
+     * @return one of the given values, chosen uniformly at random
+     */
+    static ParameterGenerator oneOf(Object... values) {
+        return iteration -> values[ThreadLocalRandom.current().nextInt(values.length)];
+    }
+}
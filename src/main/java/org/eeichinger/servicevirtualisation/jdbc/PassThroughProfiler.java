@@ -0,0 +1,371 @@
+package org.eeichinger.servicevirtualisation.jdbc;
+
+import java.io.IOException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+/**
+ * Finds the statements passed through to the database most often and taking the most time, i.e. the statements
+ * worth virtualizing, see {@link JdbcServiceVirtualizationFactory#setPassThroughProfiler(PassThroughProfiler)}.
+ * <p>
+ * The statements are grouped by {@link SqlFingerprint fingerprint}. To bound memory regardless of the number of
+ * distinct statements, the top fingerprints by count and by time are each tracked by a space-saving sketch
+ * (Metwally et al.) of fixed capacity: a fingerprint not yet tracked replaces the one with the least weight,
+ * inheriting its weight as the maximum overestimation ({@link HeavyHitter#getError() error}). Any fingerprint whose
+ * share exceeds 1/capacity is guaranteed to be tracked, the counts of the top entries are exact as long as the
+ * number of distinct fingerprints doesn't exceed the capacity.
+ */
+public class PassThroughProfiler {
+
+    /**
+     * A tracked fingerprint.
+     */
+    public static final class HeavyHitter {
+        private final String fingerprint;
+        private final String sql;
+        private final long weight;
+        private final long count;
+        private final long totalNanos;
+        private final long error;
+        private final StubRequest sample;
+        private final List<String> columns;
+        private final Object updateCount;
+
+        HeavyHitter(String fingerprint, String sql, long weight, long count, long totalNanos, long error, StubRequest sample, List<String> columns, Object updateCount) {
+            this.fingerprint = fingerprint;
+            this.sql = sql;
+            this.weight = weight;
+            this.count = count;
+            this.totalNanos = totalNanos;
+            this.error = error;
+            this.sample = sample;
+            this.columns = columns;
+            this.updateCount = updateCount;
+        }
+
+        public String getFingerprint() {
+            return fingerprint;
+        }
+
+        /**
+         * @return the SQL of the most recent execution
+         */
+        public String getSql() {
+            return sql;
+        }
+
+        /**
+         * @return the number of executions since the fingerprint is tracked
+         */
+        public long getCount() {
+            return count;
+        }
+
+        public long getTotalMillis() {
+            return TimeUnit.NANOSECONDS.toMillis(totalNanos);
+        }
+
+        public long getMeanMicros() {
+            return count == 0 ? 0 : totalNanos / count / 1000;
+        }
+
+        /**
+         * @return the maximum the sketch's weight (count or nanoseconds) of this fingerprint overestimates its true
+         * weight, 0 if it was tracked since its first execution
+         */
+        public long getError() {
+            return error;
+        }
+
+        /**
+         * @return the most recent execution, e.g. to use its parameter values in a stub mapping
+         */
+        public StubRequest getSample() {
+            return sample;
+        }
+
+        /**
+         * @return the column labels of the query's result set, empty for updates
+         */
+        public List<String> getColumns() {
+            return columns;
+        }
+
+        @Override
+        public String toString() {
+            return "HeavyHitter{fingerprint='" + fingerprint + "', count=" + count + ", totalMillis=" + getTotalMillis()
+                + ", meanMicros=" + getMeanMicros() + (error != 0 ? ", error=" + error : "") + "}";
+        }
+    }
+
+    /**
+     * A space-saving sketch weighting each execution by a count or its duration.
+     */
+    private static class Sketch {
+        private static class Counter {
+            String sql;
+            long weight;
+            long error;
+            long count;
+            long totalNanos;
+            StubRequest sample;
+            List<String> columns;
+            Object updateCount;
+        }
+
+        private final int capacity;
+        private final boolean weightedByTime;
+        private final Lock lock = new ReentrantLock();
+        private final Map<String, Counter> counters;
+
+        Sketch(int capacity, boolean weightedByTime) {
+            this.capacity = capacity;
+            this.weightedByTime = weightedByTime;
+            this.counters = new HashMap<>(capacity * 4 / 3 + 1);
+        }
+
+        void record(StubRequest request, Object result, long nanos, List<String> columns) {
+            final long weight = weightedByTime ? nanos : 1L;
+            lock.lock();
+            try {
+                Counter counter = counters.get(request.getFingerprint());
+                if (counter == null) {
+                    counter = new Counter();
+                    if (counters.size() == capacity) {
+                        // only scanned when a new fingerprint shows up in a full sketch
+                        Map.Entry<String, Counter> min = null;
+                        for (Map.Entry<String, Counter> e : counters.entrySet()) {
+                            if (min == null || e.getValue().weight < min.getValue().weight) {
+                                min = e;
+                            }
+                        }
+                        counters.remove(min.getKey());
+                        counter.weight = min.getValue().weight;
+                        counter.error = min.getValue().weight;
+                    }
+                    counters.put(request.getFingerprint(), counter);
+                }
+                counter.weight += weight;
+                counter.count++;
+                counter.totalNanos += nanos;
+                counter.sql = request.getSql();
+                counter.sample = request;
+                counter.updateCount = result instanceof ResultSet ? null : result;
+                if (columns != null) {
+                    counter.columns = columns;
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        boolean contains(String fingerprint) {
+            lock.lock();
+            try {
+                return counters.containsKey(fingerprint);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        List<HeavyHitter> top(int n) {
+            final List<HeavyHitter> hitters;
+            lock.lock();
+            try {
+                hitters = new ArrayList<>(counters.size());
+                for (Map.Entry<String, Counter> e : counters.entrySet()) {
+                    final Counter c = e.getValue();
+                    hitters.add(new HeavyHitter(e.getKey(), c.sql, c.weight, c.count, c.totalNanos, c.error, c.sample
+                        , c.columns != null ? c.columns : Collections.<String>emptyList(), c.updateCount));
+                }
+            } finally {
+                lock.unlock();
+            }
+            hitters.sort(Comparator.comparingLong((HeavyHitter h) -> h.weight).reversed());
+            return hitters.subList(0, Math.min(n, hitters.size()));
+        }
+
+        void reset() {
+            lock.lock();
+            try {
+                counters.clear();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    private static final ObjectMapper objectMapper = new ObjectMapper().enable(SerializationFeature.INDENT_OUTPUT);
+
+    private final int capacity;
+    private final Sketch byCount;
+    private final Sketch byTime;
+
+    /**
+     * @param capacity the number of fingerprints tracked by count and by time each, should be several times the
+     * number of top entries of interest
+     */
+    public PassThroughProfiler(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be positive, got " + capacity);
+        }
+        this.capacity = capacity;
+        this.byCount = new Sketch(capacity, false);
+        this.byTime = new Sketch(capacity, true);
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Record a statement executed by the database.
+     *
+     * @param result the statement's result, its column labels are read once per tracked fingerprint
+     * @param elapsedNanos the time the database took to execute the statement
+     */
+    public void record(StubRequest request, Object result, long elapsedNanos) {
+        List<String> columns = null;
+        if (result instanceof ResultSet && !(byCount.contains(request.getFingerprint()) && byTime.contains(request.getFingerprint()))) {
+            columns = getColumns((ResultSet) result);
+        }
+        byCount.record(request, result, elapsedNanos, columns);
+        byTime.record(request, result, elapsedNanos, columns);
+    }
+
+    /**
+     * @return the fingerprints executed most often, most frequent first
+     */
+    public List<HeavyHitter> getTopByCount(int n) {
+        return byCount.top(n);
+    }
+
+    /**
+     * @return the fingerprints taking the most time in total, most expensive first
+     */
+    public List<HeavyHitter> getTopByTime(int n) {
+        return byTime.top(n);
+    }
+
+    public void reset() {
+        byCount.reset();
+        byTime.reset();
+    }
+
+    /**
+     * @return a report of the top fingerprints by time and by count
+     */
+    public String report(int n) {
+        final StringBuilder sb = new StringBuilder();
+        sb.append("top ").append(n).append(" pass-through statements by total time:\n");
+        appendReport(sb, getTopByTime(n));
+        sb.append("top ").append(n).append(" pass-through statements by count:\n");
+        appendReport(sb, getTopByCount(n));
+        return sb.toString();
+    }
+
+    private static void appendReport(StringBuilder sb, List<HeavyHitter> hitters) {
+        for (HeavyHitter h : hitters) {
+            sb.append(String.format("%8d ms %8d x %8d us  %s%n", h.getTotalMillis(), h.getCount(), h.getMeanMicros(), h.getSql()));
+        }
+    }
+
+    /**
+     * Write a WireMock stub mapping for each of the top fingerprints by time to the "mappings" directory of a WireMock
+     * root directory, matching the most recent execution's SQL and parameter values. The response bodies of queries
+     * are written to the "__files" directory and declare the columns only, to be completed with the expected rows.
+     * Updates answer the update count returned by the database. Requires Jackson on the classpath.
+     *
+     * @param rootDirectory the WireMock root directory, e.g. to be {@link StubMappings#load loaded}
+     * @param targetUrl the URL statements are sent to, e.g. {@code http://localhost:8080/sqlstub}
+     * @return the mapping files written
+     */
+    public List<Path> writeSuggestedStubMappings(Path rootDirectory, String targetUrl, int n) throws IOException {
+        final String path = new URL(targetUrl).getPath();
+        final Path mappingsDirectory = Files.createDirectories(rootDirectory.resolve("mappings"));
+        final Path filesDirectory = Files.createDirectories(rootDirectory.resolve("__files"));
+        final List<Path> written = new ArrayList<>();
+        final List<HeavyHitter> hitters = getTopByTime(n);
+        for (int i = 0; i < hitters.size(); i++) {
+            final HeavyHitter h = hitters.get(i);
+            final String name = String.format("passthrough-%03d-%s", i + 1, Integer.toHexString(h.getFingerprint().hashCode()));
+            final ObjectNode mapping = objectMapper.createObjectNode();
+            final ObjectNode request = mapping.putObject("request");
+            request.put("method", "POST");
+            request.put("url", path);
+            request.putArray("bodyPatterns").addObject().put("equalTo", h.getSql());
+            final ObjectNode headers = request.putObject("headers");
+            for (Map.Entry<Integer, Object> e : h.getSample().getParameterValues().entrySet()) {
+                headers.putObject(StubRequest.getParameterHeaderName(e.getKey())).put("equalTo", Objects.toString(e.getValue()));
+            }
+            final ObjectNode response = mapping.putObject("response");
+            response.put("status", 200);
+            if (h.updateCount != null) {
+                response.put("body", h.updateCount instanceof int[] ? joinUpdateCounts((int[]) h.updateCount) : h.updateCount.toString());
+            } else {
+                Files.write(filesDirectory.resolve(name + ".xml"), suggestResultSet(h.getColumns()).getBytes(StandardCharsets.UTF_8));
+                response.put("bodyFileName", name + ".xml");
+            }
+            final Path file = mappingsDirectory.resolve(name + ".json");
+            objectMapper.writeValue(file.toFile(), mapping);
+            written.add(file);
+        }
+        return written;
+    }
+
+    private static String joinUpdateCounts(int[] updateCounts) {
+        final String s = Arrays.toString(updateCounts);
+        return s.substring(1, s.length() - 1).replace(" ", "");
+    }
+
+    private static String suggestResultSet(List<String> columns) {
+        final StringBuilder sb = new StringBuilder("<resultset>\n    <cols>");
+        for (String column : columns) {
+            sb.append("<col>").append(escapeXml(column)).append("</col>");
+        }
+        return sb.append("</cols>\n    <!-- <row><val>...</val></row> -->\n</resultset>\n").toString();
+    }
+
+    private static String escapeXml(String text) {
+        return text.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;");
+    }
+
+    private static List<String> getColumns(ResultSet resultSet) {
+        try {
+            final ResultSetMetaData metaData = resultSet.getMetaData();
+            final List<String> columns = new ArrayList<>(metaData.getColumnCount());
+            for (int i = 1; i <= metaData.getColumnCount(); i++) {
+                columns.add(metaData.getColumnLabel(i));
+            }
+            return Collections.unmodifiableList(columns);
+        } catch (SQLException e) {
+            // metadata is a nice-to-have
+            return Collections.emptyList();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "PassThroughProfiler{capacity=" + capacity + ", topByTime=" + getTopByTime(3) + "}";
+    }
+}
@@ -0,0 +1,33 @@
+package org.eeichinger.servicevirtualisation.jdbc;
+
+import java.io.IOException;
+
+/**
+ * Answers requests matching a preloaded {@link StubMappings stub mapping} from memory, passing all other requests
+ * on to the stub server.
+ */
+public class PreloadingStubClient implements StubClient {
+
+    private final StubClient delegate;
+    private final StubMappings mappings;
+
+    public PreloadingStubClient(StubClient delegate, StubMappings mappings) {
+        this.delegate = delegate;
+        this.mappings = mappings;
+    }
+
+    public StubMappings getMappings() {
+        return mappings;
+    }
+
+    @Override
+    public StubResponse execute(StubRequest request) throws IOException {
+        final StubResponse response = mappings.match(request);
+        return response != null ? response : delegate.execute(request);
+    }
+
+    @Override
+    public void close() throws IOException {
+        delegate.close();
+    }
+}
@@ -0,0 +1,144 @@
+package org.eeichinger.servicevirtualisation.jdbc;
+
+import java.sql.PreparedStatement;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Caches the per-SQL state ({@link EncodedSql}) and the proxies of prepared statements, so preparing the same
+ * statement over and over again doesn't create a new proxy, invocation handler and fingerprint each time (see
+ * {@link JdbcServiceVirtualizationFactory#setPreparedStatementCacheSize(int)}).
+ * <p>
+ * Proxies are cached by the identity of the statement they wrap, so a proxy is only reused if the underlying
+ * connection hands out the same statement again. Mock connections keep closed statements for reuse, for spied
+ * DataSources this requires a connection pool caching prepared statements. Both caches evict the least recently
+ * used entries once the maximum number of entries is reached.
+ * <p>
+ * Since a proxy may be handed out again once closed, callers get a {@link CheckoutHandle} on the proxy, so closing a
+ * statement twice doesn't reset it while another caller uses it.
+ */
+public class PreparedStatementCache {
+
+    /**
+     * A proxy along with the state used by its invocation handler.
+     */
+    static class CachedProxy {
+        final PreparedStatement proxy;
+        final JdbcServiceVirtualizationFactory.PreparedStatementInformation information;
+
+        CachedProxy(PreparedStatement proxy, JdbcServiceVirtualizationFactory.PreparedStatementInformation information) {
+            this.proxy = proxy;
+            this.information = information;
+        }
+    }
+
+    /**
+     * Compares the wrapped statements by identity, independent of the driver's equals() implementation.
+     */
+    private static final class IdentityKey {
+        final Object ref;
+        final int hash;
+
+        IdentityKey(Object ref) {
+            this.ref = ref;
+            this.hash = System.identityHashCode(ref);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof IdentityKey && ((IdentityKey) o).ref == ref;
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    private final int maxEntries;
+    private final Lock lock = new ReentrantLock();
+    private final LinkedHashMap<String, EncodedSql> encodedSql;
+    private final LinkedHashMap<IdentityKey, CachedProxy> proxies;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    public PreparedStatementCache(int maxEntries) {
+        if (maxEntries < 1) {
+            throw new IllegalArgumentException("maxEntries must be positive");
+        }
+        this.maxEntries = maxEntries;
+        this.encodedSql = new LinkedHashMap<String, EncodedSql>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, EncodedSql> eldest) {
+                return size() > PreparedStatementCache.this.maxEntries;
+            }
+        };
+        this.proxies = new LinkedHashMap<IdentityKey, CachedProxy>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<IdentityKey, CachedProxy> eldest) {
+                return size() > PreparedStatementCache.this.maxEntries;
+            }
+        };
+    }
+
+    public int getMaxEntries() {
+        return maxEntries;
+    }
+
+    /**
+     * @return the cached encodings of the given SQL, computing them on first use
+     */
+    public EncodedSql encode(String sql) {
+        lock.lock();
+        try {
+            EncodedSql result = encodedSql.get(sql);
+            if (result == null) {
+                result = EncodedSql.of(sql);
+                encodedSql.put(sql, result);
+            }
+            return result;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    CachedProxy getProxy(PreparedStatement statement) {
+        final IdentityKey key = new IdentityKey(statement);
+        final CachedProxy cached;
+        lock.lock();
+        try {
+            cached = proxies.get(key);
+        } finally {
+            lock.unlock();
+        }
+        if (cached != null) {
+            hits.increment();
+        } else {
+            misses.increment();
+        }
+        return cached;
+    }
+
+    void putProxy(PreparedStatement statement, CachedProxy proxy) {
+        lock.lock();
+        try {
+            proxies.put(new IdentityKey(statement), proxy);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the number of prepared statements answered by a cached proxy
+     */
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+}
@@ -0,0 +1,151 @@
+package org.eeichinger.servicevirtualisation.jdbc;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.sql.ResultSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.mockrunner.mock.jdbc.MockResultSet;
+
+/**
+ * Caches parsed result sets, so stub responses with identical bodies (e.g. fixtures shared by several mappings)
+ * are only parsed once.
+ * <p>
+ * Responses are identified by a SHA-256 digest of the body as received (i.e. before decompression), combined with
+ * their "ETag" header if present. Only the digest is kept, not the body. The cached result sets are read-only
+ * templates, each caller gets an independent cursor ({@link MockResultSet#shallowCopy()}) sharing the template's
+ * rows. The least recently used templates are evicted once the maximum number of entries is reached.
+ */
+public class ResultSetTemplateCache {
+
+    private final int maxEntries;
+    private final int lobSpoolThreshold;
+    private final int parallelParseThreshold;
+    private final Lock lock = new ReentrantLock();
+    private final LinkedHashMap<String, MockResultSet> templates;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    public ResultSetTemplateCache(int maxEntries) {
+        this(maxEntries, StreamingLob.DEFAULT_SPOOL_THRESHOLD);
+    }
+
+    /**
+     * @param lobSpoolThreshold see {@link MockResultSetHelper#parseResultSetFromSybaseXml(String, Reader, int)}
+     */
+    public ResultSetTemplateCache(int maxEntries, int lobSpoolThreshold) {
+        this(maxEntries, lobSpoolThreshold, MockResultSetHelper.DEFAULT_PARALLEL_PARSE_THRESHOLD);
+    }
+
+    /**
+     * @param lobSpoolThreshold see {@link MockResultSetHelper#parseResultSetFromSybaseXml(String, Reader, int)}
+     * @param parallelParseThreshold the size of a response body in bytes from which on it is parsed in parallel, see
+     * {@link MockResultSetHelper#parseResultSetFromSybaseXmlString(String, String, int, int)}
+     */
+    public ResultSetTemplateCache(int maxEntries, int lobSpoolThreshold, int parallelParseThreshold) {
+        if (maxEntries < 1) {
+            throw new IllegalArgumentException("maxEntries must be positive");
+        }
+        this.maxEntries = maxEntries;
+        this.lobSpoolThreshold = lobSpoolThreshold;
+        this.parallelParseThreshold = parallelParseThreshold;
+        this.templates = new LinkedHashMap<String, MockResultSet>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, MockResultSet> eldest) {
+                return size() > ResultSetTemplateCache.this.maxEntries;
+            }
+        };
+    }
+
+    /**
+     * @return a new cursor over the result set contained in the response, parsing the body only if no template
+     * for an identical body is cached
+     */
+    public MockResultSet getResultSet(StubResponse response) throws IOException {
+        final String etag = response.getHeader("ETag");
+        final String key = (etag != null ? etag + ":" : "") + digest(response.getRawBody()) + ":" + response.getContentEncoding();
+
+        final MockResultSet template;
+        lock.lock();
+        try {
+            template = templates.get(key);
+        } finally {
+            lock.unlock();
+        }
+        if (template != null) {
+            hits.increment();
+            return template.shallowCopy();
+        }
+
+        misses.increment();
+        // parsing is done outside the lock, concurrent misses for the same body parse it more than once
+        final MockResultSet resultSet = MockResultSetHelper.parseResultSet(response, lobSpoolThreshold, parallelParseThreshold);
+        resultSet.setResultSetConcurrency(ResultSet.CONCUR_READ_ONLY);
+        lock.lock();
+        try {
+            templates.put(key, resultSet);
+        } finally {
+            lock.unlock();
+        }
+        return resultSet.shallowCopy();
+    }
+
+    public int getMaxEntries() {
+        return maxEntries;
+    }
+
+    public int getLobSpoolThreshold() {
+        return lobSpoolThreshold;
+    }
+
+    public int getParallelParseThreshold() {
+        return parallelParseThreshold;
+    }
+
+    public int size() {
+        lock.lock();
+        try {
+            return templates.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public void clear() {
+        lock.lock();
+        try {
+            templates.clear();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static String digest(byte[] body) {
+        final MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            // every Java platform supports SHA-256
+            throw new IllegalStateException(e);
+        }
+        final StringBuilder sb = new StringBuilder(64);
+        for (byte b : digest.digest(body)) {
+            sb.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,19 @@
+package org.eeichinger.servicevirtualisation.jdbc;
+
+/**
+ * Determines which result a query executed in shadow mode returns, see
+ * {@link JdbcServiceVirtualizationFactory#setShadowPolicy(ShadowPolicy)}.
+ */
+public enum ShadowPolicy {
+
+    /**
+     * Return the database's result, the stub server's answer is compared in the background.
+     */
+    DATABASE,
+
+    /**
+     * Return the stub server's answer, as if not shadowing. Falls back to the database's result for queries the stub
+     * server passes through.
+     */
+    STUB
+}
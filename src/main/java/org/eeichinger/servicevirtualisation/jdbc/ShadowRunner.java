@@ -0,0 +1,187 @@
+package org.eeichinger.servicevirtualisation.jdbc;
+
+import java.io.Closeable;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import lombok.SneakyThrows;
+
+/**
+ * Executes a query against both the stub server and the database concurrently, compares their results and returns
+ * one of them according to the {@link ShadowPolicy}. The database is queried on the calling thread, as JDBC
+ * connections aren't meant to be shared between threads, the stub server on a separate thread.
+ * <p>
+ * At most {@link #MAX_STUB_THREADS} queries are sent to the stub server concurrently. Beyond that,
+ * {@link ShadowPolicy#DATABASE} skips the comparison and {@link ShadowPolicy#STUB} queries the stub server on the
+ * calling thread once the database answered.
+ */
+final class ShadowRunner implements Closeable {
+
+    static final int MAX_STUB_THREADS = 16;
+
+    /**
+     * The stub server's answer to a query.
+     */
+    private static class StubOutcome {
+        final long nanos;
+        final MaterializedResult result;
+        final SQLException error;
+        final boolean unmatched;
+        final Throwable failure;
+
+        StubOutcome(long nanos, MaterializedResult result, SQLException error, boolean unmatched, Throwable failure) {
+            this.nanos = nanos;
+            this.result = result;
+            this.error = error;
+            this.unmatched = unmatched;
+            this.failure = failure;
+        }
+    }
+
+    private final JdbcServiceVirtualizationFactory factory;
+    private final ShadowPolicy policy;
+    private final ConcurrentMap<String, ShadowStatistics> statistics;
+    private final ThreadPoolExecutor executor;
+
+    ShadowRunner(JdbcServiceVirtualizationFactory factory, ShadowPolicy policy, ConcurrentMap<String, ShadowStatistics> statistics) {
+        this.factory = factory;
+        this.policy = policy;
+        this.statistics = statistics;
+        final AtomicInteger threadCount = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(0, MAX_STUB_THREADS
+            , 60, TimeUnit.SECONDS
+            , new SynchronousQueue<Runnable>()
+            , r -> {
+                Thread t = new Thread(r, "stub-shadow-" + threadCount.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            });
+    }
+
+    ShadowPolicy getPolicy() {
+        return policy;
+    }
+
+    @SneakyThrows
+    Object execute(JdbcServiceVirtualizationFactory.PreparedStatementInformation preparedStatementInformation, StubRequest request, Object underlying, Method method, Object[] args) {
+        CompletableFuture<StubOutcome> stub;
+        try {
+            stub = CompletableFuture.supplyAsync(() -> queryStub(preparedStatementInformation, request, method), executor);
+        } catch (RejectedExecutionException e) {
+            // all stub threads busy
+            stub = null;
+        }
+
+        final long start = System.nanoTime();
+        MaterializedResult database = null;
+        Throwable databaseError = null;
+        try {
+            database = MaterializedResult.of((ResultSet) method.invoke(underlying, args));
+        } catch (InvocationTargetException e) {
+            databaseError = e.getCause();
+        } catch (SQLException e) {
+            databaseError = e;
+        }
+        final long databaseNanos = System.nanoTime() - start;
+
+        if (policy == ShadowPolicy.DATABASE) {
+            final MaterializedResult databaseResult = database;
+            final Throwable databaseFailure = databaseError;
+            if (stub != null) {
+                stub.thenAccept(outcome -> record(request, outcome, databaseResult, databaseFailure, databaseNanos));
+            } else {
+                getStatistics(request).recordSkipped();
+            }
+            if (databaseError != null) {
+                throw databaseError;
+            }
+            return database.toResultSet();
+        }
+
+        final StubOutcome outcome;
+        if (stub == null) {
+            outcome = queryStub(preparedStatementInformation, request, method);
+        } else {
+            try {
+                outcome = stub.join();
+            } catch (CompletionException e) {
+                throw e.getCause();
+            }
+        }
+        record(request, outcome, database, databaseError, databaseNanos);
+        if (outcome.failure != null) {
+            throw outcome.failure;
+        }
+        if (outcome.error != null) {
+            throw outcome.error;
+        }
+        if (outcome.unmatched) {
+            if (databaseError != null) {
+                throw databaseError;
+            }
+            return database.toResultSet();
+        }
+        return outcome.result.toResultSet();
+    }
+
+    private StubOutcome queryStub(JdbcServiceVirtualizationFactory.PreparedStatementInformation preparedStatementInformation, StubRequest request, Method method) {
+        final long start = System.nanoTime();
+        try {
+            final StubResponse response = factory.sendStubRequest(request);
+            if (response.getStatus() == 200) {
+                final ResultSet resultSet = (ResultSet) factory.parseResult(preparedStatementInformation, request, response, method);
+                return new StubOutcome(System.nanoTime() - start, MaterializedResult.of(resultSet), null, false, null);
+            }
+            if (response.getStatus() == 400) {
+                return new StubOutcome(System.nanoTime() - start, null, factory.createSQLException(request, response), false, null);
+            }
+            return new StubOutcome(System.nanoTime() - start, null, null, true, null);
+        } catch (Exception e) {
+            return new StubOutcome(System.nanoTime() - start, null, null, false, e);
+        }
+    }
+
+    private void record(StubRequest request, StubOutcome stub, MaterializedResult database, Throwable databaseError, long databaseNanos) {
+        final ShadowStatistics stats = getStatistics(request);
+        if (stub.unmatched) {
+            stats.recordUnmatched();
+            return;
+        }
+        if (stub.failure != null) {
+            stats.recordStubFailure();
+            return;
+        }
+        String difference;
+        if (databaseError != null || stub.error != null) {
+            difference = databaseError == null ? "stub failed: " + stub.error.getMessage()
+                : stub.error == null ? "database failed: " + databaseError.getMessage()
+                : null;
+        } else {
+            try {
+                difference = database.diff(stub.result);
+            } catch (SQLException e) {
+                difference = "failed to compare: " + e.getMessage();
+            }
+        }
+        stats.recordComparison(stub.nanos, databaseNanos, difference != null ? request + ": " + difference : null);
+    }
+
+    private ShadowStatistics getStatistics(StubRequest request) {
+        return statistics.computeIfAbsent(request.getFingerprint(), f -> new ShadowStatistics(f, request.getSql()));
+    }
+
+    @Override
+    public void close() {
+        executor.shutdown();
+    }
+}
@@ -0,0 +1,155 @@
+package org.eeichinger.servicevirtualisation.jdbc;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Compares the stub server's answers to the database's results of the queries sharing a
+ * {@link SqlFingerprint fingerprint}, recorded in shadow mode (see {@link ShadowPolicy}).
+ * <p>
+ * Latencies are paired, i.e. only recorded for queries both the stub server and the database answered, and include
+ * reading all rows.
+ */
+public class ShadowStatistics {
+
+    /**
+     * The number of differences kept per fingerprint.
+     */
+    public static final int MAX_RECENT_DIFFERENCES = 10;
+
+    private final String fingerprint;
+    private final String sql;
+    private final LongAdder comparisons = new LongAdder();
+    private final LongAdder mismatches = new LongAdder();
+    private final LongAdder unmatched = new LongAdder();
+    private final LongAdder stubFailures = new LongAdder();
+    private final LongAdder skipped = new LongAdder();
+    private final LongAdder savedNanos = new LongAdder();
+    private final LatencyHistogram stubLatency = new LatencyHistogram();
+    private final LatencyHistogram databaseLatency = new LatencyHistogram();
+    private final Lock lock = new ReentrantLock();
+    private final ArrayDeque<String> recentDifferences = new ArrayDeque<>();
+
+    public ShadowStatistics(String fingerprint, String sql) {
+        this.fingerprint = fingerprint;
+        this.sql = sql;
+    }
+
+    void recordComparison(long stubNanos, long databaseNanos, String difference) {
+        comparisons.increment();
+        stubLatency.recordNanos(stubNanos);
+        databaseLatency.recordNanos(databaseNanos);
+        savedNanos.add(databaseNanos - stubNanos);
+        if (difference == null) {
+            return;
+        }
+        mismatches.increment();
+        lock.lock();
+        try {
+            if (recentDifferences.size() == MAX_RECENT_DIFFERENCES) {
+                recentDifferences.removeFirst();
+            }
+            recentDifferences.addLast(difference);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void recordUnmatched() {
+        unmatched.increment();
+    }
+
+    void recordStubFailure() {
+        stubFailures.increment();
+    }
+
+    void recordSkipped() {
+        skipped.increment();
+    }
+
+    public String getFingerprint() {
+        return fingerprint;
+    }
+
+    /**
+     * @return the SQL of the first query recorded
+     */
+    public String getSql() {
+        return sql;
+    }
+
+    /**
+     * @return the number of queries answered by both the stub server and the database
+     */
+    public long getComparisons() {
+        return comparisons.sum();
+    }
+
+    /**
+     * @return the number of compared queries for which the stub server's answer differed from the database's result
+     */
+    public long getMismatches() {
+        return mismatches.sum();
+    }
+
+    /**
+     * @return the number of queries the stub server passed through
+     */
+    public long getUnmatched() {
+        return unmatched.sum();
+    }
+
+    /**
+     * @return the number of queries the stub server failed to answer, e.g. because it wasn't reachable
+     */
+    public long getStubFailures() {
+        return stubFailures.sum();
+    }
+
+    /**
+     * @return the number of queries not compared because the maximum number of concurrent stub queries was reached
+     */
+    public long getSkipped() {
+        return skipped.sum();
+    }
+
+    public LatencyHistogram getStubLatency() {
+        return stubLatency;
+    }
+
+    public LatencyHistogram getDatabaseLatency() {
+        return databaseLatency;
+    }
+
+    /**
+     * @return the mean latency the stub server saves compared to the database, negative if it is slower
+     */
+    public long getMeanSavedMicros() {
+        final long n = comparisons.sum();
+        return n == 0 ? 0 : savedNanos.sum() / n / 1000;
+    }
+
+    /**
+     * @return the most recent differences, oldest first
+     */
+    public List<String> getRecentDifferences() {
+        lock.lock();
+        try {
+            return new ArrayList<>(recentDifferences);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "ShadowStatistics{fingerprint='" + fingerprint + "', comparisons=" + getComparisons()
+            + ", mismatches=" + getMismatches() + ", unmatched=" + getUnmatched() + ", stubFailures=" + getStubFailures() + ", skipped=" + getSkipped()
+            + ", stubLatency={" + stubLatency + "}, databaseLatency={" + databaseLatency + "}"
+            + ", meanSaved=" + getMeanSavedMicros() + "us}";
+    }
+}
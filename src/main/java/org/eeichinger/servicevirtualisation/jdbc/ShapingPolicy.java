@@ -0,0 +1,54 @@
+package org.eeichinger.servicevirtualisation.jdbc;
+
+/**
+ * Configures latency and throughput shaping of virtualized statements, so performance tests against a mock
+ * DataSource see realistic response times instead of the stub server's.
+ * <p>
+ * Each statement answered by the stub server takes (at least) the latency sampled from the
+ * {@link LatencyDistribution}. Optionally the number of concurrent executions and executions per second of the
+ * same statement ({@link SqlFingerprint}) can be limited to emulate a constrained database.
+ *
+ * @see ShapingStubClient
+ */
+public class ShapingPolicy {
+
+    private final LatencyDistribution latency;
+    private final int maxConcurrencyPerStatement;
+    private final double maxThroughputPerStatement;
+
+    public ShapingPolicy(LatencyDistribution latency) {
+        this(latency, 0, 0);
+    }
+
+    /**
+     * @param latency the latency distribution of statement executions
+     * @param maxConcurrencyPerStatement the maximum number of concurrent executions of the same statement, 0 for
+     * unlimited
+     * @param maxThroughputPerStatement the maximum number of executions per second of the same statement, 0 for
+     * unlimited
+     */
+    public ShapingPolicy(LatencyDistribution latency, int maxConcurrencyPerStatement, double maxThroughputPerStatement) {
+        if (maxConcurrencyPerStatement < 0 || maxThroughputPerStatement < 0) {
+            throw new IllegalArgumentException("limits must not be negative");
+        }
+        this.latency = latency;
+        this.maxConcurrencyPerStatement = maxConcurrencyPerStatement;
+        this.maxThroughputPerStatement = maxThroughputPerStatement;
+    }
+
+    public LatencyDistribution getLatency() {
+        return latency;
+    }
+
+    public int getMaxConcurrencyPerStatement() {
+        return maxConcurrencyPerStatement;
+    }
+
+    public double getMaxThroughputPerStatement() {
+        return maxThroughputPerStatement;
+    }
+
+    boolean isLimited() {
+        return maxConcurrencyPerStatement > 0 || maxThroughputPerStatement > 0;
+    }
+}
@@ -0,0 +1,140 @@
+package org.eeichinger.servicevirtualisation.jdbc;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Delays responses of the stub server according to a {@link ShapingPolicy}. Only virtualized responses (200 and
+ * 400) are shaped, statements passed through to the real database are not.
+ * <p>
+ * Callers park until an absolute deadline, so the time spent talking to the stub server counts towards the emulated
+ * latency.
+ */
+public class ShapingStubClient implements StubClient {
+
+    private final StubClient delegate;
+    private final ShapingPolicy policy;
+    private final ConcurrentMap<String, StatementLimiter> limiters = new ConcurrentHashMap<>();
+    private final LatencyHistogram injectedDelay = new LatencyHistogram();
+    private final LatencyHistogram throttleDelay = new LatencyHistogram();
+
+    public ShapingStubClient(StubClient delegate, ShapingPolicy policy) {
+        this.delegate = delegate;
+        this.policy = policy;
+    }
+
+    /**
+     * @return the delays added on top of the stub server's response times
+     */
+    public LatencyHistogram getInjectedDelay() {
+        return injectedDelay;
+    }
+
+    /**
+     * @return the time statements waited because of the concurrency and throughput limits
+     */
+    public LatencyHistogram getThrottleDelay() {
+        return throttleDelay;
+    }
+
+    @Override
+    public StubResponse execute(StubRequest request) throws IOException {
+        final StatementLimiter limiter = policy.isLimited()
+            ? limiters.computeIfAbsent(request.getFingerprint(), fp -> new StatementLimiter(policy))
+            : null;
+        if (limiter == null) {
+            return shape(request);
+        }
+
+        final long queued = System.nanoTime();
+        limiter.acquire();
+        try {
+            awaitDeadline(limiter.reserveSlot(System.nanoTime()));
+            throttleDelay.recordNanos(System.nanoTime() - queued);
+            return shape(request);
+        } finally {
+            limiter.release();
+        }
+    }
+
+    private StubResponse shape(StubRequest request) throws IOException {
+        final long start = System.nanoTime();
+        final StubResponse response = delegate.execute(request);
+        if (response.getStatus() == 200 || response.getStatus() == 400) {
+            final long deadline = start + policy.getLatency().sampleNanos(response);
+            final long delay = deadline - System.nanoTime();
+            if (delay > 0) {
+                injectedDelay.recordNanos(delay);
+                awaitDeadline(deadline);
+            }
+        }
+        return response;
+    }
+
+    private static void awaitDeadline(long deadlineNanos) throws InterruptedIOException {
+        long delay;
+        while ((delay = deadlineNanos - System.nanoTime()) > 0) {
+            LockSupport.parkNanos(delay);
+            if (Thread.interrupted()) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("interrupted while delaying the response");
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        delegate.close();
+    }
+
+    private static class StatementLimiter {
+        private final Semaphore concurrency;
+        private final long intervalNanos;
+        private final AtomicLong nextSlot = new AtomicLong(System.nanoTime());
+
+        StatementLimiter(ShapingPolicy policy) {
+            this.concurrency = policy.getMaxConcurrencyPerStatement() > 0 ? new Semaphore(policy.getMaxConcurrencyPerStatement(), true) : null;
+            this.intervalNanos = policy.getMaxThroughputPerStatement() > 0 ? (long) (TimeUnit.SECONDS.toNanos(1) / policy.getMaxThroughputPerStatement()) : 0;
+        }
+
+        void acquire() throws InterruptedIOException {
+            if (concurrency == null) {
+                return;
+            }
+            try {
+                concurrency.acquire();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("interrupted while waiting for a free execution slot");
+            }
+        }
+
+        void release() {
+            if (concurrency != null) {
+                concurrency.release();
+            }
+        }
+
+        /**
+         * @return the time at which the caller may execute without exceeding the throughput limit
+         */
+        long reserveSlot(long now) {
+            if (intervalNanos == 0) {
+                return now;
+            }
+            while (true) {
+                final long next = nextSlot.get();
+                final long slot = next - now > 0 ? next : now;
+                if (nextSlot.compareAndSet(next, slot + intervalNanos)) {
+                    return slot;
+                }
+            }
+        }
+    }
+}
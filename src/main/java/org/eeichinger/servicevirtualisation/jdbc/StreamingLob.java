@@ -0,0 +1,485 @@
+package org.eeichinger.servicevirtualisation.jdbc;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.io.StringWriter;
+import java.lang.ref.PhantomReference;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Blob;
+import java.sql.Clob;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.util.Base64;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A large binary or text cell, sent by the stub server base64 encoded, e.g.
+ * <pre>{@code
+ * <row><name>contract.pdf</name><content encoding="base64">JVBERi0xLjQK...</content></row>
+ * }</pre>
+ * The content is decoded while parsing the response, so the encoded text isn't retained. Cells up to the spool
+ * threshold are kept as bytes, larger cells are decoded into a temporary file and streamed from it when read through
+ * {@link java.sql.ResultSet#getBinaryStream(int)}, {@link java.sql.ResultSet#getCharacterStream(int)},
+ * {@link java.sql.ResultSet#getBlob(int)} or {@link java.sql.ResultSet#getClob(int)}. Text is decoded as UTF-8.
+ * <p>
+ * Temporary files are deleted once their cell has been garbage collected. Files still in use on exit are deleted by
+ * a shutdown hook.
+ */
+public final class StreamingLob {
+
+    /**
+     * The default size of encoded content in characters above which it is spooled to a temporary file (1MiB).
+     */
+    public static final int DEFAULT_SPOOL_THRESHOLD = 1 << 20;
+
+    private static final ReferenceQueue<StreamingLob> collected = new ReferenceQueue<>();
+    private static final Map<Reference<StreamingLob>, Path> spooledFiles = new ConcurrentHashMap<>();
+
+    static {
+        Runtime.getRuntime().addShutdownHook(new Thread(StreamingLob::deleteSpooledFiles, "stub-lob-cleanup"));
+    }
+
+    private final byte[] bytes;
+    private final Path file;
+    private volatile long length = -1;
+
+    private StreamingLob(byte[] bytes, Path file) {
+        this.bytes = bytes;
+        this.file = file;
+        if (bytes != null) {
+            this.length = bytes.length;
+        }
+    }
+
+    /**
+     * @param spoolThreshold the size of encoded content in characters above which it is spooled to a temporary file,
+     * -1 to never spool
+     */
+    public static StreamingLob fromBase64(String encoded, int spoolThreshold) throws IOException {
+        if (spoolThreshold < 0 || encoded.length() <= spoolThreshold) {
+            final ByteArrayOutputStream out = new ByteArrayOutputStream(encoded.length() / 4 * 3);
+            try (InputStream in = decode(encoded)) {
+                copy(in, out);
+            }
+            return new StreamingLob(out.toByteArray(), null);
+        }
+        deleteCollectedFiles();
+        final Path file = Files.createTempFile("stub-lob", ".bin");
+        try (InputStream in = decode(encoded); OutputStream out = Files.newOutputStream(file)) {
+            copy(in, out);
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(file);
+            throw e;
+        }
+        final StreamingLob lob = new StreamingLob(null, file);
+        spooledFiles.put(new PhantomReference<>(lob, collected), file);
+        return lob;
+    }
+
+    private static void deleteSpooledFiles() {
+        for (Path file : spooledFiles.values()) {
+            file.toFile().delete();
+        }
+        spooledFiles.clear();
+    }
+
+    private static void deleteCollectedFiles() {
+        Reference<? extends StreamingLob> ref;
+        while ((ref = collected.poll()) != null) {
+            final Path file = spooledFiles.remove(ref);
+            if (file != null) {
+                file.toFile().delete();
+            }
+        }
+    }
+
+    /**
+     * @return true, if the content has been spooled to a temporary file
+     */
+    public boolean isSpooled() {
+        return file != null;
+    }
+
+    /**
+     * @return a new stream over the decoded content
+     */
+    public InputStream getBinaryStream() throws SQLException {
+        try {
+            return file != null ? new BufferedInputStream(Files.newInputStream(file)) : new ByteArrayInputStream(bytes);
+        } catch (IOException e) {
+            throw new SQLException("failed to read spooled LOB", e);
+        }
+    }
+
+    /**
+     * @return a new reader decoding the content as UTF-8 while being read
+     */
+    public Reader getCharacterStream() throws SQLException {
+        return new InputStreamReader(getBinaryStream(), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return the number of bytes of the decoded content
+     */
+    public long length() throws SQLException {
+        long result = length;
+        if (result < 0) {
+            try (InputStream in = getBinaryStream()) {
+                result = 0;
+                final byte[] buffer = new byte[8192];
+                for (int n; (n = in.read(buffer)) >= 0; ) {
+                    result += n;
+                }
+            } catch (IOException e) {
+                throw new SQLException(e);
+            }
+            length = result;
+        }
+        return result;
+    }
+
+    public byte[] getBytes() throws SQLException {
+        if (bytes != null) {
+            return bytes.clone();
+        }
+        try (InputStream in = getBinaryStream()) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            copy(in, out);
+            return out.toByteArray();
+        } catch (IOException e) {
+            throw new SQLException(e);
+        }
+    }
+
+    public String getString() throws SQLException {
+        try (Reader in = getCharacterStream()) {
+            StringWriter out = new StringWriter();
+            final char[] buffer = new char[8192];
+            for (int n; (n = in.read(buffer)) >= 0; ) {
+                out.write(buffer, 0, n);
+            }
+            return out.toString();
+        } catch (IOException e) {
+            throw new SQLException(e);
+        }
+    }
+
+    public Blob asBlob() {
+        return new LobBlob();
+    }
+
+    public Clob asClob() {
+        return new LobClob();
+    }
+
+    @Override
+    public String toString() {
+        return "StreamingLob{" + (file != null ? file : bytes.length + " bytes") + "}";
+    }
+
+    private static InputStream decode(String encoded) {
+        // the MIME decoder skips line breaks and indentation of the XML text
+        return Base64.getMimeDecoder().wrap(new AsciiInputStream(encoded));
+    }
+
+    private static void copy(InputStream in, OutputStream out) throws IOException {
+        final byte[] buffer = new byte[8192];
+        for (int n; (n = in.read(buffer)) >= 0; ) {
+            out.write(buffer, 0, n);
+        }
+    }
+
+    /**
+     * Reads the characters of a string as bytes, without copying the string.
+     */
+    private static class AsciiInputStream extends InputStream {
+        private final String text;
+        private int pos;
+
+        AsciiInputStream(String text) {
+            this.text = text;
+        }
+
+        @Override
+        public int read() {
+            return pos < text.length() ? text.charAt(pos++) & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (len == 0) {
+                return 0;
+            }
+            if (pos >= text.length()) {
+                return -1;
+            }
+            final int n = Math.min(len, text.length() - pos);
+            for (int i = 0; i < n; i++) {
+                b[off + i] = (byte) text.charAt(pos++);
+            }
+            return n;
+        }
+    }
+
+    /**
+     * A read-only {@link Blob} view. Freeing it doesn't release the content, which may be shared by several cursors.
+     */
+    private class LobBlob implements Blob {
+
+        @Override
+        public long length() throws SQLException {
+            return StreamingLob.this.length();
+        }
+
+        @Override
+        public byte[] getBytes(long pos, int length) throws SQLException {
+            try (InputStream in = getBinaryStream(pos, length)) {
+                ByteArrayOutputStream out = new ByteArrayOutputStream(length);
+                copy(in, out);
+                return out.toByteArray();
+            } catch (IOException e) {
+                throw new SQLException(e);
+            }
+        }
+
+        @Override
+        public InputStream getBinaryStream() throws SQLException {
+            return StreamingLob.this.getBinaryStream();
+        }
+
+        @Override
+        public InputStream getBinaryStream(long pos, long length) throws SQLException {
+            final InputStream in = getBinaryStream();
+            try {
+                skipFully(in, pos - 1);
+            } catch (IOException e) {
+                throw new SQLException(e);
+            }
+            return new BoundedInputStream(in, length);
+        }
+
+        @Override
+        public long position(byte[] pattern, long start) throws SQLException {
+            throw new SQLFeatureNotSupportedException("position");
+        }
+
+        @Override
+        public long position(Blob pattern, long start) throws SQLException {
+            throw new SQLFeatureNotSupportedException("position");
+        }
+
+        @Override
+        public int setBytes(long pos, byte[] bytes) throws SQLException {
+            throw new SQLFeatureNotSupportedException("virtualized LOBs are read-only");
+        }
+
+        @Override
+        public int setBytes(long pos, byte[] bytes, int offset, int len) throws SQLException {
+            throw new SQLFeatureNotSupportedException("virtualized LOBs are read-only");
+        }
+
+        @Override
+        public OutputStream setBinaryStream(long pos) throws SQLException {
+            throw new SQLFeatureNotSupportedException("virtualized LOBs are read-only");
+        }
+
+        @Override
+        public void truncate(long len) throws SQLException {
+            throw new SQLFeatureNotSupportedException("virtualized LOBs are read-only");
+        }
+
+        @Override
+        public void free() {
+        }
+    }
+
+    /**
+     * A read-only {@link Clob} view. Freeing it doesn't release the content, which may be shared by several cursors.
+     */
+    private class LobClob implements Clob {
+
+        @Override
+        public long length() throws SQLException {
+            try (Reader in = getCharacterStream()) {
+                long result = 0;
+                for (long n; (n = in.skip(Long.MAX_VALUE)) > 0; ) {
+                    result += n;
+                }
+                return result;
+            } catch (IOException e) {
+                throw new SQLException(e);
+            }
+        }
+
+        @Override
+        public String getSubString(long pos, int length) throws SQLException {
+            try (Reader in = getCharacterStream(pos, length)) {
+                StringWriter out = new StringWriter(length);
+                final char[] buffer = new char[Math.min(8192, Math.max(1, length))];
+                for (int n; (n = in.read(buffer)) >= 0; ) {
+                    out.write(buffer, 0, n);
+                }
+                return out.toString();
+            } catch (IOException e) {
+                throw new SQLException(e);
+            }
+        }
+
+        @Override
+        public Reader getCharacterStream() throws SQLException {
+            return StreamingLob.this.getCharacterStream();
+        }
+
+        @Override
+        public Reader getCharacterStream(long pos, long length) throws SQLException {
+            final Reader in = getCharacterStream();
+            try {
+                for (long remaining = pos - 1; remaining > 0; ) {
+                    final long n = in.skip(remaining);
+                    if (n <= 0) {
+                        break;
+                    }
+                    remaining -= n;
+                }
+            } catch (IOException e) {
+                throw new SQLException(e);
+            }
+            return new BoundedReader(in, length);
+        }
+
+        @Override
+        public InputStream getAsciiStream() throws SQLException {
+            return getBinaryStream();
+        }
+
+        @Override
+        public long position(String searchstr, long start) throws SQLException {
+            throw new SQLFeatureNotSupportedException("position");
+        }
+
+        @Override
+        public long position(Clob searchstr, long start) throws SQLException {
+            throw new SQLFeatureNotSupportedException("position");
+        }
+
+        @Override
+        public int setString(long pos, String str) throws SQLException {
+            throw new SQLFeatureNotSupportedException("virtualized LOBs are read-only");
+        }
+
+        @Override
+        public int setString(long pos, String str, int offset, int len) throws SQLException {
+            throw new SQLFeatureNotSupportedException("virtualized LOBs are read-only");
+        }
+
+        @Override
+        public OutputStream setAsciiStream(long pos) throws SQLException {
+            throw new SQLFeatureNotSupportedException("virtualized LOBs are read-only");
+        }
+
+        @Override
+        public java.io.Writer setCharacterStream(long pos) throws SQLException {
+            throw new SQLFeatureNotSupportedException("virtualized LOBs are read-only");
+        }
+
+        @Override
+        public void truncate(long len) throws SQLException {
+            throw new SQLFeatureNotSupportedException("virtualized LOBs are read-only");
+        }
+
+        @Override
+        public void free() {
+        }
+    }
+
+    private static void skipFully(InputStream in, long n) throws IOException {
+        for (long remaining = n; remaining > 0; ) {
+            final long skipped = in.skip(remaining);
+            if (skipped <= 0) {
+                if (in.read() < 0) {
+                    return;
+                }
+                remaining--;
+            } else {
+                remaining -= skipped;
+            }
+        }
+    }
+
+    private static class BoundedInputStream extends InputStream {
+        private final InputStream in;
+        private long remaining;
+
+        BoundedInputStream(InputStream in, long length) {
+            this.in = in;
+            this.remaining = length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+            final int b = in.read();
+            if (b >= 0) {
+                remaining--;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+            final int n = in.read(b, off, (int) Math.min(len, remaining));
+            if (n > 0) {
+                remaining -= n;
+            }
+            return n;
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+
+    private static class BoundedReader extends Reader {
+        private final Reader in;
+        private long remaining;
+
+        BoundedReader(Reader in, long length) {
+            this.in = in;
+            this.remaining = length;
+        }
+
+        @Override
+        public int read(char[] cbuf, int off, int len) throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+            final int n = in.read(cbuf, off, (int) Math.min(len, remaining));
+            if (n > 0) {
+                remaining -= n;
+            }
+            return n;
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+}
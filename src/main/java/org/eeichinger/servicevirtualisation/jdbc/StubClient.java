@@ -0,0 +1,15 @@
+package org.eeichinger.servicevirtualisation.jdbc;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Executes a {@link StubRequest} against the configured stub server(s), deciding which endpoint to use.
+ * Implementations must be thread-safe.
+ *
+ * @see LoadBalancingStubClient
+ */
+public interface StubClient extends Closeable {
+
+    StubResponse execute(StubRequest request) throws IOException;
+}
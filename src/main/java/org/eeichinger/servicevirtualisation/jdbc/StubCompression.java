@@ -0,0 +1,123 @@
+package org.eeichinger.servicevirtualisation.jdbc;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Configures HTTP compression between the {@link StubTransport}s and the stub server(s).
+ * <p>
+ * Compressed responses are kept compressed until parsed, {@link StubResponse#openBody()} then decompresses while
+ * the parser reads, so the uncompressed payload is never held in memory as a whole. Compressing requests is
+ * disabled by default, since not every stub server supports compressed request bodies.
+ */
+public class StubCompression {
+
+    /**
+     * Accept gzip/deflate encoded responses, don't compress requests.
+     */
+    public static final StubCompression DEFAULT = new StubCompression(true, -1);
+
+    /**
+     * Neither accept compressed responses nor compress requests, e.g. for a stub server on the same host.
+     */
+    public static final StubCompression NONE = new StubCompression(false, -1);
+
+    static final String GZIP = "gzip";
+    static final String DEFLATE = "deflate";
+
+    private final boolean acceptCompressedResponses;
+    private final int requestCompressionThreshold;
+
+    /**
+     * @param acceptCompressedResponses whether to send {@code Accept-Encoding: gzip, deflate}
+     * @param requestCompressionThreshold request bodies of at least this many bytes are sent gzip encoded, -1 to
+     * never compress requests
+     */
+    public StubCompression(boolean acceptCompressedResponses, int requestCompressionThreshold) {
+        this.acceptCompressedResponses = acceptCompressedResponses;
+        this.requestCompressionThreshold = requestCompressionThreshold;
+    }
+
+    public boolean isAcceptCompressedResponses() {
+        return acceptCompressedResponses;
+    }
+
+    public int getRequestCompressionThreshold() {
+        return requestCompressionThreshold;
+    }
+
+    /**
+     * @return the value of the "Accept-Encoding" request header, null if compressed responses are not accepted
+     */
+    public String getAcceptEncoding() {
+        return acceptCompressedResponses ? GZIP + ", " + DEFLATE : null;
+    }
+
+    /**
+     * @return true, if a request body of the given size should be sent gzip encoded
+     */
+    public boolean isCompressRequest(int bodyLength) {
+        return requestCompressionThreshold >= 0 && bodyLength >= requestCompressionThreshold;
+    }
+
+    static byte[] gzip(byte[] data) {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream(Math.max(32, data.length / 4));
+        try (GZIPOutputStream gzip = new GZIPOutputStream(out)) {
+            gzip.write(data);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Wrap the stream to decode the given "Content-Encoding".
+     */
+    static InputStream decode(String contentEncoding, InputStream in) throws IOException {
+        if (contentEncoding == null || contentEncoding.trim().isEmpty() || "identity".equalsIgnoreCase(contentEncoding.trim())) {
+            return in;
+        }
+        if (GZIP.equalsIgnoreCase(contentEncoding.trim()) || "x-gzip".equalsIgnoreCase(contentEncoding.trim())) {
+            return new GZIPInputStream(in, 8192);
+        }
+        if (DEFLATE.equalsIgnoreCase(contentEncoding.trim())) {
+            // "deflate" is supposed to be zlib wrapped, but some servers send raw deflate data
+            if (!in.markSupported()) {
+                throw new IllegalArgumentException("stream must support mark/reset");
+            }
+            in.mark(2);
+            final int cmf = in.read();
+            final int flg = in.read();
+            in.reset();
+            final boolean zlib = cmf >= 0 && flg >= 0 && (cmf & 0x0f) == 8 && ((cmf << 8) | flg) % 31 == 0;
+            return new DeflateInputStream(in, !zlib);
+        }
+        throw new IOException("unsupported Content-Encoding '" + contentEncoding + "'");
+    }
+
+    /**
+     * Releases the native memory of its own {@link Inflater} on close, like {@link GZIPInputStream}.
+     */
+    private static class DeflateInputStream extends InflaterInputStream {
+        private boolean closed;
+
+        DeflateInputStream(InputStream in, boolean nowrap) {
+            super(in, new Inflater(nowrap), 8192);
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (!closed) {
+                closed = true;
+                inf.end();
+                super.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,58 @@
+package org.eeichinger.servicevirtualisation.jdbc;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A single stub server endpoint, tracking its health passively from the outcome of actual requests:
+ * after a number of consecutive failures (I/O errors or 5xx responses) the endpoint is ejected for a while
+ * and requests are routed to the remaining endpoints. Once the ejection period is over, the endpoint gets
+ * another chance - a single further failure ejects it again, a success makes it healthy.
+ */
+public class StubEndpoint {
+
+    private final String url;
+    private final int failureThreshold;
+    private final long ejectionNanos;
+    private final EndpointMetrics metrics = new EndpointMetrics();
+    private final AtomicInteger consecutiveFailures = new AtomicInteger();
+    private volatile long ejectedUntil;
+
+    public StubEndpoint(String url, int failureThreshold, long ejectionTime, TimeUnit unit) {
+        this.url = url;
+        this.failureThreshold = Math.max(1, failureThreshold);
+        this.ejectionNanos = unit.toNanos(ejectionTime);
+    }
+
+    public String getUrl() {
+        return url;
+    }
+
+    public EndpointMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * @return false while this endpoint is ejected
+     */
+    public boolean isAvailable() {
+        return ejectedUntil == 0 || System.nanoTime() - ejectedUntil >= 0;
+    }
+
+    void recordSuccess() {
+        consecutiveFailures.set(0);
+        ejectedUntil = 0;
+    }
+
+    void recordFailure() {
+        if (consecutiveFailures.incrementAndGet() >= failureThreshold && isAvailable()) {
+            ejectedUntil = System.nanoTime() + ejectionNanos;
+            metrics.ejected();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "StubEndpoint{url='" + url + "', available=" + isAvailable() + ", " + metrics + "}";
+    }
+}
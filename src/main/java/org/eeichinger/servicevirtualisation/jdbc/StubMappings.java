@@ -0,0 +1,370 @@
+package org.eeichinger.servicevirtualisation.jdbc;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.ResultSet;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.mockrunner.mock.jdbc.MockResultSet;
+
+/**
+ * WireMock stub mappings loaded into memory, so matching statements are answered without a round trip to the stub
+ * server, see {@link JdbcServiceVirtualizationFactory#preloadStubMappings()}. Result sets are parsed in parallel
+ * while loading.
+ * <p>
+ * Only mappings which can be evaluated exactly are served from memory: POST requests to the stub server's path
+ * matching the SQL {@code equalTo} the request body and parameters by {@code equalTo} or {@code absent} header
+ * patterns, answered by a static response. All other mappings (e.g. using regular expressions, transport headers
+ * like Content-Type, scenarios, delays or faults) are left to the stub server. Mappings are evaluated in WireMock's
+ * order, i.e. by priority, and statements which might be matched by a mapping left to the stub server first are sent
+ * to the server, too.
+ * <p>
+ * Reading mappings requires Jackson on the classpath.
+ */
+public class StubMappings {
+
+    /**
+     * WireMock's priority of mappings not specifying one.
+     */
+    static final int DEFAULT_PRIORITY = 5;
+
+    /**
+     * A preloaded response, carrying the parsed result set if it contains one.
+     */
+    public static class PreloadedResponse extends StubResponse {
+
+        private volatile MockResultSet resultSet;
+
+        PreloadedResponse(int status, Map<String, String> headers, byte[] body) {
+            super(status, headers, body);
+        }
+
+        /**
+         * @return a new cursor over the parsed result set, null if the body isn't a result set
+         */
+        public MockResultSet getResultSet() {
+            final MockResultSet template = resultSet;
+            return template != null ? template.shallowCopy() : null;
+        }
+
+        void parseResultSet(int lobSpoolThreshold) {
+            if (getStatus() != 200 || !getBodyAsString().trim().startsWith("<")) {
+                return;
+            }
+            try (Reader reader = openBodyReader()) {
+                final MockResultSet template = MockResultSetHelper.parseResultSetFromSybaseXml("x", reader, lobSpoolThreshold);
+                template.setResultSetConcurrency(ResultSet.CONCUR_READ_ONLY);
+                resultSet = template;
+            } catch (IOException | RuntimeException e) {
+                // not a result set, parsed when executed like any other response
+            }
+        }
+    }
+
+    private static class Mapping {
+        final int order;
+        final Map<String, String> equalHeaders;
+        final List<String> absentHeaders;
+        final PreloadedResponse response;
+
+        Mapping(int order, Map<String, String> equalHeaders, List<String> absentHeaders, PreloadedResponse response) {
+            this.order = order;
+            this.equalHeaders = equalHeaders;
+            this.absentHeaders = absentHeaders;
+            this.response = response;
+        }
+
+        boolean matches(StubRequest request) {
+            for (Map.Entry<String, String> e : equalHeaders.entrySet()) {
+                if (!e.getValue().equals(getHeader(request, e.getKey()))) {
+                    return false;
+                }
+            }
+            for (String name : absentHeaders) {
+                if (getHeader(request, name) != null) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    private static final ObjectMapper objectMapper = new ObjectMapper();
+
+    private final Map<String, List<Mapping>> mappingsBySql;
+    private final int firstUnservable;
+    private final int size;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    private StubMappings(Map<String, List<Mapping>> mappingsBySql, int firstUnservable, int size) {
+        this.mappingsBySql = mappingsBySql;
+        this.firstUnservable = firstUnservable;
+        this.size = size;
+    }
+
+    /**
+     * Fetch all mappings registered with the WireMock server at the given stub URL in a single request to WireMock's
+     * admin API.
+     *
+     * @param targetUrl the URL statements are sent to, e.g. {@code http://localhost:8080/sqlstub}
+     * @param timeoutMillis the maximum time to wait to connect and for response data, 0 to wait indefinitely
+     * @param lobSpoolThreshold see {@link MockResultSetHelper#parseResultSetFromSybaseXml(String, Reader, int)}
+     */
+    public static StubMappings fetch(String targetUrl, int timeoutMillis, int lobSpoolThreshold) throws IOException {
+        final URL url = new URL(targetUrl);
+        JsonNode root = get(new URL(url, "/__admin/mappings"), timeoutMillis);
+        if (root == null) {
+            // WireMock 1.x lists the mappings at the admin root
+            root = get(new URL(url, "/__admin/"), timeoutMillis);
+        }
+        if (root == null) {
+            throw new IOException("failed to list stub mappings of " + targetUrl);
+        }
+        final List<JsonNode> mappings = new ArrayList<>();
+        root.path("mappings").forEach(mappings::add);
+        return create(url.getPath(), mappings, null, lobSpoolThreshold);
+    }
+
+    /**
+     * Read WireMock mapping files (*.json) from the "mappings" directory of a WireMock root directory. Response
+     * bodies referenced by "bodyFileName" are read from its "__files" directory. Like WireMock, mappings without a
+     * priority have priority 5, and among mappings of equal priority the most recently added one wins, assuming they
+     * are added in the order of their file names.
+     *
+     * @param rootDirectory the directory containing the "mappings" and "__files" directories
+     * @param targetUrl the URL statements are sent to, e.g. {@code http://localhost:8080/sqlstub}
+     * @param lobSpoolThreshold see {@link MockResultSetHelper#parseResultSetFromSybaseXml(String, Reader, int)}
+     */
+    public static StubMappings load(Path rootDirectory, String targetUrl, int lobSpoolThreshold) throws IOException {
+        final List<Path> files;
+        try (Stream<Path> list = Files.list(rootDirectory.resolve("mappings"))) {
+            files = list.filter(f -> f.getFileName().toString().endsWith(".json")).sorted().collect(Collectors.toList());
+        }
+        final List<JsonNode> mappings = new ArrayList<>();
+        for (JsonNode file : files.parallelStream().map(StubMappings::readJson).collect(Collectors.toList())) {
+            if (file.has("mappings")) {
+                file.get("mappings").forEach(mappings::add);
+            } else {
+                mappings.add(file);
+            }
+        }
+        // WireMock's order: by priority, then most recently added first (the sort is stable)
+        Collections.reverse(mappings);
+        mappings.sort(Comparator.comparingInt(m -> m.path("priority").asInt(DEFAULT_PRIORITY)));
+        return create(new URL(targetUrl).getPath(), mappings, rootDirectory.resolve("__files"), lobSpoolThreshold);
+    }
+
+    private static StubMappings create(String path, List<JsonNode> mappings, Path filesDirectory, int lobSpoolThreshold) throws IOException {
+        final Map<String, List<Mapping>> mappingsBySql = new HashMap<>();
+        final List<PreloadedResponse> responses = new ArrayList<>();
+        int firstUnservable = Integer.MAX_VALUE;
+        for (int order = 0; order < mappings.size(); order++) {
+            final JsonNode mapping = mappings.get(order);
+            final String sql = getServableSql(mapping, path);
+            final PreloadedResponse response = sql != null ? createResponse(mapping.path("response"), filesDirectory) : null;
+            final Mapping m = response != null ? createMapping(order, mapping.path("request").path("headers"), response) : null;
+            if (m == null) {
+                firstUnservable = Math.min(firstUnservable, order);
+                continue;
+            }
+            mappingsBySql.computeIfAbsent(sql, s -> new ArrayList<>()).add(m);
+            responses.add(response);
+        }
+        responses.parallelStream().forEach(r -> r.parseResultSet(lobSpoolThreshold));
+        return new StubMappings(mappingsBySql, firstUnservable, mappings.size());
+    }
+
+    /**
+     * @return the SQL the mapping matches, null if it can't be served from memory
+     */
+    private static String getServableSql(JsonNode mapping, String path) {
+        if (mapping.has("scenarioName")) {
+            return null;
+        }
+        final JsonNode request = mapping.path("request");
+        final String method = request.path("method").asText("ANY");
+        if (!method.equals("POST") && !method.equals("ANY")) {
+            return null;
+        }
+        final String url = request.has("url") ? request.get("url").asText() : request.path("urlPath").asText(null);
+        if (url != null ? !url.equals(path) : !request.path("urlPattern").asText(".*").equals(".*")) {
+            return null;
+        }
+        if (request.has("queryParameters") || request.has("urlPathPattern")) {
+            return null;
+        }
+        final JsonNode bodyPatterns = request.path("bodyPatterns");
+        if (bodyPatterns.size() != 1 || bodyPatterns.get(0).size() != 1 || !bodyPatterns.get(0).has("equalTo")) {
+            return null;
+        }
+        return bodyPatterns.get(0).get("equalTo").asText();
+    }
+
+    private static Mapping createMapping(int order, JsonNode headerPatterns, PreloadedResponse response) {
+        final Map<String, String> equalHeaders = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+        final List<String> absentHeaders = new ArrayList<>();
+        for (Iterator<Map.Entry<String, JsonNode>> it = headerPatterns.fields(); it.hasNext(); ) {
+            final Map.Entry<String, JsonNode> header = it.next();
+            final JsonNode pattern = header.getValue();
+            if (pattern.size() != 1 || !isRequestHeader(header.getKey())) {
+                return null;
+            }
+            if (pattern.has("equalTo")) {
+                equalHeaders.put(header.getKey(), pattern.get("equalTo").asText());
+            } else if (pattern.path("absent").asBoolean()) {
+                absentHeaders.add(header.getKey());
+            } else {
+                return null;
+            }
+        }
+        return new Mapping(order, equalHeaders, absentHeaders, response);
+    }
+
+    /**
+     * @return true, if the header is part of a {@link StubRequest}, i.e. not a transport header like Content-Type
+     * matched by the stub server only
+     */
+    private static boolean isRequestHeader(String name) {
+        return !name.isEmpty() && name.chars().allMatch(c -> c >= '0' && c <= '9')
+            || name.equalsIgnoreCase(StubRequest.FETCH_SIZE_HEADER)
+            || name.equalsIgnoreCase(StubRequest.MAX_ROWS_HEADER)
+            || name.equalsIgnoreCase(PagedResultSet.CONTINUATION_HEADER);
+    }
+
+    /**
+     * @return the response, null if it isn't static
+     */
+    private static PreloadedResponse createResponse(JsonNode response, Path filesDirectory) throws IOException {
+        if (response.has("fixedDelayMilliseconds") || response.has("fault") || response.has("proxyBaseUrl") || response.has("transformers")) {
+            return null;
+        }
+        final byte[] body;
+        if (response.has("base64Body")) {
+            body = Base64.getDecoder().decode(response.get("base64Body").asText());
+        } else if (response.has("bodyFileName")) {
+            if (filesDirectory == null) {
+                return null;
+            }
+            body = Files.readAllBytes(filesDirectory.resolve(response.get("bodyFileName").asText()));
+        } else {
+            body = response.path("body").asText("").getBytes(StandardCharsets.UTF_8);
+        }
+        final Map<String, String> headers = new HashMap<>();
+        for (Iterator<Map.Entry<String, JsonNode>> it = response.path("headers").fields(); it.hasNext(); ) {
+            final Map.Entry<String, JsonNode> header = it.next();
+            final JsonNode value = header.getValue();
+            headers.put(header.getKey(), value.isArray() ? value.path(0).asText() : value.asText());
+        }
+        return new PreloadedResponse(response.path("status").asInt(200), headers, body);
+    }
+
+    /**
+     * @return the preloaded response to the request, null if it must be sent to the stub server
+     */
+    public PreloadedResponse match(StubRequest request) {
+        final List<Mapping> candidates = mappingsBySql.get(request.getSql());
+        if (candidates != null) {
+            for (Mapping mapping : candidates) {
+                if (mapping.order > firstUnservable) {
+                    break;
+                }
+                if (mapping.matches(request)) {
+                    hits.increment();
+                    return mapping.response;
+                }
+            }
+        }
+        misses.increment();
+        return null;
+    }
+
+    /**
+     * @return the number of mappings read, including those left to the stub server
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return the number of mappings served from memory
+     */
+    public int getPreloadedCount() {
+        int count = 0;
+        for (List<Mapping> mappings : mappingsBySql.values()) {
+            count += mappings.size();
+        }
+        return count;
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    private static String getHeader(StubRequest request, String name) {
+        for (Map.Entry<Integer, Object> e : request.getParameterValues().entrySet()) {
+            if (StubRequest.getParameterHeaderName(e.getKey()).equals(name)) {
+                return Objects.toString(e.getValue());
+            }
+        }
+        for (Map.Entry<String, String> e : request.getHeaders().entrySet()) {
+            if (e.getKey().equalsIgnoreCase(name)) {
+                return e.getValue();
+            }
+        }
+        return null;
+    }
+
+    private static JsonNode get(URL url, int timeoutMillis) throws IOException {
+        final HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        connection.setConnectTimeout(timeoutMillis);
+        connection.setReadTimeout(timeoutMillis);
+        try {
+            if (connection.getResponseCode() != 200) {
+                return null;
+            }
+            try (InputStream in = connection.getInputStream()) {
+                return objectMapper.readTree(in);
+            }
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    private static JsonNode readJson(Path file) {
+        try {
+            return objectMapper.readTree(file.toFile());
+        } catch (IOException e) {
+            throw new IllegalStateException("failed to read stub mapping " + file, e);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "StubMappings{size=" + size + ", preloaded=" + getPreloadedCount() + "}";
+    }
+}
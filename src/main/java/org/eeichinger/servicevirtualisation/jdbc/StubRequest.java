@@ -0,0 +1,157 @@
+package org.eeichinger.servicevirtualisation.jdbc;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * An intercepted statement execution to be answered by the stub server.
+ * <p>
+ * The SQL statement is sent as the request body, parameter values are sent as headers using the 1-based
+ * parameter index as header name. Additional {@link #getHeaders() headers} carry hints like the statement's
+ * fetch size.
+ */
+public class StubRequest {
+
+    /**
+     * The statement's fetch size, if set.
+     */
+    public static final String FETCH_SIZE_HEADER = "x-fetch-size";
+
+    /**
+     * The statement's maximum number of rows, if set.
+     */
+    public static final String MAX_ROWS_HEADER = "x-max-rows";
+
+    private static final String[] PARAMETER_HEADER_NAMES = new String[257];
+
+    static {
+        for (int i = 0; i < PARAMETER_HEADER_NAMES.length; i++) {
+            PARAMETER_HEADER_NAMES[i] = Integer.toString(i);
+        }
+    }
+
+    private final EncodedSql sql;
+    private final Map<Integer, Object> parameterValues;
+    private final Map<String, String> headers;
+    private final boolean idempotent;
+    private volatile boolean aborted;
+    private volatile Runnable abortCallback;
+
+    public StubRequest(String sql, String fingerprint, Map<Integer, Object> parameterValues, boolean idempotent) {
+        this(sql, fingerprint, parameterValues, Collections.<String, String>emptyMap(), idempotent);
+    }
+
+    public StubRequest(String sql, String fingerprint, Map<Integer, Object> parameterValues, Map<String, String> headers, boolean idempotent) {
+        this(new EncodedSql(sql, fingerprint), parameterValues, headers, idempotent);
+    }
+
+    public StubRequest(EncodedSql sql, Map<Integer, Object> parameterValues, Map<String, String> headers, boolean idempotent) {
+        this.sql = sql;
+        this.parameterValues = Collections.unmodifiableMap(new TreeMap<>(parameterValues));
+        this.headers = headers.isEmpty() ? Collections.<String, String>emptyMap() : Collections.unmodifiableMap(new TreeMap<>(headers));
+        this.idempotent = idempotent;
+    }
+
+    /**
+     * Copy the template's immutable parts, i.e. everything but the abort state.
+     */
+    private StubRequest(StubRequest template, Map<String, String> headers) {
+        this.sql = template.sql;
+        this.parameterValues = template.parameterValues;
+        this.headers = headers;
+        this.idempotent = template.idempotent;
+    }
+
+    public String getSql() {
+        return sql.getSql();
+    }
+
+    /**
+     * @return the SQL and its pre-computed request body encodings
+     */
+    public EncodedSql getEncodedSql() {
+        return sql;
+    }
+
+    /**
+     * @see SqlFingerprint
+     */
+    public String getFingerprint() {
+        return sql.getFingerprint();
+    }
+
+    public Map<Integer, Object> getParameterValues() {
+        return parameterValues;
+    }
+
+    /**
+     * @return the name of the header carrying the value of the parameter with the given 1-based index
+     */
+    public static String getParameterHeaderName(int index) {
+        return index >= 0 && index < PARAMETER_HEADER_NAMES.length ? PARAMETER_HEADER_NAMES[index] : Integer.toString(index);
+    }
+
+    /**
+     * @return additional request headers, e.g. {@link #FETCH_SIZE_HEADER}
+     */
+    public Map<String, String> getHeaders() {
+        return headers;
+    }
+
+    /**
+     * Create a copy of this request with an additional header, e.g. to request the next page of a result set.
+     */
+    public StubRequest withHeader(String name, String value) {
+        Map<String, String> h = new TreeMap<>(headers);
+        h.put(name, value);
+        return new StubRequest(this, Collections.unmodifiableMap(h));
+    }
+
+    /**
+     * @return true, if this request may safely be sent more than once (i.e. it is a query)
+     */
+    public boolean isIdempotent() {
+        return idempotent;
+    }
+
+    /**
+     * Create a copy of this request to be sent as a separate attempt, e.g. when hedging. Each attempt can be
+     * {@link #abort() aborted} independently.
+     */
+    public StubRequest newAttempt() {
+        return new StubRequest(this, headers);
+    }
+
+    /**
+     * Abort this request, e.g. because another attempt already returned a response. Invokes the registered
+     * abort callback.
+     */
+    public void abort() {
+        aborted = true;
+        Runnable callback = abortCallback;
+        if (callback != null) {
+            callback.run();
+        }
+    }
+
+    public boolean isAborted() {
+        return aborted;
+    }
+
+    /**
+     * Register a callback for transports to cancel the in-flight I/O on {@link #abort()}. If the request is
+     * already aborted, the callback is invoked immediately.
+     */
+    public void setAbortCallback(Runnable abortCallback) {
+        this.abortCallback = abortCallback;
+        if (aborted && abortCallback != null) {
+            abortCallback.run();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "StubRequest{sql='" + sql + "', parameterValues=" + parameterValues + (headers.isEmpty() ? "" : ", headers=" + headers) + "}";
+    }
+}
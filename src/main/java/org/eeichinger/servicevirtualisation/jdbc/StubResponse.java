@@ -0,0 +1,118 @@
+package org.eeichinger.servicevirtualisation.jdbc;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * The stub server's answer to a {@link StubRequest}. Header names are case-insensitive.
+ * <p>
+ * The body is kept as received, i.e. still compressed if the server used a "Content-Encoding" (see
+ * {@link StubCompression}). Parsers should read it using {@link #openBody()} or {@link #openBodyReader()} to
+ * decompress on the fly.
+ */
+public class StubResponse {
+
+    private final int status;
+    private final Map<String, String> headers;
+    private final byte[] body;
+
+    public StubResponse(int status, Map<String, String> headers, byte[] body) {
+        this.status = status;
+        TreeMap<String, String> h = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+        h.putAll(headers);
+        this.headers = Collections.unmodifiableMap(h);
+        this.body = body != null ? body : new byte[0];
+    }
+
+    public int getStatus() {
+        return status;
+    }
+
+    public Map<String, String> getHeaders() {
+        return headers;
+    }
+
+    public String getHeader(String name) {
+        return headers.get(name);
+    }
+
+    /**
+     * @return the body as received, possibly compressed
+     * @see #getContentEncoding()
+     */
+    public byte[] getRawBody() {
+        return body;
+    }
+
+    /**
+     * @return the value of the "Content-Encoding" header, null if the body isn't encoded
+     */
+    public String getContentEncoding() {
+        return getHeader("Content-Encoding");
+    }
+
+    /**
+     * @return the decompressed body
+     */
+    public byte[] getBody() {
+        if (getContentEncoding() == null) {
+            return body;
+        }
+        try (InputStream in = openBody()) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream(body.length * 4);
+            byte[] buffer = new byte[8192];
+            int n;
+            while ((n = in.read(buffer)) != -1) {
+                out.write(buffer, 0, n);
+            }
+            return out.toByteArray();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * @return a stream decompressing the body while being read
+     */
+    public InputStream openBody() throws IOException {
+        return StubCompression.decode(getContentEncoding(), new ByteArrayInputStream(body));
+    }
+
+    /**
+     * @return a reader decompressing and decoding the body using the charset specified in the "Content-Type"
+     * header (defaults to UTF-8) while being read
+     */
+    public Reader openBodyReader() throws IOException {
+        return new InputStreamReader(openBody(), getCharset());
+    }
+
+    /**
+     * Decode the body using the charset specified in the "Content-Type" header, defaults to UTF-8.
+     */
+    public String getBodyAsString() {
+        return new String(getBody(), getCharset());
+    }
+
+    Charset getCharset() {
+        final String contentType = getHeader("Content-Type");
+        if (contentType != null) {
+            for (String param : contentType.split(";")) {
+                String p = param.trim();
+                if (p.regionMatches(true, 0, "charset=", 0, 8)) {
+                    return Charset.forName(p.substring(8).replace("\"", "").trim());
+                }
+            }
+        }
+        return StandardCharsets.UTF_8;
+    }
+}
@@ -0,0 +1,14 @@
+package org.eeichinger.servicevirtualisation.jdbc;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Sends a {@link StubRequest} to a given stub server endpoint. Implementations must be thread-safe.
+ *
+ * @see HttpClientStubTransport
+ */
+public interface StubTransport extends Closeable {
+
+    StubResponse send(String endpointUrl, StubRequest request) throws IOException;
+}
@@ -0,0 +1,30 @@
+package org.eeichinger.servicevirtualisation.jdbc;
+
+/**
+ * The protocol used to talk to the stub server(s).
+ */
+public enum StubTransportProtocol {
+
+    /**
+     * HTTP/1.1 using a pool of connections, one connection per in-flight request (default).
+     *
+     * @see HttpClientStubTransport
+     */
+    HTTP_1_1,
+
+    /**
+     * HTTP/1.1 using the JDK's built-in {@link java.net.HttpURLConnection}. Doesn't pin carrier threads on JDK 18+,
+     * use this when executing statements from virtual threads.
+     *
+     * @see UrlConnectionStubTransport
+     */
+    JDK_HTTP_1_1,
+
+    /**
+     * HTTP/2 over cleartext (h2c, "prior knowledge"), all in-flight requests to an endpoint are multiplexed over
+     * a single connection. Requires the stub server to support h2c and httpclient5 on the classpath.
+     *
+     * @see Http2StubTransport
+     */
+    H2C
+}
@@ -0,0 +1,166 @@
+package org.eeichinger.servicevirtualisation.jdbc;
+
+import java.sql.Savepoint;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Collects the intercepted writes of a connection while it is not in auto-commit mode, so they can be sent to the
+ * stub server as a single request on commit (see {@link JdbcServiceVirtualizationFactory#setWriteBuffering(boolean)}).
+ * <p>
+ * The buffered statements are sent as one SQL script, separated by {@code ";\n"}. Parameters are numbered
+ * consecutively across the script, i.e. the parameters of the second statement continue after the last parameter
+ * of the first one.
+ */
+public class TransactionWriteBuffer {
+
+    static final String STATEMENT_SEPARATOR = ";\n";
+
+    private final Lock lock = new ReentrantLock();
+    private final List<StubRequest> pending = new ArrayList<>();
+    private final Map<Savepoint, Integer> savepoints = new IdentityHashMap<>();
+    private boolean autoCommit;
+
+    public TransactionWriteBuffer(boolean autoCommit) {
+        this.autoCommit = autoCommit;
+    }
+
+    /**
+     * @return true, if writes are currently buffered, i.e. the connection is not in auto-commit mode
+     */
+    public boolean isActive() {
+        lock.lock();
+        try {
+            return !autoCommit;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Record a change of the connection's auto-commit mode.
+     *
+     * @return the writes to flush, if switching to auto-commit mode commits the transaction
+     */
+    public List<StubRequest> setAutoCommit(boolean autoCommit) {
+        lock.lock();
+        try {
+            final boolean commits = autoCommit && !this.autoCommit;
+            this.autoCommit = autoCommit;
+            return commits ? drain() : Collections.<StubRequest>emptyList();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Buffer an intercepted write.
+     *
+     * @return false, if the connection is in auto-commit mode and the request must be sent right away
+     */
+    public boolean add(StubRequest request) {
+        lock.lock();
+        try {
+            if (autoCommit) {
+                return false;
+            }
+            pending.add(request);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int size() {
+        lock.lock();
+        try {
+            return pending.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Remove and return all buffered writes, e.g. on commit.
+     */
+    public List<StubRequest> drain() {
+        lock.lock();
+        try {
+            List<StubRequest> writes = new ArrayList<>(pending);
+            pending.clear();
+            savepoints.clear();
+            return writes;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Discard all buffered writes, e.g. on rollback.
+     */
+    public void discard() {
+        drain();
+    }
+
+    public void setSavepoint(Savepoint savepoint) {
+        lock.lock();
+        try {
+            savepoints.put(savepoint, pending.size());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Discard all writes buffered after the given savepoint was set.
+     */
+    public void rollback(Savepoint savepoint) {
+        lock.lock();
+        try {
+            Integer mark = savepoints.get(savepoint);
+            if (mark != null && mark < pending.size()) {
+                pending.subList(mark, pending.size()).clear();
+            }
+            savepoints.values().removeIf(m -> m > pending.size());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void releaseSavepoint(Savepoint savepoint) {
+        lock.lock();
+        try {
+            savepoints.remove(savepoint);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Combine the given writes into a single, non-idempotent request.
+     */
+    public static StubRequest combine(List<StubRequest> writes) {
+        final StringBuilder sql = new StringBuilder();
+        final Map<Integer, Object> parameterValues = new HashMap<>();
+        int offset = 0;
+        for (StubRequest write : writes) {
+            if (sql.length() > 0) {
+                sql.append(STATEMENT_SEPARATOR);
+            }
+            sql.append(write.getSql());
+            int maxIndex = 0;
+            for (Map.Entry<Integer, Object> e : write.getParameterValues().entrySet()) {
+                parameterValues.put(offset + e.getKey(), e.getValue());
+                maxIndex = Math.max(maxIndex, e.getKey());
+            }
+            offset += maxIndex;
+        }
+        return new StubRequest(sql.toString(), SqlFingerprint.of(sql.toString()), parameterValues, false);
+    }
+}
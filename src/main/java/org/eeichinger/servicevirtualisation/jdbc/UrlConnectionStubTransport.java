@@ -0,0 +1,138 @@
+package org.eeichinger.servicevirtualisation.jdbc;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Semaphore;
+
+/**
+ * HTTP/1.1 {@link StubTransport} based on the JDK's {@link HttpURLConnection}, relying on its built-in keep-alive
+ * connection cache.
+ * <p>
+ * Since JDK 18 the JDK's HTTP protocol handler doesn't hold monitors while blocking, so unlike
+ * {@link HttpClientStubTransport} this transport doesn't pin the carrier threads of virtual threads. The number of
+ * concurrent requests per endpoint is limited by a semaphore rather than a connection pool. Note that the JDK
+ * only keeps {@code http.maxConnections} (default 5) idle connections per endpoint alive, and that the JDK writes
+ * non-ASCII parameter values using the platform's default charset, whereas {@link HttpClientStubTransport} always
+ * uses ISO-8859-1.
+ */
+public class UrlConnectionStubTransport implements StubTransport {
+
+    private final int maxConnectionsPerEndpoint;
+    private final StubCompression compression;
+    private final int timeoutMillis;
+    private final ConcurrentMap<String, Semaphore> permits = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, URL> endpointUrls = new ConcurrentHashMap<>();
+
+    public UrlConnectionStubTransport(int maxConnectionsPerEndpoint) {
+        this(maxConnectionsPerEndpoint, StubCompression.DEFAULT);
+    }
+
+    public UrlConnectionStubTransport(int maxConnectionsPerEndpoint, StubCompression compression) {
+        this(maxConnectionsPerEndpoint, compression, 0);
+    }
+
+    /**
+     * @param timeoutMillis the maximum time to wait to connect and for response data, 0 to wait indefinitely
+     */
+    public UrlConnectionStubTransport(int maxConnectionsPerEndpoint, StubCompression compression, int timeoutMillis) {
+        this.maxConnectionsPerEndpoint = maxConnectionsPerEndpoint;
+        this.compression = compression;
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    @Override
+    public StubResponse send(String endpointUrl, StubRequest request) throws IOException {
+        final Semaphore semaphore = permits.computeIfAbsent(endpointUrl, url -> new Semaphore(maxConnectionsPerEndpoint, true));
+        try {
+            semaphore.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while waiting for a connection");
+        }
+        try {
+            return doSend(endpointUrl, request);
+        } finally {
+            semaphore.release();
+        }
+    }
+
+    private StubResponse doSend(String endpointUrl, StubRequest request) throws IOException {
+        final HttpURLConnection connection = (HttpURLConnection) getUrl(endpointUrl).openConnection();
+        connection.setRequestMethod("POST");
+        connection.setDoOutput(true);
+        connection.setUseCaches(false);
+        connection.setConnectTimeout(timeoutMillis);
+        connection.setReadTimeout(timeoutMillis);
+        connection.setRequestProperty("Content-Type", "text/plain; charset=utf-8");
+        for (Map.Entry<Integer, Object> e : request.getParameterValues().entrySet()) {
+            connection.setRequestProperty(StubRequest.getParameterHeaderName(e.getKey()), Objects.toString(e.getValue()));
+        }
+        for (Map.Entry<String, String> e : request.getHeaders().entrySet()) {
+            connection.setRequestProperty(e.getKey(), e.getValue());
+        }
+        if (compression.getAcceptEncoding() != null) {
+            connection.setRequestProperty("Accept-Encoding", compression.getAcceptEncoding());
+        }
+        request.setAbortCallback(connection::disconnect);
+
+        byte[] requestBody = request.getEncodedSql().getUtf8();
+        if (compression.isCompressRequest(requestBody.length)) {
+            requestBody = request.getEncodedSql().getGzipped();
+            connection.setRequestProperty("Content-Encoding", StubCompression.GZIP);
+        }
+        connection.setFixedLengthStreamingMode(requestBody.length);
+        try (OutputStream out = connection.getOutputStream()) {
+            out.write(requestBody);
+        }
+
+        final int status = connection.getResponseCode();
+        Map<String, String> headers = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+        for (Map.Entry<String, List<String>> header : connection.getHeaderFields().entrySet()) {
+            // the status line is reported using a null key
+            if (header.getKey() != null && !header.getValue().isEmpty()) {
+                headers.putIfAbsent(header.getKey(), header.getValue().get(0));
+            }
+        }
+        // the body must be fully consumed for the connection to be reused
+        final InputStream in = status >= 400 ? connection.getErrorStream() : connection.getInputStream();
+        return new StubResponse(status, headers, in != null ? readFully(in) : null);
+    }
+
+    private URL getUrl(String endpointUrl) throws MalformedURLException {
+        URL url = endpointUrls.get(endpointUrl);
+        if (url == null) {
+            url = new URL(endpointUrl);
+            endpointUrls.putIfAbsent(endpointUrl, url);
+        }
+        return url;
+    }
+
+    private static byte[] readFully(InputStream in) throws IOException {
+        try (InputStream is = in) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int n;
+            while ((n = is.read(buffer)) != -1) {
+                out.write(buffer, 0, n);
+            }
+            return out.toByteArray();
+        }
+    }
+
+    @Override
+    public void close() {
+        // connections are cached by the JDK
+    }
+}
@@ -0,0 +1,78 @@
+package org.eeichinger.servicevirtualisation.jdbc;
+
+import java.util.concurrent.Callable;
+
+/**
+ * Activates the interception of a {@link JdbcServiceVirtualizationFactory} for the current thread, see
+ * {@link JdbcServiceVirtualizationFactory#activate()}. Scopes may be nested and must be closed on the thread that
+ * opened them, preferably using try-with-resources:
+ * <pre>
+ * try (VirtualizationScope scope = factory.activate()) {
+ *     // statements executed here are virtualized
+ *     executor.submit(scope.wrap(task)); // ...and so are the task's
+ * }
+ * </pre>
+ */
+public final class VirtualizationScope implements AutoCloseable {
+
+    private final JdbcServiceVirtualizationFactory factory;
+    private final ThreadLocal<VirtualizationScope> activeScope;
+    private final VirtualizationScope parent;
+    private boolean closed;
+
+    VirtualizationScope(JdbcServiceVirtualizationFactory factory, ThreadLocal<VirtualizationScope> activeScope) {
+        this.factory = factory;
+        this.activeScope = activeScope;
+        this.parent = activeScope.get();
+        activeScope.set(this);
+    }
+
+    /**
+     * @return a task activating a scope of the same factory on the thread executing it
+     */
+    public Runnable wrap(Runnable task) {
+        return () -> {
+            final VirtualizationScope scope = factory.activate();
+            try {
+                task.run();
+            } finally {
+                scope.close();
+            }
+        };
+    }
+
+    /**
+     * @return a task activating a scope of the same factory on the thread executing it
+     */
+    public <V> Callable<V> wrap(Callable<V> task) {
+        return () -> {
+            final VirtualizationScope scope = factory.activate();
+            try {
+                return task.call();
+            } finally {
+                scope.close();
+            }
+        };
+    }
+
+    /**
+     * Deactivate this scope, re-activating the enclosing scope if any.
+     *
+     * @throws IllegalStateException if closed on another thread or before an inner scope was closed
+     */
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        if (activeScope.get() != this) {
+            throw new IllegalStateException("scope must be closed by the thread that opened it, innermost scope first");
+        }
+        closed = true;
+        if (parent != null) {
+            activeScope.set(parent);
+        } else {
+            activeScope.remove();
+        }
+    }
+}
@@ -0,0 +1,186 @@
+package org.eeichinger.servicevirtualisation.jdbc;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+
+import com.github.tomakehurst.wiremock.client.WireMock;
+import com.github.tomakehurst.wiremock.junit.WireMockRule;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+public class CoalescingStubClientTest {
+
+    static final String SQL = "SELECT name FROM PEOPLE WHERE id = ?";
+
+    /**
+     * Answers all requests once released.
+     */
+    static class BlockingStubClient implements StubClient {
+        final CountDownLatch release;
+        final AtomicInteger calls;
+        final StubResponse answer;
+        final IOException failure;
+
+        BlockingStubClient(CountDownLatch release, AtomicInteger calls, StubResponse answer, IOException failure) {
+            this.release = release;
+            this.calls = calls;
+            this.answer = answer;
+            this.failure = failure;
+        }
+
+        @Override
+        public StubResponse execute(StubRequest request) throws IOException {
+            calls.incrementAndGet();
+            await(release);
+            if (failure != null) {
+                throw failure;
+            }
+            return answer;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    @Rule
+    public WireMockRule wireMockRule = new WireMockRule(0);
+
+    ExecutorService executor;
+
+    @Before
+    public void before() {
+        executor = Executors.newFixedThreadPool(8);
+    }
+
+    @After
+    public void after() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void shares_in_flight_request_between_identical_queries() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicInteger calls = new AtomicInteger();
+        final StubResponse answer = new StubResponse(200, Collections.<String, String>emptyMap(), "<resultset/>".getBytes("utf-8"));
+        final CoalescingStubClient client = new CoalescingStubClient(new BlockingStubClient(release, calls, answer, null));
+
+        final List<Future<StubResponse>> responses = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            responses.add(executor.submit(() -> client.execute(query(1))));
+        }
+        waitFor(() -> client.getCoalescedCount() == 4);
+        // other parameters and updates are sent separately
+        final Future<StubResponse> other = executor.submit(() -> client.execute(query(2)));
+        final Future<StubResponse> update = executor.submit(() -> client.execute(new StubRequest(SQL, SqlFingerprint.of(SQL), Collections.<Integer, Object>singletonMap(1, 1), false)));
+        waitFor(() -> calls.get() == 3);
+        release.countDown();
+
+        for (Future<StubResponse> response : responses) {
+            assertThat(response.get(), sameInstance(answer));
+        }
+        assertThat(other.get(), sameInstance(answer));
+        assertThat(update.get(), sameInstance(answer));
+        assertThat(calls.get(), equalTo(3));
+
+        // nothing is cached once the response arrived
+        client.execute(query(1));
+        assertThat(calls.get(), equalTo(4));
+    }
+
+    @Test
+    public void reports_failure_to_all_waiting_callers() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        final CoalescingStubClient client = new CoalescingStubClient(new BlockingStubClient(release, new AtomicInteger(), null, new IOException("stub server down")));
+
+        final List<Future<StubResponse>> responses = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            responses.add(executor.submit(() -> client.execute(query(1))));
+        }
+        waitFor(() -> client.getCoalescedCount() == 2);
+        release.countDown();
+
+        for (Future<StubResponse> response : responses) {
+            try {
+                response.get();
+                throw new AssertionError("expected failure");
+            } catch (ExecutionException e) {
+                assertThat(e.getCause(), instanceOf(IOException.class));
+                assertThat(e.getCause().getMessage(), equalTo("stub server down"));
+            }
+        }
+    }
+
+    @Test
+    public void each_caller_gets_its_own_result_set() throws Exception {
+        WireMock.stubFor(WireMock
+            .post(WireMock.urlPathEqualTo("/sqlstub"))
+            .withRequestBody(WireMock.equalTo(SQL))
+            .willReturn(WireMock.aResponse()
+                .withFixedDelay(500)
+                .withBody("<resultset><row><name>Erich</name></row><row><name>Max</name></row></resultset>"))
+        );
+        final JdbcServiceVirtualizationFactory factory = new JdbcServiceVirtualizationFactory();
+        try {
+            factory.setTargetUrl("http://localhost:" + wireMockRule.port() + "/sqlstub");
+            factory.setRequestCoalescing(true);
+            final JdbcTemplate jdbcTemplate = new JdbcTemplate(factory.createMockDataSource());
+
+            final CountDownLatch start = new CountDownLatch(1);
+            final List<Future<List<String>>> results = new ArrayList<>();
+            for (int i = 0; i < 4; i++) {
+                results.add(executor.submit(() -> {
+                    await(start);
+                    return jdbcTemplate.queryForList(SQL, String.class, 1);
+                }));
+            }
+            start.countDown();
+
+            for (Future<List<String>> result : results) {
+                assertThat(result.get(), contains("Erich", "Max"));
+            }
+            WireMock.verify(4 - (int) factory.getCoalescedRequestCount(), WireMock.postRequestedFor(WireMock.urlPathEqualTo("/sqlstub")));
+            assertThat(factory.getCoalescedRequestCount(), greaterThan(0L));
+        } finally {
+            factory.close();
+        }
+    }
+
+    private static StubRequest query(int id) {
+        return new StubRequest(SQL, SqlFingerprint.of(SQL), Collections.<Integer, Object>singletonMap(1, id), true);
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void waitFor(BooleanSupplier condition) throws InterruptedException {
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (!condition.getAsBoolean()) {
+            if (System.nanoTime() > deadline) {
+                throw new AssertionError("timed out");
+            }
+            Thread.sleep(5);
+        }
+    }
+}
@@ -0,0 +1,114 @@
+package org.eeichinger.servicevirtualisation.jdbc;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+import com.github.tomakehurst.wiremock.client.WireMock;
+import com.github.tomakehurst.wiremock.junit.WireMockRule;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+@RunWith(Parameterized.class)
+public class CompressionTest {
+
+    @Parameterized.Parameters(name = "{0}")
+    public static List<Object[]> transports() {
+        return Arrays.asList(new Object[][]{
+            {StubTransportProtocol.HTTP_1_1}
+            , {StubTransportProtocol.JDK_HTTP_1_1}
+        });
+    }
+
+    @Rule
+    public WireMockRule wireMockRule = new WireMockRule(0);
+
+    final JdbcServiceVirtualizationFactory factory = new JdbcServiceVirtualizationFactory();
+
+    public CompressionTest(StubTransportProtocol transportProtocol) {
+        factory.setTransportProtocol(transportProtocol);
+    }
+
+    @After
+    public void after() throws Exception {
+        factory.close();
+    }
+
+    @Test
+    public void parses_gzip_encoded_resultset() {
+        final String sql = "SELECT name FROM PEOPLE WHERE id = ?";
+        WireMock.stubFor(WireMock
+            .post(WireMock.urlPathEqualTo("/sqlstub"))
+            .withHeader("Accept-Encoding", WireMock.containing("gzip"))
+            .withRequestBody(WireMock.equalTo(sql))
+            .willReturn(WireMock.aResponse()
+                .withHeader("Content-Encoding", "gzip")
+                .withBody(StubCompression.gzip(resultSet("Erich Eichinger")))
+            )
+        );
+
+        assertThat(jdbcTemplate().queryForObject(sql, String.class, 1), equalTo("Erich Eichinger"));
+    }
+
+    @Test
+    public void parses_deflate_encoded_resultset() throws Exception {
+        final String sql = "SELECT name FROM PEOPLE WHERE id = ?";
+        WireMock.stubFor(WireMock
+            .post(WireMock.urlPathEqualTo("/sqlstub"))
+            .withRequestBody(WireMock.equalTo(sql))
+            .willReturn(WireMock.aResponse()
+                .withHeader("Content-Encoding", "deflate")
+                .withBody(deflate(resultSet("Matthias Bernlöhr")))
+            )
+        );
+
+        assertThat(jdbcTemplate().queryForObject(sql, String.class, 1), equalTo("Matthias Bernlöhr"));
+    }
+
+    @Test
+    public void compresses_requests_above_threshold() {
+        factory.setCompression(new StubCompression(false, 64));
+        WireMock.stubFor(WireMock
+            .post(WireMock.urlPathEqualTo("/sqlstub"))
+            .willReturn(WireMock.aResponse().withBody("1"))
+        );
+
+        final JdbcTemplate jdbcTemplate = jdbcTemplate();
+        jdbcTemplate.update("UPDATE PEOPLE SET name = ? WHERE id = ?", "Erich", 1);
+        jdbcTemplate.update("UPDATE PEOPLE SET name = ?, placeofbirth = ?, birthday = ? WHERE id = ? AND version = ?", "Erich", "London", null, 1, 2);
+
+        WireMock.verify(1, WireMock.postRequestedFor(WireMock.urlPathEqualTo("/sqlstub"))
+            .withHeader("Content-Encoding", WireMock.equalTo("gzip"))
+        );
+        WireMock.verify(0, WireMock.postRequestedFor(WireMock.urlPathEqualTo("/sqlstub"))
+            .withHeader("Accept-Encoding", WireMock.containing("gzip"))
+        );
+    }
+
+    private JdbcTemplate jdbcTemplate() {
+        factory.setTargetUrl("http://localhost:" + wireMockRule.port() + "/sqlstub");
+        return new JdbcTemplate(factory.createMockDataSource());
+    }
+
+    private static byte[] resultSet(String name) {
+        return ("<resultset><row><name>" + name + "</name></row></resultset>").getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static byte[] deflate(byte[] data) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (DeflaterOutputStream deflater = new DeflaterOutputStream(out, new Deflater())) {
+            deflater.write(data);
+        }
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,213 @@
+package org.eeichinger.servicevirtualisation.jdbc;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+
+import com.github.tomakehurst.wiremock.WireMockServer;
+import com.github.tomakehurst.wiremock.client.WireMock;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+public class ConcurrencyLimitingStubClientTest {
+
+    static final StubResponse ANSWER = new StubResponse(200, Collections.<String, String>emptyMap(), null);
+
+    /**
+     * Answers all requests once released, tracking the maximum number of concurrent requests.
+     */
+    static class BlockingStubClient implements StubClient {
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicInteger concurrent = new AtomicInteger();
+        final AtomicInteger maxConcurrent = new AtomicInteger();
+
+        @Override
+        public StubResponse execute(StubRequest request) throws IOException {
+            maxConcurrent.accumulateAndGet(concurrent.incrementAndGet(), Math::max);
+            try {
+                release.await(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                concurrent.decrementAndGet();
+            }
+            return ANSWER;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    ExecutorService executor;
+    BlockingStubClient stubServer;
+
+    @Before
+    public void before() {
+        executor = Executors.newFixedThreadPool(8);
+        stubServer = new BlockingStubClient();
+    }
+
+    @After
+    public void after() {
+        stubServer.release.countDown();
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void queues_requests_exceeding_limit() throws Exception {
+        final ConcurrencyLimiter limiter = new ConcurrencyLimiter(ConcurrencyLimitPolicy.fixed(2, OverloadPolicy.QUEUE));
+        final ConcurrencyLimitingStubClient client = new ConcurrencyLimitingStubClient(stubServer, limiter, 0);
+
+        final List<Future<StubResponse>> responses = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            responses.add(executor.submit(() -> client.execute(query())));
+        }
+        waitFor(() -> limiter.getInFlight() == 2 && limiter.getQueued() == 3);
+        Thread.sleep(50);
+        stubServer.release.countDown();
+
+        for (Future<StubResponse> response : responses) {
+            assertThat(response.get(), sameInstance(ANSWER));
+        }
+        assertThat(stubServer.maxConcurrent.get(), equalTo(2));
+        assertThat(limiter.getQueueTime().getCount(), equalTo(5L));
+        assertThat(limiter.getQueueTime().getMaxMicros(), greaterThanOrEqualTo(50000L));
+        assertThat(limiter.getServiceTime().getCount(), equalTo(5L));
+        assertThat(limiter.getInFlight(), equalTo(0));
+    }
+
+    @Test
+    public void times_out_queued_requests() throws Exception {
+        final ConcurrencyLimiter limiter = new ConcurrencyLimiter(ConcurrencyLimitPolicy.fixed(1, OverloadPolicy.QUEUE));
+        final ConcurrencyLimitingStubClient client = new ConcurrencyLimitingStubClient(stubServer, limiter, 50);
+        executor.submit(() -> client.execute(query()));
+        waitFor(() -> limiter.getInFlight() == 1);
+
+        try {
+            client.execute(query());
+            throw new AssertionError("expected timeout");
+        } catch (IOException e) {
+            assertThat(e.getMessage(), containsString("timed out after 50ms"));
+        }
+        assertThat(limiter.getQueueTimeouts(), equalTo(1L));
+        assertThat(limiter.getQueued(), equalTo(0));
+    }
+
+    @Test
+    public void fails_fast_or_passes_through_on_overload() throws Exception {
+        final ConcurrencyLimiter failFast = new ConcurrencyLimiter(ConcurrencyLimitPolicy.fixed(1, OverloadPolicy.FAIL_FAST));
+        final ConcurrencyLimitingStubClient failingClient = new ConcurrencyLimitingStubClient(stubServer, failFast, 0);
+        executor.submit(() -> failingClient.execute(query()));
+        waitFor(() -> failFast.getInFlight() == 1);
+        try {
+            failingClient.execute(query());
+            throw new AssertionError("expected rejection");
+        } catch (IOException e) {
+            assertThat(e.getMessage(), containsString("overloaded"));
+        }
+        assertThat(failFast.getRejected(), equalTo(1L));
+
+        final ConcurrencyLimiter passThrough = new ConcurrencyLimiter(ConcurrencyLimitPolicy.fixed(1, OverloadPolicy.PASS_THROUGH));
+        final ConcurrencyLimitingStubClient passingClient = new ConcurrencyLimitingStubClient(stubServer, passThrough, 0);
+        executor.submit(() -> passingClient.execute(query()));
+        waitFor(() -> passThrough.getInFlight() == 1);
+        assertThat(passingClient.execute(query()).getStatus(), equalTo(ConcurrencyLimitingStubClient.OVERLOADED_STATUS));
+        assertThat(passThrough.getPassedThrough(), equalTo(1L));
+    }
+
+    @Test
+    public void mock_datasource_fails_instead_of_passing_through() throws Exception {
+        final WireMockServer wireMockServer = new WireMockServer(0);
+        wireMockServer.start();
+        try {
+            wireMockServer.stubFor(WireMock
+                .post(WireMock.urlPathEqualTo("/sqlstub"))
+                .willReturn(WireMock.aResponse().withFixedDelay(500).withBody("<resultset><row><name>Erich</name></row></resultset>"))
+            );
+            final JdbcServiceVirtualizationFactory factory = new JdbcServiceVirtualizationFactory();
+            factory.setTargetUrl("http://localhost:" + wireMockServer.port() + "/sqlstub");
+            factory.setConcurrencyLimitPolicy(ConcurrencyLimitPolicy.fixed(1, OverloadPolicy.PASS_THROUGH));
+            final JdbcTemplate jdbcTemplate = new JdbcTemplate(factory.createMockDataSource());
+
+            final Future<String> first = executor.submit(() -> jdbcTemplate.queryForObject("SELECT name FROM PEOPLE WHERE id = ?", String.class, 1));
+            waitFor(() -> factory.getConcurrencyLimiter().getInFlight() == 1);
+            try {
+                jdbcTemplate.queryForObject("SELECT name FROM PEOPLE WHERE id = ?", String.class, 2);
+                throw new AssertionError("expected rejection");
+            } catch (Exception e) {
+                Throwable cause = e;
+                while (cause.getCause() != null) {
+                    cause = cause.getCause();
+                }
+                assertThat(cause.getMessage(), containsString("no database to pass"));
+            }
+            assertThat(first.get(), equalTo("Erich"));
+            factory.close();
+        } finally {
+            wireMockServer.stop();
+        }
+    }
+
+    @Test
+    public void adapts_limit_to_latency() throws Exception {
+        final ConcurrencyLimiter limiter = new ConcurrencyLimiter(ConcurrencyLimitPolicy.parse("aimd(2, 10, 100)", OverloadPolicy.QUEUE));
+        assertThat(limiter.getLimit(), equalTo(2));
+
+        // fast responses while the limit is in use raise it by about one per round trip
+        for (int i = 0; i < 100; i++) {
+            final int limit = limiter.getLimit();
+            for (int j = 0; j < limit; j++) {
+                assertThat(limiter.acquire(0), equalTo(true));
+            }
+            final long start = System.nanoTime();
+            for (int j = 0; j < limit; j++) {
+                limiter.release(start, false);
+            }
+        }
+        assertThat(limiter.getLimit(), equalTo(10));
+
+        // slow responses cut it, once per round trip
+        limiter.acquire(0);
+        limiter.acquire(0);
+        final long slowStart = System.nanoTime();
+        Thread.sleep(150);
+        limiter.release(slowStart, false);
+        limiter.release(slowStart, false);
+        assertThat(limiter.getLimit(), equalTo(9));
+
+        for (int i = 0; i < 30; i++) {
+            limiter.acquire(0);
+            limiter.release(System.nanoTime() - 1, true);
+        }
+        assertThat(limiter.getLimit(), equalTo(2));
+    }
+
+    private static StubRequest query() {
+        final String sql = "SELECT name FROM PEOPLE WHERE id = ?";
+        return new StubRequest(sql, SqlFingerprint.of(sql), Collections.<Integer, Object>singletonMap(1, 1), true);
+    }
+
+    private static void waitFor(BooleanSupplier condition) throws InterruptedException {
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (!condition.getAsBoolean()) {
+            if (System.nanoTime() > deadline) {
+                throw new AssertionError("timed out");
+            }
+            Thread.sleep(5);
+        }
+    }
+}
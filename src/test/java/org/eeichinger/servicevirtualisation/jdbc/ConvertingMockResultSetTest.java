@@ -0,0 +1,60 @@
+package org.eeichinger.servicevirtualisation.jdbc;
+
+import java.math.BigDecimal;
+import java.sql.Timestamp;
+
+import com.mockrunner.mock.jdbc.MockResultSet;
+import org.junit.Test;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+public class ConvertingMockResultSetTest {
+
+    static final String XML = "<resultset xmlns:xsi='http://www.w3.org/2001/XMLSchema-instance'>" +
+        "<row><age>42</age><salary>1234.50</salary><born>1980-01-02 03:04:05.123</born></row>" +
+        "<row><age xsi:nil='true'/><salary>1234.50</salary><born xsi:nil='true'/></row>" +
+        "</resultset>";
+
+    MockResultSet resultSet = MockResultSetHelper.parseResultSetFromSybaseXmlString("x", XML);
+
+    @Test
+    public void converts_cells_like_mockresultset() throws Exception {
+        assertThat(resultSet, instanceOf(ConvertingMockResultSet.class));
+
+        resultSet.next();
+        assertThat(resultSet.getInt("age"), equalTo(42));
+        assertThat(resultSet.getLong(1), equalTo(42L));
+        assertThat(resultSet.getDouble("salary"), equalTo(1234.5d));
+        assertThat(resultSet.getBigDecimal(2), equalTo(new BigDecimal("1234.50")));
+        assertThat(resultSet.getTimestamp("born"), equalTo(Timestamp.valueOf("1980-01-02 03:04:05.123")));
+
+        resultSet.next();
+        assertThat(resultSet.getInt("age"), equalTo(0));
+        assertThat(resultSet.wasNull(), is(true));
+        assertThat(resultSet.getTimestamp(3), nullValue());
+    }
+
+    @Test
+    public void memoizes_values_across_rows_and_cursors() throws Exception {
+        resultSet.next();
+        BigDecimal first = resultSet.getBigDecimal("salary");
+        assertThat(resultSet.wasNull(), is(false));
+        resultSet.next();
+        assertThat(resultSet.getBigDecimal("salary"), sameInstance(first));
+
+        MockResultSet replay = resultSet.shallowCopy();
+        replay.beforeFirst();
+        replay.next();
+        assertThat(replay.getBigDecimal(2), sameInstance(first));
+    }
+
+    @Test
+    public void returns_copies_of_mutable_values() throws Exception {
+        resultSet.next();
+        Timestamp born = resultSet.getTimestamp("born");
+        born.setTime(0);
+
+        assertThat(resultSet.getTimestamp("born"), equalTo(Timestamp.valueOf("1980-01-02 03:04:05.123")));
+    }
+}
@@ -0,0 +1,92 @@
+package org.eeichinger.servicevirtualisation.jdbc;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.function.Function;
+
+import org.apache.hc.core5.http.ContentType;
+import org.apache.hc.core5.http.EntityDetails;
+import org.apache.hc.core5.http.HttpException;
+import org.apache.hc.core5.http.HttpRequest;
+import org.apache.hc.core5.http.Message;
+import org.apache.hc.core5.http.ProtocolVersion;
+import org.apache.hc.core5.http.URIScheme;
+import org.apache.hc.core5.http.impl.bootstrap.HttpAsyncServer;
+import org.apache.hc.core5.http.nio.AsyncRequestConsumer;
+import org.apache.hc.core5.http.nio.AsyncServerRequestHandler;
+import org.apache.hc.core5.http.nio.entity.AsyncEntityProducers;
+import org.apache.hc.core5.http.nio.entity.StringAsyncEntityConsumer;
+import org.apache.hc.core5.http.nio.support.BasicRequestConsumer;
+import org.apache.hc.core5.http.nio.support.BasicResponseProducer;
+import org.apache.hc.core5.http.protocol.HttpContext;
+import org.apache.hc.core5.http2.HttpVersionPolicy;
+import org.apache.hc.core5.http2.config.H2Config;
+import org.apache.hc.core5.http2.impl.nio.bootstrap.H2ServerBootstrap;
+import org.apache.hc.core5.io.CloseMode;
+import org.apache.hc.core5.reactor.ListenerEndpoint;
+import org.junit.rules.ExternalResource;
+
+/**
+ * A minimal stub server speaking either HTTP/1.1 or h2c (WireMock 1.x only supports HTTP/1.1), answering every
+ * request with the body computed from the posted SQL.
+ */
+public class H2StubServer extends ExternalResource {
+
+    private final HttpVersionPolicy versionPolicy;
+    private final Function<String, String> responder;
+    private final Set<ProtocolVersion> protocolVersions = ConcurrentHashMap.newKeySet();
+    private HttpAsyncServer server;
+    private int port;
+
+    public H2StubServer(Function<String, String> responder) {
+        this(HttpVersionPolicy.FORCE_HTTP_2, responder);
+    }
+
+    public H2StubServer(HttpVersionPolicy versionPolicy, Function<String, String> responder) {
+        this.versionPolicy = versionPolicy;
+        this.responder = responder;
+    }
+
+    public int port() {
+        return port;
+    }
+
+    /**
+     * @return the protocol versions of all requests received so far
+     */
+    public Set<ProtocolVersion> getProtocolVersions() {
+        return protocolVersions;
+    }
+
+    @Override
+    protected void before() throws IOException, InterruptedException, ExecutionException {
+        server = H2ServerBootstrap.bootstrap()
+            .setVersionPolicy(versionPolicy)
+            .setH2Config(H2Config.custom().setMaxConcurrentStreams(10000).build())
+            .register("*", new AsyncServerRequestHandler<Message<HttpRequest, String>>() {
+                @Override
+                public AsyncRequestConsumer<Message<HttpRequest, String>> prepare(HttpRequest request, EntityDetails entityDetails, HttpContext context) throws HttpException {
+                    return new BasicRequestConsumer<>(entityDetails != null ? new StringAsyncEntityConsumer() : null);
+                }
+
+                @Override
+                public void handle(Message<HttpRequest, String> message, ResponseTrigger responseTrigger, HttpContext context) throws HttpException, IOException {
+                    protocolVersions.add(context.getProtocolVersion());
+                    String body = responder.apply(message.getBody());
+                    responseTrigger.submitResponse(new BasicResponseProducer(200, AsyncEntityProducers.create(body, ContentType.APPLICATION_XML)), context);
+                }
+            })
+            .create();
+        server.start();
+        ListenerEndpoint endpoint = server.listen(new InetSocketAddress("localhost", 0), URIScheme.HTTP).get();
+        port = ((InetSocketAddress) endpoint.getAddress()).getPort();
+    }
+
+    @Override
+    protected void after() {
+        server.close(CloseMode.IMMEDIATE);
+    }
+}
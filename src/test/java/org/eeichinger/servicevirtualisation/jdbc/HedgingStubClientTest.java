@@ -0,0 +1,92 @@
+package org.eeichinger.servicevirtualisation.jdbc;
+
+import java.util.concurrent.TimeUnit;
+
+import com.github.tomakehurst.wiremock.client.WireMock;
+import com.github.tomakehurst.wiremock.junit.WireMockRule;
+import com.github.tomakehurst.wiremock.stubbing.Scenario;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+public class HedgingStubClientTest {
+
+    @Rule
+    public WireMockRule wireMockRule = new WireMockRule(0);
+
+    JdbcServiceVirtualizationFactory factory;
+    JdbcTemplate jdbcTemplate;
+
+    @Before
+    public void before() {
+        factory = new JdbcServiceVirtualizationFactory();
+        factory.setTargetUrl("http://localhost:" + wireMockRule.port() + "/sqlstub");
+        factory.setHedgingPolicy(new HedgingPolicy(95, 10, 50, TimeUnit.MILLISECONDS));
+        jdbcTemplate = new JdbcTemplate(factory.createMockDataSource());
+    }
+
+    @After
+    public void after() throws Exception {
+        factory.close();
+    }
+
+    @Test
+    public void slow_query_is_hedged_and_first_response_wins() {
+        // the first request is slow, any further request is fast
+        stubSlowThenFast("SELECT name FROM PEOPLE WHERE id = ?", "<resultset><row><name>Erich</name></row></resultset>");
+
+        final long start = System.nanoTime();
+        String name = jdbcTemplate.queryForObject("SELECT name FROM PEOPLE WHERE id = ?", String.class, 1);
+        final long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+        assertThat(name, equalTo("Erich"));
+        assertThat(elapsedMillis, lessThan(1000L));
+        WireMock.verify(2, WireMock.postRequestedFor(WireMock.urlPathEqualTo("/sqlstub")));
+    }
+
+    @Test
+    public void hedged_requests_need_a_permit_of_the_concurrency_limit() throws Exception {
+        factory.setConcurrencyLimitPolicy(ConcurrencyLimitPolicy.fixed(1, OverloadPolicy.QUEUE));
+        stubSlowThenFast("SELECT name FROM PEOPLE WHERE id = ?", "<resultset><row><name>Erich</name></row></resultset>");
+
+        String name = jdbcTemplate.queryForObject("SELECT name FROM PEOPLE WHERE id = ?", String.class, 1);
+
+        assertThat(name, equalTo("Erich"));
+        // the only permit is held by the slow request
+        WireMock.verify(1, WireMock.postRequestedFor(WireMock.urlPathEqualTo("/sqlstub")));
+        assertThat(factory.getConcurrencyLimiter().getInFlight(), equalTo(0));
+    }
+
+    @Test
+    public void updates_are_never_hedged() {
+        stubSlowThenFast("UPDATE PEOPLE SET name = ? WHERE id = ?", "1");
+
+        int rows = jdbcTemplate.update("UPDATE PEOPLE SET name = ? WHERE id = ?", "Erich", 1);
+
+        assertThat(rows, equalTo(1));
+        WireMock.verify(1, WireMock.postRequestedFor(WireMock.urlPathEqualTo("/sqlstub")));
+    }
+
+    private void stubSlowThenFast(String sql, String body) {
+        WireMock.stubFor(WireMock
+            .post(WireMock.urlPathEqualTo("/sqlstub"))
+            .inScenario("slow-then-fast")
+            .whenScenarioStateIs(Scenario.STARTED)
+            .withRequestBody(WireMock.equalTo(sql))
+            .willReturn(WireMock.aResponse().withFixedDelay(1500).withBody(body))
+            .willSetStateTo("fast")
+        );
+        WireMock.stubFor(WireMock
+            .post(WireMock.urlPathEqualTo("/sqlstub"))
+            .inScenario("slow-then-fast")
+            .whenScenarioStateIs("fast")
+            .withRequestBody(WireMock.equalTo(sql))
+            .willReturn(WireMock.aResponse().withBody(body))
+        );
+    }
+}
@@ -0,0 +1,41 @@
+package org.eeichinger.servicevirtualisation.jdbc;
+
+import org.apache.hc.core5.http.HttpVersion;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+public class Http2StubTransportTest {
+
+    @Rule
+    public H2StubServer stubServer = new H2StubServer(sql -> "<resultset><row><sql>" + sql + "</sql></row></resultset>");
+
+    JdbcServiceVirtualizationFactory factory;
+
+    @Before
+    public void before() {
+        factory = new JdbcServiceVirtualizationFactory();
+        factory.setTargetUrl("http://localhost:" + stubServer.port() + "/sqlstub");
+        factory.setTransportProtocol(StubTransportProtocol.H2C);
+    }
+
+    @After
+    public void after() throws Exception {
+        factory.close();
+    }
+
+    @Test
+    public void sends_requests_using_h2c() {
+        JdbcTemplate jdbcTemplate = new JdbcTemplate(factory.createMockDataSource());
+
+        String result = jdbcTemplate.queryForObject("SELECT sql FROM ECHO WHERE id = ?", String.class, 1);
+
+        assertThat(result, equalTo("SELECT sql FROM ECHO WHERE id = ?"));
+        assertThat(stubServer.getProtocolVersions(), contains(HttpVersion.HTTP_2));
+    }
+}
@@ -0,0 +1,129 @@
+package org.eeichinger.servicevirtualisation.jdbc;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import javax.sql.DataSource;
+
+import com.github.tomakehurst.wiremock.client.WireMock;
+import com.github.tomakehurst.wiremock.junit.WireMockRule;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.springframework.jdbc.UncategorizedSQLException;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.fail;
+
+public class InterceptionListenerTest {
+
+    static final String SQL = "SELECT name FROM PEOPLE WHERE age > ?";
+
+    @Rule
+    public WireMockRule wireMockRule = new WireMockRule(0);
+
+    JdbcServiceVirtualizationFactory myP6MockFactory;
+    JdbcTemplate jdbcTemplate;
+    RecordingListener listener = new RecordingListener();
+
+    @Before
+    public void before() {
+        myP6MockFactory = new JdbcServiceVirtualizationFactory();
+        myP6MockFactory.setTargetUrl("http://localhost:" + wireMockRule.port() + "/sqlstub");
+        myP6MockFactory.addInterceptionListener(listener);
+
+        DataSource dataSource = myP6MockFactory.createMockDataSource();
+        jdbcTemplate = new JdbcTemplate(dataSource);
+    }
+
+    @Test
+    public void notifies_about_answered_statements() {
+        WireMock.stubFor(WireMock
+            .post(WireMock.urlPathEqualTo("/sqlstub"))
+            .withRequestBody(WireMock.equalTo(SQL))
+            .willReturn(WireMock.aResponse().withBody("<resultset><row><name>Erich</name></row></resultset>"))
+        );
+
+        List<String> names = jdbcTemplate.queryForList(SQL, String.class, 18);
+
+        assertThat(names, contains("Erich"));
+        assertThat(listener.events, contains(
+            "beforePrepare " + SQL
+            , "beforeRequest " + SQL
+            , "afterResponse 200 52"
+            , "afterParse"
+        ));
+    }
+
+    @Test
+    public void notifies_about_stub_errors() {
+        WireMock.stubFor(WireMock
+            .post(WireMock.urlPathEqualTo("/sqlstub"))
+            .withRequestBody(WireMock.equalTo(SQL))
+            .willReturn(WireMock.aResponse()
+                .withStatus(400)
+                .withHeader("reason", "table not found")
+            )
+        );
+
+        try {
+            jdbcTemplate.queryForList(SQL, String.class, 18);
+            fail();
+        } catch (UncategorizedSQLException expected) {
+        }
+
+        assertThat(listener.events, hasItem("afterResponse 400 0"));
+        assertThat(listener.events.get(listener.events.size() - 1), equalTo("onError table not found"));
+    }
+
+    @Test
+    public void removed_listeners_are_not_notified() {
+        WireMock.stubFor(WireMock
+            .post(WireMock.urlPathEqualTo("/sqlstub"))
+            .willReturn(WireMock.aResponse().withBody("1"))
+        );
+        myP6MockFactory.removeInterceptionListener(listener);
+
+        jdbcTemplate.update("UPDATE PEOPLE SET age = ?", 18);
+
+        assertThat(listener.events, empty());
+        assertThat(myP6MockFactory.getInterceptionListeners(), empty());
+    }
+
+    static class RecordingListener implements InterceptionListener {
+        final List<String> events = new CopyOnWriteArrayList<>();
+
+        @Override
+        public void beforePrepare(String sql) {
+            events.add("beforePrepare " + sql);
+        }
+
+        @Override
+        public void beforeRequest(StubRequest request) {
+            events.add("beforeRequest " + request.getSql());
+        }
+
+        @Override
+        public void afterResponse(StubRequest request, StubResponse response, long elapsedNanos) {
+            assertThat(elapsedNanos, greaterThan(0L));
+            events.add("afterResponse " + response.getStatus() + " " + response.getRawBody().length);
+        }
+
+        @Override
+        public void afterParse(StubRequest request, Object result, long elapsedNanos) {
+            events.add("afterParse");
+        }
+
+        @Override
+        public void onPassThrough(StubRequest request, StubResponse response) {
+            events.add("onPassThrough");
+        }
+
+        @Override
+        public void onError(StubRequest request, Throwable error) {
+            events.add("onError " + error.getMessage());
+        }
+    }
+}
@@ -0,0 +1,95 @@
+package org.eeichinger.servicevirtualisation.jdbc;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.p6spy.engine.spy.option.P6OptionsRepository;
+import org.junit.Test;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+public class JdbcServiceVirtualizationOptionsTest {
+
+    JdbcServiceVirtualizationFactory factory = new JdbcServiceVirtualizationFactory();
+    JdbcServiceVirtualizationOptions options = (JdbcServiceVirtualizationOptions) factory.getOptions(new P6OptionsRepository());
+
+    @Test
+    public void defaults_match_factory_defaults() {
+        options.load(options.getDefaults());
+
+        JdbcServiceVirtualizationFactory defaultFactory = new JdbcServiceVirtualizationFactory();
+        assertThat(factory.getMaxConnectionsPerEndpoint(), equalTo(defaultFactory.getMaxConnectionsPerEndpoint()));
+        assertThat(factory.getTimeoutMillis(), equalTo(defaultFactory.getTimeoutMillis()));
+        assertThat(factory.getTransportProtocol(), equalTo(defaultFactory.getTransportProtocol()));
+        assertThat(factory.getCompression().isAcceptCompressedResponses(), equalTo(true));
+        assertThat(factory.getResultSetCacheSize(), equalTo(defaultFactory.getResultSetCacheSize()));
+        assertThat(factory.getPreparedStatementCacheSize(), equalTo(defaultFactory.getPreparedStatementCacheSize()));
+        assertThat(factory.getMaxTrackedStatements(), equalTo(defaultFactory.getMaxTrackedStatements()));
+        assertThat(factory.getBufferedUpdateCount(), equalTo(defaultFactory.getBufferedUpdateCount()));
+    }
+
+    @Test
+    public void loads_options_into_factory() {
+        Map<String, String> config = new HashMap<>();
+        config.put(JdbcServiceVirtualizationOptions.TARGET_URLS, "http://stub1:8080/sqlstub, http://stub2:8080/sqlstub");
+        config.put(JdbcServiceVirtualizationOptions.TIMEOUT_MILLIS, "250");
+        config.put(JdbcServiceVirtualizationOptions.TRANSPORT_PROTOCOL, "H2C");
+        config.put(JdbcServiceVirtualizationOptions.REQUEST_COMPRESSION_THRESHOLD, "4096");
+        config.put(JdbcServiceVirtualizationOptions.PREPARED_STATEMENT_CACHE_SIZE, "64");
+        config.put(JdbcServiceVirtualizationOptions.WRITE_BUFFERING, "true");
+
+        options.load(config);
+
+        assertThat(factory.getTargetUrls(), contains("http://stub1:8080/sqlstub", "http://stub2:8080/sqlstub"));
+        assertThat(factory.getTimeoutMillis(), equalTo(250));
+        assertThat(factory.getTransportProtocol(), equalTo(StubTransportProtocol.H2C));
+        assertThat(factory.getCompression().getRequestCompressionThreshold(), equalTo(4096));
+        assertThat(factory.getCompression().isAcceptCompressedResponses(), equalTo(true));
+        assertThat(factory.getPreparedStatementCacheSize(), equalTo(64));
+        assertThat(factory.isWriteBuffering(), equalTo(true));
+        // untouched
+        assertThat(factory.getMaxConnectionsPerEndpoint(), equalTo(100));
+    }
+
+    @Test
+    public void reloading_unchanged_options_keeps_client_and_caches() {
+        Map<String, String> config = new HashMap<>(options.getDefaults());
+        config.put(JdbcServiceVirtualizationOptions.TARGET_URLS, "http://localhost:8080/sqlstub");
+        config.put(JdbcServiceVirtualizationOptions.RESULT_SET_CACHE_SIZE, "256");
+        options.load(config);
+        List<StubEndpoint> endpoints = factory.getStubEndpoints();
+        ResultSetTemplateCache resultSetCache = factory.getResultSetTemplateCache();
+
+        options.load(config);
+
+        assertThat(factory.getStubEndpoints(), sameInstance(endpoints));
+        assertThat(resultSetCache, notNullValue());
+        assertThat(factory.getResultSetTemplateCache(), sameInstance(resultSetCache));
+
+        config.put(JdbcServiceVirtualizationOptions.TIMEOUT_MILLIS, "1000");
+        options.load(config);
+
+        assertThat(factory.getStubEndpoints(), not(sameInstance(endpoints)));
+        assertThat(factory.getResultSetTemplateCache(), sameInstance(resultSetCache));
+    }
+
+    @Test
+    public void switches_configured_listeners() {
+        InterceptionListener other = new InterceptionListener() {};
+        factory.addInterceptionListener(other);
+
+        options.setStubInterceptionListeners(CountingListener.class.getName());
+        List<InterceptionListener> listeners = factory.getInterceptionListeners();
+        assertThat(listeners, hasSize(2));
+        assertThat(listeners.get(0), sameInstance(other));
+        assertThat(listeners.get(1), instanceOf(CountingListener.class));
+
+        options.setStubInterceptionListeners("");
+        assertThat(factory.getInterceptionListeners(), contains(sameInstance(other)));
+    }
+
+    public static class CountingListener implements InterceptionListener {
+    }
+}
@@ -0,0 +1,106 @@
+package org.eeichinger.servicevirtualisation.jdbc;
+
+import java.net.ServerSocket;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.github.tomakehurst.wiremock.client.WireMock;
+import com.github.tomakehurst.wiremock.junit.WireMockRule;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+public class LoadBalancingStubClientTest {
+
+    @Rule
+    public WireMockRule wireMockRule1 = new WireMockRule(0);
+
+    @Rule
+    public WireMockRule wireMockRule2 = new WireMockRule(0);
+
+    JdbcServiceVirtualizationFactory factory;
+
+    @Before
+    public void before() {
+        factory = new JdbcServiceVirtualizationFactory();
+        for (WireMockRule rule : Arrays.asList(wireMockRule1, wireMockRule2)) {
+            rule.stubFor(WireMock
+                .post(WireMock.urlPathEqualTo("/sqlstub"))
+                .willReturn(WireMock
+                    .aResponse()
+                    .withBody("<resultset><row><port>" + rule.port() + "</port></row></resultset>")
+                )
+            );
+        }
+    }
+
+    @After
+    public void after() throws Exception {
+        factory.close();
+    }
+
+    @Test
+    public void routes_same_statement_consistently_and_spreads_different_statements() {
+        factory.setTargetUrls(Arrays.asList(
+            "http://localhost:" + wireMockRule1.port() + "/sqlstub"
+            , "http://localhost:" + wireMockRule2.port() + "/sqlstub"
+        ));
+        JdbcTemplate jdbcTemplate = new JdbcTemplate(factory.createMockDataSource());
+
+        // literals are not part of the fingerprint, so all these statements are routed to the same endpoint
+        Set<Integer> routes = new HashSet<>();
+        for (int i = 0; i < 50; i++) {
+            final String sql = "SELECT port FROM SERVERS WHERE name = ? AND id = " + i;
+            routes.add(jdbcTemplate.queryForObject(sql, Integer.class, "x"));
+        }
+        assertThat(routes, hasSize(1));
+
+        Map<String, Integer> spread = new HashMap<>();
+        for (int i = 0; i < 50; i++) {
+            final String sql = "SELECT port FROM SERVERS_" + (char) ('A' + i % 26) + (char) ('A' + i / 26) + " WHERE name = ?";
+            spread.put(sql, jdbcTemplate.queryForObject(sql, Integer.class, "x"));
+        }
+        assertThat(spread.values(), hasItem(wireMockRule1.port()));
+        assertThat(spread.values(), hasItem(wireMockRule2.port()));
+    }
+
+    @Test
+    public void ejects_failing_endpoint_and_fails_over_queries() throws Exception {
+        int deadPort;
+        try (ServerSocket socket = new ServerSocket(0)) {
+            deadPort = socket.getLocalPort();
+        }
+        factory.setEndpointFailureThreshold(2);
+        factory.setEndpointEjectionMillis(60000);
+        factory.setTargetUrls(Arrays.asList(
+            "http://localhost:" + deadPort + "/sqlstub"
+            , "http://localhost:" + wireMockRule1.port() + "/sqlstub"
+        ));
+        JdbcTemplate jdbcTemplate = new JdbcTemplate(factory.createMockDataSource());
+
+        for (int i = 0; i < 50; i++) {
+            final String sql = "SELECT port FROM SERVERS_" + i + " WHERE name = ?";
+            assertThat(jdbcTemplate.queryForObject(sql, Integer.class, "x"), equalTo(wireMockRule1.port()));
+        }
+
+        List<StubEndpoint> endpoints = factory.getStubEndpoints();
+        StubEndpoint dead = endpoints.get(0);
+        StubEndpoint alive = endpoints.get(1);
+        assertThat(dead.isAvailable(), is(false));
+        assertThat(dead.getMetrics().getEjections(), equalTo(1L));
+        assertThat(dead.getMetrics().getFailures(), equalTo(2L));
+        assertThat(alive.isAvailable(), is(true));
+        assertThat(alive.getMetrics().getRequests(), equalTo(50L));
+        assertThat(alive.getMetrics().getFailures(), equalTo(0L));
+        assertThat(alive.getMetrics().getLatency().getCount(), equalTo(50L));
+    }
+}
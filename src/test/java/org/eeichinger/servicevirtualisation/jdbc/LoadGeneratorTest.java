@@ -0,0 +1,89 @@
+package org.eeichinger.servicevirtualisation.jdbc;
+
+import java.util.concurrent.TimeUnit;
+
+import com.github.tomakehurst.wiremock.client.WireMock;
+import com.github.tomakehurst.wiremock.junit.WireMockRule;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+public class LoadGeneratorTest {
+
+    @Rule
+    public WireMockRule wireMockRule = new WireMockRule(0);
+
+    JdbcServiceVirtualizationFactory factory;
+    LoadGenerator loadGenerator;
+
+    @Before
+    public void before() {
+        factory = new JdbcServiceVirtualizationFactory();
+        factory.setTargetUrl("http://localhost:" + wireMockRule.port() + "/sqlstub");
+        WireMock.stubFor(WireMock
+            .post(WireMock.urlPathEqualTo("/sqlstub"))
+            .withRequestBody(WireMock.equalTo("SELECT name FROM PEOPLE WHERE id = ?"))
+            .willReturn(WireMock.aResponse().withBody("<resultset><row><name>Erich</name></row></resultset>"))
+        );
+        WireMock.stubFor(WireMock
+            .post(WireMock.urlPathEqualTo("/sqlstub"))
+            .withRequestBody(WireMock.equalTo("UPDATE PEOPLE SET name = ? WHERE id = ?"))
+            .willReturn(WireMock.aResponse().withBody("1"))
+        );
+
+        loadGenerator = new LoadGenerator(factory.createMockDataSource());
+        loadGenerator.addQuery("SELECT name FROM PEOPLE WHERE id = ?", 3, ParameterGenerator.randomLong(1, 1000));
+        loadGenerator.addUpdate("UPDATE PEOPLE SET name = ? WHERE id = ?", 1, ParameterGenerator.oneOf("Erich", "Matthias"), ParameterGenerator.sequence(1, 100));
+    }
+
+    @After
+    public void after() throws Exception {
+        factory.close();
+    }
+
+    @Test
+    public void closed_loop_reports_throughput_and_latencies_per_statement() throws Exception {
+        loadGenerator.setConcurrency(8);
+        loadGenerator.setWarmup(200, TimeUnit.MILLISECONDS);
+        loadGenerator.setDuration(1, TimeUnit.SECONDS);
+
+        LoadReport report = loadGenerator.run();
+
+        assertThat(report.getErrors(), equalTo(0L));
+        assertThat(report.getExecutions(), greaterThan(0L));
+        assertThat(report.getThroughput(), greaterThan(0.0));
+        assertThat(report.getLatency().getPercentileMicros(99), greaterThan(0L));
+        assertThat(report.getStatementLatencies().keySet(), contains("SELECT name FROM PEOPLE WHERE id = ?", "UPDATE PEOPLE SET name = ? WHERE id = ?"));
+        assertThat(report.getStatementLatencies().get("UPDATE PEOPLE SET name = ? WHERE id = ?").getCount(), greaterThan(0L));
+    }
+
+    @Test
+    public void open_loop_executes_at_the_configured_rate() throws Exception {
+        loadGenerator.setConcurrency(4);
+        loadGenerator.setArrivalRate(100);
+        loadGenerator.setDuration(1, TimeUnit.SECONDS);
+
+        LoadReport report = loadGenerator.run();
+
+        assertThat(report.getErrors(), equalTo(0L));
+        assertThat(report.getExecutions(), equalTo(100L));
+    }
+
+    @Test
+    public void counts_errors() throws Exception {
+        loadGenerator = new LoadGenerator(factory.createMockDataSource());
+        loadGenerator.addQuery("SELECT name FROM UNKNOWN WHERE id = ?", 1, ParameterGenerator.constant(1));
+        loadGenerator.setConcurrency(1);
+        loadGenerator.setArrivalRate(10);
+        loadGenerator.setDuration(500, TimeUnit.MILLISECONDS);
+
+        LoadReport report = loadGenerator.run();
+
+        assertThat(report.getExecutions(), equalTo(0L));
+        assertThat(report.getErrors(), equalTo(5L));
+    }
+}
@@ -2,6 +2,7 @@ package org.eeichinger.servicevirtualisation.jdbc;
 
 import java.sql.Connection;
 import java.sql.PreparedStatement;
+import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Random;
@@ -14,6 +15,7 @@ import javax.sql.DataSource;
 
 import com.github.tomakehurst.wiremock.client.WireMock;
 import com.github.tomakehurst.wiremock.junit.WireMockRule;
+import com.mockrunner.mock.jdbc.MockConnection;
 import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
@@ -21,7 +23,7 @@ import org.junit.rules.ExpectedException;
 import org.springframework.jdbc.core.JdbcTemplate;
 
 import static org.hamcrest.MatcherAssert.assertThat;
-import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.*;
 
 /**
  * @author Erich Eichinger
@@ -76,4 +78,70 @@ public class MockDataSourceThreadSafetyTest {
             }
         }
     }
+
+    @Test
+    public void hands_out_independent_connections_and_reuses_closed_ones() throws Exception {
+        final Connection connection1 = dataSource.getConnection();
+        final Connection connection2 = dataSource.getConnection();
+        final MockConnection mockConnection1 = connection1.unwrap(MockConnection.class);
+        assertThat(mockConnection1, not(sameInstance(connection2.unwrap(MockConnection.class))));
+
+        connection1.setAutoCommit(false);
+        connection1.prepareStatement("SELECT name FROM PEOPLE WHERE id = ?");
+        connection1.close();
+        assertThat(connection1.isClosed(), is(true));
+
+        final Connection connection3 = dataSource.getConnection();
+        assertThat(connection3.unwrap(MockConnection.class), sameInstance(mockConnection1));
+        assertThat(connection3.isClosed(), is(false));
+        assertThat(connection3.getAutoCommit(), is(true));
+        assertThat(mockConnection1.getPreparedStatementResultSetHandler().getPreparedStatements(), empty());
+    }
+
+    @Test
+    public void closing_a_stale_connection_does_not_reset_the_reused_one() throws Exception {
+        final Connection stale = dataSource.getConnection();
+        final MockConnection mockConnection = stale.unwrap(MockConnection.class);
+        stale.close();
+
+        try (Connection connection = dataSource.getConnection()) {
+            assertThat(connection.unwrap(MockConnection.class), sameInstance(mockConnection));
+            connection.setAutoCommit(false);
+
+            stale.close();
+            assertThat(stale.isClosed(), is(true));
+            assertThat(connection.isClosed(), is(false));
+            assertThat(connection.getAutoCommit(), is(false));
+
+            // the connection isn't back in the pool, so it isn't handed out twice
+            try (Connection other = dataSource.getConnection()) {
+                assertThat(other.unwrap(MockConnection.class), not(sameInstance(mockConnection)));
+            }
+        }
+
+        thrown.expect(SQLException.class);
+        stale.prepareStatement("SELECT name FROM PEOPLE WHERE id = ?");
+    }
+
+    @Test
+    public void concurrent_callers_use_separate_connections() throws Throwable {
+        WireMock.stubFor(WireMock
+            .post(WireMock.urlPathEqualTo("/sqlstub"))
+            .willReturn(WireMock.aResponse().withBody("<resultset><row><name>Erich</name></row></resultset>"))
+        );
+        final JdbcTemplate jdbcTemplate = new JdbcTemplate(dataSource);
+
+        final ExecutorService executor = Executors.newFixedThreadPool(50);
+        try {
+            ArrayList<Callable<String>> tasks = new ArrayList<>();
+            for (int i = 0; i < 2000; i++) {
+                tasks.add(() -> jdbcTemplate.queryForObject("SELECT name FROM PEOPLE WHERE id = ?", String.class, 1));
+            }
+            for (Future<String> result : executor.invokeAll(tasks)) {
+                assertThat(result.get(), equalTo("Erich"));
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
 }
@@ -2,6 +2,7 @@ package org.eeichinger.servicevirtualisation.jdbc;
 
 import java.sql.Date;
 import java.time.LocalDate;
+import java.util.Arrays;
 
 import com.mockrunner.mock.jdbc.MockResultSet;
 import org.junit.Test;
@@ -171,4 +172,50 @@ public class MockResultSetHelperTest {
         assertThat(resultSet.getString(2), nullValue());
         assertThat(resultSet.getString(3), equalTo("Philadelphia"));
     }
+
+    @Test
+    public void parallel_parse_returns_rows_in_order() throws Exception {
+        StringBuilder xml = new StringBuilder("<?xml version='1.0'?>\n<!-- <row> in a comment -->\n"
+            + "<resultset xmlns:xsi='http://www.w3.org/2001/XMLSchema-instance' note='a > b'>\n"
+            + "     <cols><col>id</col><col>name</col><col>row</col></cols>\n");
+        for (int i = 0; i < 5000; i++) {
+            xml.append("     <row><col>").append(i).append("</col>");
+            if (i % 3 == 0) {
+                xml.append("<col xsi:nil='true'/>");
+            } else {
+                xml.append("<col><![CDATA[</row><row>").append(i).append("]]></col>");
+            }
+            // a column named like a row isn't a row
+            xml.append("<row>nested ").append(i).append("</row></row>\n");
+        }
+        xml.append("</resultset>\n");
+
+        final MockResultSet sequential = MockResultSetHelper.parseResultSetFromSybaseXmlString("x", xml.toString(), -1, -1);
+        final MockResultSet parallel = MockResultSetHelper.parseResultSetFromSybaseXmlString("x", xml.toString(), -1, 0);
+
+        assertThat(parallel.getColumnCount(), equalTo(3));
+        assertThat(parallel.getRowCount(), equalTo(5000));
+        for (int i = 1; i <= 5000; i++) {
+            assertEquals(sequential.getRow(i), parallel.getRow(i));
+        }
+        assertEquals(Arrays.asList("2", "</row><row>2", "nested 2"), parallel.getRow(3));
+    }
+
+    @Test
+    public void parallel_parse_determines_column_names_from_first_row() throws Exception {
+        String xml = "<resultset>"
+            + "<row><name>Erich Eichinger</name><placeofbirth>London</placeofbirth></row>"
+            + "<row><placeofbirth>Stuttgart</placeofbirth><name>Matthias Bernlöhr</name></row>"
+            + "<row><name>Max Mustermann</name></row>"
+            + "</resultset>";
+
+        final MockResultSet resultSet = MockResultSetHelper.parseResultSetFromSybaseXmlString("x", xml, -1, 0);
+
+        assertThat(resultSet.getRowCount(), equalTo(3));
+        resultSet.next();
+        resultSet.next();
+        assertThat(resultSet.getString("name"), equalTo("Matthias Bernlöhr"));
+        resultSet.next();
+        assertThat(resultSet.getString("placeofbirth"), nullValue());
+    }
 }
@@ -0,0 +1,94 @@
+package org.eeichinger.servicevirtualisation.jdbc;
+
+import java.util.List;
+
+import com.github.tomakehurst.wiremock.client.MappingBuilder;
+import com.github.tomakehurst.wiremock.client.ResponseDefinitionBuilder;
+import com.github.tomakehurst.wiremock.client.WireMock;
+import com.github.tomakehurst.wiremock.junit.WireMockRule;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+public class PagedResultSetTest {
+
+    static final String SQL = "SELECT name FROM PEOPLE WHERE age > ?";
+
+    @Rule
+    public WireMockRule wireMockRule = new WireMockRule(0);
+
+    JdbcServiceVirtualizationFactory factory;
+    JdbcTemplate jdbcTemplate;
+
+    @Before
+    public void before() {
+        factory = new JdbcServiceVirtualizationFactory();
+        factory.setTargetUrl("http://localhost:" + wireMockRule.port() + "/sqlstub");
+        jdbcTemplate = new JdbcTemplate(factory.createMockDataSource());
+
+        // the more recently added stub takes precedence
+        stubPage(null, "page-2", "Erich", "Matthias");
+        stubPage("page-2", "page-3", "Max");
+        stubPage("page-3", null, "James");
+    }
+
+    @After
+    public void after() throws Exception {
+        factory.close();
+    }
+
+    @Test
+    public void follows_continuations_while_iterating() {
+        List<String> names = jdbcTemplate.queryForList(SQL, String.class, 18);
+
+        assertThat(names, contains("Erich", "Matthias", "Max", "James"));
+        WireMock.verify(3, WireMock.postRequestedFor(WireMock.urlPathEqualTo("/sqlstub")));
+    }
+
+    @Test
+    public void fetches_only_pages_read_by_caller() {
+        String first = jdbcTemplate.query(SQL, rs -> rs.next() ? rs.getString(1) : null, 18);
+
+        assertThat(first, equalTo("Erich"));
+        WireMock.verify(1, WireMock.postRequestedFor(WireMock.urlPathEqualTo("/sqlstub")));
+    }
+
+    @Test
+    public void sends_hints_and_enforces_max_rows_across_pages() {
+        jdbcTemplate.setFetchSize(2);
+        jdbcTemplate.setMaxRows(3);
+
+        List<String> names = jdbcTemplate.queryForList(SQL, String.class, 18);
+
+        assertThat(names, contains("Erich", "Matthias", "Max"));
+        WireMock.verify(2, WireMock.postRequestedFor(WireMock.urlPathEqualTo("/sqlstub"))
+            .withHeader(StubRequest.FETCH_SIZE_HEADER, WireMock.equalTo("2"))
+            .withHeader(StubRequest.MAX_ROWS_HEADER, WireMock.equalTo("3"))
+        );
+    }
+
+    private void stubPage(String continuation, String next, String... names) {
+        StringBuilder body = new StringBuilder("<resultset>");
+        for (String name : names) {
+            body.append("<row><name>").append(name).append("</name></row>");
+        }
+        body.append("</resultset>");
+
+        MappingBuilder request = WireMock
+            .post(WireMock.urlPathEqualTo("/sqlstub"))
+            .withRequestBody(WireMock.equalTo(SQL));
+        if (continuation != null) {
+            request = request.withHeader(PagedResultSet.CONTINUATION_HEADER, WireMock.equalTo(continuation));
+        }
+        ResponseDefinitionBuilder response = WireMock.aResponse().withBody(body.toString());
+        if (next != null) {
+            response = response.withHeader(PagedResultSet.CONTINUATION_HEADER, next);
+        }
+        WireMock.stubFor(request.willReturn(response));
+    }
+}
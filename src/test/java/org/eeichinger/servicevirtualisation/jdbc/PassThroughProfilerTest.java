@@ -0,0 +1,122 @@
+package org.eeichinger.servicevirtualisation.jdbc;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.List;
+
+import com.github.tomakehurst.wiremock.junit.WireMockRule;
+import lombok.SneakyThrows;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.springframework.core.io.ByteArrayResource;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.embedded.EmbeddedDatabaseFactoryBean;
+import org.springframework.jdbc.datasource.embedded.EmbeddedDatabaseType;
+import org.springframework.jdbc.datasource.init.ResourceDatabasePopulator;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+public class PassThroughProfilerTest {
+
+    static final String QUERY = "SELECT birthday FROM PEOPLE WHERE name = ?";
+    static final String UPDATE = "UPDATE PEOPLE SET birthday = ? WHERE name = ?";
+
+    @Rule
+    public WireMockRule wireMockRule = new WireMockRule(0);
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    EmbeddedDatabaseFactoryBean databaseFactory;
+    JdbcServiceVirtualizationFactory myP6MockFactory;
+    JdbcTemplate jdbcTemplate;
+
+    @Before
+    @SneakyThrows
+    public void before() {
+        final ResourceDatabasePopulator dbPopulator = new ResourceDatabasePopulator();
+        dbPopulator.addScript(new ByteArrayResource(("" +
+            "CREATE TABLE PEOPLE (name VARCHAR(200) NOT NULL, birthday VARCHAR(200) NOT NULL);\n" +
+            "INSERT INTO PEOPLE(name, birthday) VALUES('Hugo Simon', '2012-01-02');\n"
+        ).getBytes("utf-8")));
+        databaseFactory = new EmbeddedDatabaseFactoryBean();
+        databaseFactory.setDatabaseType(EmbeddedDatabaseType.HSQL);
+        databaseFactory.setDatabasePopulator(dbPopulator);
+        databaseFactory.afterPropertiesSet();
+
+        myP6MockFactory = new JdbcServiceVirtualizationFactory();
+        myP6MockFactory.setTargetUrl("http://localhost:" + wireMockRule.port() + "/sqlstub");
+        jdbcTemplate = new JdbcTemplate(myP6MockFactory.spyOnDataSource(databaseFactory.getObject()));
+    }
+
+    @After
+    public void after() {
+        databaseFactory.destroy();
+    }
+
+    @Test
+    public void keeps_heavy_hitters_within_capacity() {
+        PassThroughProfiler profiler = new PassThroughProfiler(4);
+        for (int i = 0; i < 1000; i++) {
+            profiler.record(request("SELECT * FROM frequent"), 0, 1000);
+            if (i % 10 == 0) {
+                profiler.record(request("SELECT * FROM slow"), 0, 1000000);
+            }
+            profiler.record(request("SELECT * FROM rare_" + i), 0, 1000);
+        }
+
+        List<PassThroughProfiler.HeavyHitter> byCount = profiler.getTopByCount(2);
+        assertThat(byCount, hasSize(2));
+        assertThat(byCount.get(0).getSql(), equalTo("SELECT * FROM frequent"));
+        assertThat(byCount.get(0).getCount(), equalTo(1000L));
+        assertThat(byCount.get(0).getError(), equalTo(0L));
+
+        List<PassThroughProfiler.HeavyHitter> byTime = profiler.getTopByTime(1);
+        assertThat(byTime.get(0).getSql(), equalTo("SELECT * FROM slow"));
+        assertThat(byTime.get(0).getTotalMillis(), equalTo(100L));
+        assertThat(profiler.getTopByTime(10), hasSize(4));
+    }
+
+    @Test
+    public void profiles_statements_passed_through_and_suggests_stub_mappings() throws Exception {
+        myP6MockFactory.setPassThroughProfiler(new PassThroughProfiler(16));
+
+        for (int i = 0; i < 3; i++) {
+            assertThat(jdbcTemplate.queryForObject(QUERY, String.class, "Hugo Simon"), equalTo("2012-01-02"));
+        }
+        assertThat(jdbcTemplate.update(UPDATE, "2012-01-03", "Hugo Simon"), equalTo(1));
+
+        PassThroughProfiler profiler = myP6MockFactory.getPassThroughProfiler();
+        List<PassThroughProfiler.HeavyHitter> byCount = profiler.getTopByCount(1);
+        assertThat(byCount.get(0).getSql(), equalTo(QUERY));
+        assertThat(byCount.get(0).getCount(), equalTo(3L));
+        assertThat(byCount.get(0).getColumns(), contains("BIRTHDAY"));
+        assertThat(profiler.report(2), containsString(UPDATE));
+
+        Path root = temporaryFolder.getRoot().toPath();
+        List<Path> files = profiler.writeSuggestedStubMappings(root, "http://localhost:" + wireMockRule.port() + "/sqlstub", 2);
+        assertThat(files, hasSize(2));
+        for (Path file : files) {
+            String json = new String(Files.readAllBytes(file), StandardCharsets.UTF_8);
+            if (json.contains("bodyFileName")) {
+                assertThat(json, containsString("\"equalTo\" : \"Hugo Simon\""));
+            }
+        }
+
+        myP6MockFactory.preloadStubMappings(root);
+        assertThat(myP6MockFactory.getStubMappings().getPreloadedCount(), equalTo(2));
+        assertThat(jdbcTemplate.update(UPDATE, "2012-01-03", "Hugo Simon"), equalTo(1));
+        assertThat(jdbcTemplate.queryForList(QUERY, String.class, "Hugo Simon"), empty());
+        assertThat(myP6MockFactory.getStubMappings().getHits(), equalTo(2L));
+    }
+
+    private static StubRequest request(String sql) {
+        return new StubRequest(sql, SqlFingerprint.of(sql), Collections.<Integer, Object>emptyMap(), true);
+    }
+}
@@ -0,0 +1,147 @@
+package org.eeichinger.servicevirtualisation.jdbc;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+
+import javax.sql.DataSource;
+
+import com.github.tomakehurst.wiremock.client.WireMock;
+import com.github.tomakehurst.wiremock.junit.WireMockRule;
+import com.mockrunner.mock.jdbc.MockConnection;
+import com.mockrunner.mock.jdbc.MockPreparedStatement;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+public class PreparedStatementCacheTest {
+
+    static final String SQL = "SELECT name FROM PEOPLE WHERE age > ?";
+
+    @Rule
+    public WireMockRule wireMockRule = new WireMockRule(0);
+
+    JdbcServiceVirtualizationFactory myP6MockFactory;
+    DataSource dataSource;
+
+    @Before
+    public void before() {
+        myP6MockFactory = new JdbcServiceVirtualizationFactory();
+        myP6MockFactory.setTargetUrl("http://localhost:" + wireMockRule.port() + "/sqlstub");
+        myP6MockFactory.setPreparedStatementCacheSize(16);
+
+        dataSource = myP6MockFactory.createMockDataSource();
+
+        WireMock.stubFor(WireMock
+            .post(WireMock.urlPathEqualTo("/sqlstub"))
+            .withRequestBody(WireMock.equalTo(SQL))
+            .withHeader("1", WireMock.equalTo("18"))
+            .willReturn(WireMock.aResponse().withBody("<resultset><row><name>Erich</name></row></resultset>"))
+        );
+    }
+
+    @Test
+    public void reuses_proxy_of_closed_statement_across_connections() throws Exception {
+        final MockPreparedStatement first;
+        try (Connection connection = dataSource.getConnection()) {
+            PreparedStatement statement = connection.prepareStatement(SQL);
+            first = statement.unwrap(MockPreparedStatement.class);
+            assertThat(query(statement), equalTo("Erich"));
+            statement.close();
+        }
+
+        try (Connection connection = dataSource.getConnection()) {
+            PreparedStatement second = connection.prepareStatement(SQL);
+            assertThat(second.unwrap(MockPreparedStatement.class), sameInstance(first));
+            assertThat(second.isClosed(), is(false));
+            assertThat(query(second), equalTo("Erich"));
+            second.close();
+        }
+
+        PreparedStatementCache cache = myP6MockFactory.getPreparedStatementCache();
+        assertThat(cache.getHits(), equalTo(1L));
+        assertThat(cache.getMisses(), equalTo(1L));
+    }
+
+    @Test
+    public void open_statements_are_not_shared() throws Exception {
+        try (Connection connection = dataSource.getConnection()) {
+            PreparedStatement first = connection.prepareStatement(SQL);
+            PreparedStatement second = connection.prepareStatement(SQL);
+            assertThat(second, not(sameInstance(first)));
+        }
+    }
+
+    @Test
+    public void closing_a_stale_statement_does_not_reset_the_reused_one() throws Exception {
+        try (Connection connection = dataSource.getConnection()) {
+            PreparedStatement stale = connection.prepareStatement(SQL);
+            stale.close();
+
+            PreparedStatement statement = connection.prepareStatement(SQL);
+            assertThat(statement.unwrap(MockPreparedStatement.class), notNullValue());
+            statement.setInt(1, 18);
+            statement.setMaxRows(5);
+
+            stale.close();
+            assertThat(stale.isClosed(), is(true));
+            assertThat(statement.isClosed(), is(false));
+            assertThat(statement.getMaxRows(), equalTo(5));
+            // the statement isn't back in the cache, so it isn't handed out twice
+            PreparedStatement other = connection.prepareStatement(SQL);
+            assertThat(other.unwrap(MockPreparedStatement.class), not(sameInstance(statement.unwrap(MockPreparedStatement.class))));
+            try (ResultSet resultSet = statement.executeQuery()) {
+                assertThat(resultSet.next(), is(true));
+            }
+        }
+    }
+
+    @Test
+    public void statements_reused_by_a_recycled_connection_are_registered_again() throws Exception {
+        final MockPreparedStatement first;
+        try (Connection connection = dataSource.getConnection()) {
+            PreparedStatement statement = connection.prepareStatement(SQL);
+            first = statement.unwrap(MockPreparedStatement.class);
+            statement.close();
+        }
+
+        try (Connection connection = dataSource.getConnection()) {
+            PreparedStatement statement = connection.prepareStatement(SQL);
+            assertThat(statement.unwrap(MockPreparedStatement.class), sameInstance(first));
+            assertThat(connection.unwrap(MockConnection.class).getPreparedStatementResultSetHandler().getPreparedStatements(), contains(first));
+        }
+    }
+
+    @Test
+    public void reused_statements_forget_parameters_and_hints() throws Exception {
+        try (Connection connection = dataSource.getConnection()) {
+            PreparedStatement statement = connection.prepareStatement(SQL);
+            statement.setInt(1, 18);
+            statement.setInt(2, 99);
+            statement.setMaxRows(5);
+            statement.close();
+
+            statement = connection.prepareStatement(SQL);
+            assertThat(statement.getMaxRows(), equalTo(0));
+            // a leftover parameter "2" or max rows hint wouldn't match the stub
+            statement.setInt(1, 18);
+            try (ResultSet resultSet = statement.executeQuery()) {
+                assertThat(resultSet.next(), is(true));
+            }
+            WireMock.verify(WireMock.postRequestedFor(WireMock.urlPathEqualTo("/sqlstub"))
+                .withoutHeader("2")
+                .withoutHeader(StubRequest.MAX_ROWS_HEADER));
+        }
+    }
+
+    private static String query(PreparedStatement statement) throws Exception {
+        statement.setInt(1, 18);
+        try (ResultSet resultSet = statement.executeQuery()) {
+            assertThat(resultSet.next(), is(true));
+            return resultSet.getString("name");
+        }
+    }
+}
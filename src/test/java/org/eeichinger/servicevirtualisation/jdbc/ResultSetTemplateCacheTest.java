@@ -0,0 +1,76 @@
+package org.eeichinger.servicevirtualisation.jdbc;
+
+import java.nio.charset.StandardCharsets;
+import java.sql.SQLException;
+import java.util.Collections;
+import java.util.Map;
+
+import com.mockrunner.mock.jdbc.MockResultSet;
+import org.junit.Test;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.fail;
+
+public class ResultSetTemplateCacheTest {
+
+    static final String PEOPLE = "<resultset><row><name>Erich</name></row><row><name>Matthias</name></row></resultset>";
+
+    ResultSetTemplateCache cache = new ResultSetTemplateCache(2);
+
+    @Test
+    public void identical_bodies_are_parsed_once_and_cursors_are_independent() throws Exception {
+        MockResultSet first = cache.getResultSet(response(PEOPLE, Collections.emptyMap()));
+        MockResultSet second = cache.getResultSet(response(PEOPLE, Collections.emptyMap()));
+
+        assertThat(cache.getMisses(), equalTo(1L));
+        assertThat(cache.getHits(), equalTo(1L));
+        assertThat(second, not(sameInstance(first)));
+
+        assertThat(first.next(), is(true));
+        assertThat(first.next(), is(true));
+        assertThat(first.getString("name"), equalTo("Matthias"));
+        assertThat(second.next(), is(true));
+        assertThat(second.getString("name"), equalTo("Erich"));
+    }
+
+    @Test
+    public void cursors_are_read_only() throws Exception {
+        MockResultSet resultSet = cache.getResultSet(response(PEOPLE, Collections.emptyMap()));
+        resultSet.next();
+        try {
+            resultSet.updateString("name", "Max");
+            fail();
+        } catch (SQLException expected) {
+        }
+        assertThat(cache.getResultSet(response(PEOPLE, Collections.emptyMap())).getRowCount(), equalTo(2));
+    }
+
+    @Test
+    public void etag_is_not_trusted_for_different_bodies() throws Exception {
+        cache.getResultSet(response(PEOPLE, Collections.singletonMap("ETag", "\"people-v1\"")));
+        MockResultSet resultSet = cache.getResultSet(response("<resultset><row><name>Max</name></row></resultset>", Collections.singletonMap("ETag", "\"people-v1\"")));
+        cache.getResultSet(response(PEOPLE, Collections.singletonMap("ETag", "\"people-v1\"")));
+
+        assertThat(resultSet.getRowCount(), equalTo(1));
+        assertThat(cache.getMisses(), equalTo(2L));
+        assertThat(cache.getHits(), equalTo(1L));
+    }
+
+    @Test
+    public void evicts_least_recently_used_templates() throws Exception {
+        cache.getResultSet(response(PEOPLE, Collections.emptyMap()));
+        cache.getResultSet(response("<resultset><row><name>Max</name></row></resultset>", Collections.emptyMap()));
+        cache.getResultSet(response(PEOPLE, Collections.emptyMap()));
+        cache.getResultSet(response("<resultset><row><name>James</name></row></resultset>", Collections.emptyMap()));
+        cache.getResultSet(response(PEOPLE, Collections.emptyMap()));
+
+        assertThat(cache.size(), equalTo(2));
+        assertThat(cache.getHits(), equalTo(2L));
+        assertThat(cache.getMisses(), equalTo(3L));
+    }
+
+    private static StubResponse response(String body, Map<String, String> headers) {
+        return new StubResponse(200, headers, body.getBytes(StandardCharsets.UTF_8));
+    }
+}
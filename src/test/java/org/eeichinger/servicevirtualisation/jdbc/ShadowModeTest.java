@@ -0,0 +1,151 @@
+package org.eeichinger.servicevirtualisation.jdbc;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.concurrent.TimeUnit;
+
+import com.github.tomakehurst.wiremock.client.WireMock;
+import com.github.tomakehurst.wiremock.junit.WireMockRule;
+import lombok.SneakyThrows;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.springframework.core.io.ByteArrayResource;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.embedded.EmbeddedDatabaseFactoryBean;
+import org.springframework.jdbc.datasource.embedded.EmbeddedDatabaseType;
+import org.springframework.jdbc.datasource.init.ResourceDatabasePopulator;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+public class ShadowModeTest {
+
+    static final String SQL = "SELECT birthday FROM PEOPLE WHERE name = ?";
+
+    @Rule
+    public WireMockRule wireMockRule = new WireMockRule(0);
+
+    EmbeddedDatabaseFactoryBean databaseFactory;
+    JdbcServiceVirtualizationFactory myP6MockFactory;
+    JdbcTemplate jdbcTemplate;
+
+    @Before
+    @SneakyThrows
+    public void before() {
+        final ResourceDatabasePopulator dbPopulator = new ResourceDatabasePopulator();
+        dbPopulator.addScript(new ByteArrayResource(("" +
+            "CREATE TABLE PEOPLE (name VARCHAR(200) NOT NULL, birthday VARCHAR(200) NOT NULL);\n" +
+            "INSERT INTO PEOPLE(name, birthday) VALUES('Hugo Simon', '2012-01-02');\n" +
+            "INSERT INTO PEOPLE(name, birthday) VALUES('Erich Eichinger', '1980-01-01');\n" +
+            "CREATE TABLE DOCUMENTS (id INT NOT NULL, content BLOB, notes CLOB);\n" +
+            "INSERT INTO DOCUMENTS(id, content, notes) VALUES(1, X'010203', 'hello world');\n"
+        ).getBytes("utf-8")));
+        databaseFactory = new EmbeddedDatabaseFactoryBean();
+        databaseFactory.setDatabaseType(EmbeddedDatabaseType.HSQL);
+        databaseFactory.setDatabasePopulator(dbPopulator);
+        databaseFactory.afterPropertiesSet();
+
+        myP6MockFactory = new JdbcServiceVirtualizationFactory();
+        myP6MockFactory.setTargetUrl("http://localhost:" + wireMockRule.port() + "/sqlstub");
+        jdbcTemplate = new JdbcTemplate(myP6MockFactory.spyOnDataSource(databaseFactory.getObject()));
+
+        stubBirthday("Hugo Simon", "2000-12-31");
+        stubBirthday("Erich Eichinger", "1980-01-01");
+    }
+
+    @After
+    public void after() {
+        myP6MockFactory.setShadowPolicy(null);
+        databaseFactory.destroy();
+    }
+
+    @Test
+    public void returns_database_result_and_records_differences() throws Exception {
+        myP6MockFactory.setShadowPolicy(ShadowPolicy.DATABASE);
+
+        assertThat(query("Hugo Simon"), equalTo("2012-01-02"));
+        assertThat(query("Erich Eichinger"), equalTo("1980-01-01"));
+
+        final ShadowStatistics statistics = awaitComparisons(2);
+        assertThat(statistics.getMismatches(), equalTo(1L));
+        assertThat(statistics.getRecentDifferences(), hasSize(1));
+        assertThat(statistics.getRecentDifferences().get(0), containsString("database '2012-01-02' != stub '2000-12-31'"));
+        assertThat(statistics.getDatabaseLatency().getCount(), equalTo(2L));
+    }
+
+    @Test
+    public void returns_stub_answer() throws Exception {
+        myP6MockFactory.setShadowPolicy(ShadowPolicy.STUB);
+
+        assertThat(query("Hugo Simon"), equalTo("2000-12-31"));
+
+        final ShadowStatistics statistics = awaitComparisons(1);
+        assertThat(statistics.getMismatches(), equalTo(1L));
+    }
+
+    @Test
+    public void counts_statements_passed_through_by_stub() throws Exception {
+        myP6MockFactory.setShadowPolicy(ShadowPolicy.STUB);
+
+        assertThat(jdbcTemplate.queryForObject("SELECT name FROM PEOPLE WHERE birthday = ?", String.class, "2012-01-02"), equalTo("Hugo Simon"));
+
+        final ShadowStatistics statistics = myP6MockFactory.getShadowStatistics().values().iterator().next();
+        assertThat(statistics.getUnmatched(), equalTo(1L));
+        assertThat(statistics.getComparisons(), equalTo(0L));
+    }
+
+    @Test
+    public void compares_large_objects_by_content() throws Exception {
+        final String sql = "SELECT content, notes FROM DOCUMENTS WHERE id = ?";
+        WireMock.stubFor(WireMock
+            .post(WireMock.urlPathEqualTo("/sqlstub"))
+            .withRequestBody(WireMock.equalTo(sql))
+            .willReturn(WireMock.aResponse().withBody("<resultset><row>" +
+                "<content encoding='base64'>" + Base64.getEncoder().encodeToString(new byte[]{1, 2, 3}) + "</content>" +
+                "<notes encoding='base64'>" + Base64.getEncoder().encodeToString("hello world".getBytes(StandardCharsets.UTF_8)) + "</notes>" +
+                "</row></resultset>"))
+        );
+        myP6MockFactory.setShadowPolicy(ShadowPolicy.DATABASE);
+
+        // the database's LOBs are copied before its result set is closed
+        jdbcTemplate.query(sql, rs -> {
+            assertThat(rs.getBytes("content"), equalTo(new byte[]{1, 2, 3}));
+            assertThat(rs.getString("notes"), equalTo("hello world"));
+        }, 1);
+
+        final ShadowStatistics statistics = awaitComparisons(sql, 1);
+        assertThat(statistics.getRecentDifferences(), empty());
+        assertThat(statistics.getMismatches(), equalTo(0L));
+    }
+
+    private String query(String name) {
+        return jdbcTemplate.queryForObject(SQL, String.class, name);
+    }
+
+    private ShadowStatistics awaitComparisons(long count) throws InterruptedException {
+        return awaitComparisons(SQL, count);
+    }
+
+    private ShadowStatistics awaitComparisons(String sql, long count) throws InterruptedException {
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (System.nanoTime() < deadline) {
+            final ShadowStatistics statistics = myP6MockFactory.getShadowStatistics().get(SqlFingerprint.of(sql));
+            if (statistics != null && statistics.getComparisons() >= count) {
+                return statistics;
+            }
+            Thread.sleep(10);
+        }
+        throw new AssertionError("expected " + count + " comparisons, got " + myP6MockFactory.getShadowStatistics());
+    }
+
+    private static void stubBirthday(String name, String birthday) {
+        WireMock.stubFor(WireMock
+            .post(WireMock.urlPathEqualTo("/sqlstub"))
+            .withRequestBody(WireMock.equalTo(SQL))
+            .withHeader("1", WireMock.equalTo(name))
+            .willReturn(WireMock.aResponse().withBody("<resultset><row><birthday>" + birthday + "</birthday></row></resultset>"))
+        );
+    }
+}
@@ -0,0 +1,124 @@
+package org.eeichinger.servicevirtualisation.jdbc;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import com.github.tomakehurst.wiremock.client.WireMock;
+import com.github.tomakehurst.wiremock.junit.WireMockRule;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+public class ShapingStubClientTest {
+
+    @Rule
+    public WireMockRule wireMockRule = new WireMockRule(0);
+
+    JdbcServiceVirtualizationFactory factory;
+
+    @Before
+    public void before() {
+        factory = new JdbcServiceVirtualizationFactory();
+        factory.setTargetUrl("http://localhost:" + wireMockRule.port() + "/sqlstub");
+        WireMock.stubFor(WireMock
+            .post(WireMock.urlPathEqualTo("/sqlstub"))
+            .withRequestBody(WireMock.equalTo("SELECT name FROM PEOPLE WHERE id = ?"))
+            .willReturn(WireMock.aResponse().withBody("<resultset><row><name>Erich</name></row></resultset>"))
+        );
+        WireMock.stubFor(WireMock
+            .post(WireMock.urlPathEqualTo("/sqlstub"))
+            .withRequestBody(WireMock.equalTo("SELECT name FROM SLOW_PEOPLE WHERE id = ?"))
+            .willReturn(WireMock.aResponse()
+                .withHeader(LatencyDistribution.LATENCY_HEADER, "fixed(300)")
+                .withBody("<resultset><row><name>Erich</name></row></resultset>")
+            )
+        );
+    }
+
+    @After
+    public void after() throws Exception {
+        factory.close();
+    }
+
+    @Test
+    public void delays_virtualized_statements() {
+        factory.setShapingPolicy(new ShapingPolicy(LatencyDistribution.fixed(200, TimeUnit.MILLISECONDS)));
+        JdbcTemplate jdbcTemplate = new JdbcTemplate(factory.createMockDataSource());
+
+        assertThat(timeMillis(() -> jdbcTemplate.queryForObject("SELECT name FROM PEOPLE WHERE id = ?", String.class, 1)), greaterThanOrEqualTo(200L));
+    }
+
+    @Test
+    public void latency_header_overrides_default_distribution() {
+        factory.setShapingPolicy(new ShapingPolicy(LatencyDistribution.fromResponseHeader(LatencyDistribution.none())));
+        JdbcTemplate jdbcTemplate = new JdbcTemplate(factory.createMockDataSource());
+
+        assertThat(timeMillis(() -> jdbcTemplate.queryForObject("SELECT name FROM SLOW_PEOPLE WHERE id = ?", String.class, 1)), greaterThanOrEqualTo(300L));
+        assertThat(timeMillis(() -> jdbcTemplate.queryForObject("SELECT name FROM PEOPLE WHERE id = ?", String.class, 1)), lessThan(300L));
+    }
+
+    @Test
+    public void limits_concurrent_executions_per_statement() throws Exception {
+        factory.setShapingPolicy(new ShapingPolicy(LatencyDistribution.fixed(100, TimeUnit.MILLISECONDS), 1, 0));
+        JdbcTemplate jdbcTemplate = new JdbcTemplate(factory.createMockDataSource());
+
+        final ExecutorService executor = Executors.newFixedThreadPool(5);
+        try {
+            final long elapsed = timeMillis(() -> {
+                List<Future<String>> results = new ArrayList<>();
+                for (int i = 0; i < 5; i++) {
+                    results.add(executor.submit(() -> jdbcTemplate.queryForObject("SELECT name FROM PEOPLE WHERE id = ?", String.class, 1)));
+                }
+                for (Future<String> result : results) {
+                    assertThat(result.get(), equalTo("Erich"));
+                }
+                return null;
+            });
+            // executions are serialized
+            assertThat(elapsed, greaterThanOrEqualTo(500L));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void parses_latency_specifications() {
+        final StubResponse response = new StubResponse(200, Collections.<String, String>emptyMap(), null);
+        assertThat(LatencyDistribution.parse("50").sampleNanos(response), equalTo(TimeUnit.MILLISECONDS.toNanos(50)));
+        assertThat(LatencyDistribution.parse("fixed(50)").sampleNanos(response), equalTo(TimeUnit.MILLISECONDS.toNanos(50)));
+        assertThat(LatencyDistribution.parse("uniform(10, 20)").sampleNanos(response), allOf(
+            greaterThanOrEqualTo(TimeUnit.MILLISECONDS.toNanos(10)), lessThanOrEqualTo(TimeUnit.MILLISECONDS.toNanos(20))));
+        assertThat(LatencyDistribution.parse("lognormal(20,200)").sampleNanos(response), greaterThan(0L));
+    }
+
+    @Test
+    public void invalid_latency_header_falls_back_to_default_distribution() {
+        final LatencyDistribution distribution = LatencyDistribution.fromResponseHeader(LatencyDistribution.fixed(7, TimeUnit.MILLISECONDS));
+        for (String spec : Arrays.asList("soon", "lognormal(200,20)", "soon")) {
+            final StubResponse response = new StubResponse(200, Collections.singletonMap(LatencyDistribution.LATENCY_HEADER, spec), null);
+            assertThat(distribution.sampleNanos(response), equalTo(TimeUnit.MILLISECONDS.toNanos(7)));
+        }
+    }
+
+    private static long timeMillis(Callable<?> callable) {
+        final long start = System.nanoTime();
+        try {
+            callable.call();
+        } catch (Exception e) {
+            throw new AssertionError(e);
+        }
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+    }
+}
@@ -0,0 +1,96 @@
+package org.eeichinger.servicevirtualisation.jdbc;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+
+import javax.sql.DataSource;
+
+import com.mockrunner.jdbc.PreparedStatementResultSetHandler;
+import com.mockrunner.mock.jdbc.MockConnection;
+import org.junit.Assume;
+import org.junit.Test;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+/**
+ * Prepares many distinct statements on a mock connection and verifies the number of tracked statements stays
+ * bounded. The heap soak test prepares millions of statements and only runs when enabled using {@code -Dsoak},
+ * use -Dsoak.statements=N to change the number of statements (default one million).
+ */
+public class StatementTrackingSoakTest {
+
+    static final int STATEMENTS = Integer.getInteger("soak.statements", 1_000_000);
+
+    @Test
+    public void tracked_statements_are_bounded() throws Exception {
+        JdbcServiceVirtualizationFactory factory = new JdbcServiceVirtualizationFactory();
+        factory.setMaxTrackedStatements(100);
+        DataSource dataSource = factory.createMockDataSource();
+
+        try (Connection connection = dataSource.getConnection()) {
+            prepare(connection, 0, 10_000);
+
+            final PreparedStatementResultSetHandler handler = connection.unwrap(MockConnection.class).getPreparedStatementResultSetHandler();
+            // eviction only kicks in once twice the limit is tracked
+            assertThat(handler.getPreparedStatements(), hasSize(lessThanOrEqualTo(200)));
+            assertThat(handler.getPreparedStatementMap().size(), lessThanOrEqualTo(200));
+        }
+    }
+
+    @Test
+    public void all_statements_are_tracked_if_unbounded() throws Exception {
+        JdbcServiceVirtualizationFactory factory = new JdbcServiceVirtualizationFactory();
+        factory.setMaxTrackedStatements(-1);
+        DataSource dataSource = factory.createMockDataSource();
+
+        try (Connection connection = dataSource.getConnection()) {
+            prepare(connection, 0, 1000);
+
+            assertThat(connection.unwrap(MockConnection.class).getPreparedStatementResultSetHandler().getPreparedStatements(), hasSize(1000));
+        }
+    }
+
+    @Test
+    public void heap_stays_flat_while_preparing_millions_of_statements() throws Exception {
+        Assume.assumeTrue("soak test disabled, enable using -Dsoak", System.getProperty("soak") != null);
+
+        JdbcServiceVirtualizationFactory factory = new JdbcServiceVirtualizationFactory();
+        DataSource dataSource = factory.createMockDataSource();
+
+        try (Connection connection = dataSource.getConnection()) {
+            // warm up, so the tracked statements and generated proxy classes are part of the baseline
+            prepare(connection, 0, STATEMENTS / 10);
+            final long baseline = usedHeapAfterGc();
+
+            prepare(connection, STATEMENTS / 10, STATEMENTS);
+            final long growth = usedHeapAfterGc() - baseline;
+
+            // tracking all statements would retain several hundred bytes per statement
+            assertThat(growth, lessThan(16L * 1024 * 1024));
+        }
+    }
+
+    private static void prepare(Connection connection, int from, int to) throws SQLException {
+        for (int i = from; i < to; i++) {
+            // distinct statements, Mockrunner additionally indexes statements by SQL
+            PreparedStatement ps = connection.prepareStatement("SELECT name FROM PEOPLE WHERE id = ? AND " + i + " = " + i);
+            ps.setInt(1, i);
+            ps.close();
+        }
+    }
+
+    private static long usedHeapAfterGc() throws InterruptedException {
+        final MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        long used = Long.MAX_VALUE;
+        for (int i = 0; i < 5; i++) {
+            System.gc();
+            Thread.sleep(50);
+            used = Math.min(used, memory.getHeapMemoryUsage().getUsed());
+        }
+        return used;
+    }
+}
@@ -0,0 +1,108 @@
+package org.eeichinger.servicevirtualisation.jdbc;
+
+import java.io.InputStream;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.sql.Blob;
+import java.sql.Clob;
+import java.util.Base64;
+
+import com.github.tomakehurst.wiremock.client.WireMock;
+import com.github.tomakehurst.wiremock.junit.WireMockRule;
+import com.mockrunner.mock.jdbc.MockResultSet;
+import lombok.SneakyThrows;
+import org.junit.Rule;
+import org.junit.Test;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.util.FileCopyUtils;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+public class StreamingLobTest {
+
+    static final String SQL = "SELECT name, content FROM DOCUMENTS WHERE id = ?";
+
+    @Rule
+    public WireMockRule wireMockRule = new WireMockRule(0);
+
+    @Test
+    public void decodes_cells_on_demand() throws Exception {
+        final byte[] content = {0, 1, 2, (byte) 0xff, 42};
+        MockResultSet resultSet = MockResultSetHelper.parseResultSetFromSybaseXmlString("x", "" +
+            "<resultset xmlns:xsi='http://www.w3.org/2001/XMLSchema-instance'>" +
+            "<row><name>a.bin</name><content encoding='base64'>" + Base64.getEncoder().encodeToString(content) + "</content></row>" +
+            "<row><name>b.bin</name><content xsi:nil='true' encoding='base64'/></row>" +
+            "</resultset>");
+
+        resultSet.next();
+        assertThat(resultSet.getObject(2), instanceOf(StreamingLob.class));
+        try (InputStream in = resultSet.getBinaryStream("content")) {
+            assertThat(FileCopyUtils.copyToByteArray(in), equalTo(content));
+        }
+        assertThat(resultSet.getBytes(2), equalTo(content));
+        Blob blob = resultSet.getBlob(2);
+        assertThat(blob.length(), equalTo(5L));
+        assertThat(blob.getBytes(2, 3), equalTo(new byte[]{1, 2, (byte) 0xff}));
+
+        resultSet.next();
+        assertThat(resultSet.getBlob(2), nullValue());
+        assertThat(resultSet.wasNull(), is(true));
+    }
+
+    @Test
+    public void decodes_text_as_utf8() throws Exception {
+        final String text = "Grüße aus Stuttgart\n";
+        // line breaks and indentation of the encoded content are ignored
+        final String encoded = Base64.getMimeEncoder(8, "\n    ".getBytes(StandardCharsets.US_ASCII))
+            .encodeToString(text.getBytes(StandardCharsets.UTF_8));
+        MockResultSet resultSet = MockResultSetHelper.parseResultSetFromSybaseXmlString("x",
+            "<resultset><row><notes encoding='base64'>\n    " + encoded + "\n</notes></row></resultset>");
+
+        resultSet.next();
+        assertThat(resultSet.getString(1), equalTo(text));
+        try (Reader in = resultSet.getCharacterStream("notes")) {
+            assertThat(FileCopyUtils.copyToString(in), equalTo(text));
+        }
+        Clob clob = resultSet.getClob(1);
+        assertThat(clob.length(), equalTo((long) text.length()));
+        assertThat(clob.getSubString(7, 3), equalTo("aus"));
+    }
+
+    @Test
+    public void spools_large_cells_to_temporary_files() throws Exception {
+        final byte[] content = new byte[64 * 1024];
+        for (int i = 0; i < content.length; i++) {
+            content[i] = (byte) i;
+        }
+        JdbcServiceVirtualizationFactory myP6MockFactory = new JdbcServiceVirtualizationFactory();
+        myP6MockFactory.setTargetUrl("http://localhost:" + wireMockRule.port() + "/sqlstub");
+        myP6MockFactory.setLobSpoolThreshold(16 * 1024);
+        JdbcTemplate jdbcTemplate = new JdbcTemplate(myP6MockFactory.createMockDataSource());
+
+        WireMock.stubFor(WireMock
+            .post(WireMock.urlPathEqualTo("/sqlstub"))
+            .withRequestBody(WireMock.equalTo(SQL))
+            .willReturn(WireMock.aResponse().withBody("<resultset>" +
+                "<row><name>small.bin</name><content encoding='base64'>AQID</content></row>" +
+                "<row><name>large.bin</name><content encoding='base64'>" + Base64.getEncoder().encodeToString(content) + "</content></row>" +
+                "</resultset>"))
+        );
+
+        jdbcTemplate.query(SQL, rs -> {
+            StreamingLob lob = (StreamingLob) rs.getObject("content");
+            if (rs.getString("name").equals("large.bin")) {
+                assertThat(lob.isSpooled(), is(true));
+                assertThat(readFully(rs.getBinaryStream(2)), equalTo(content));
+            } else {
+                assertThat(lob.isSpooled(), is(false));
+                assertThat(rs.getBytes(2), equalTo(new byte[]{1, 2, 3}));
+            }
+        }, 1);
+    }
+
+    @SneakyThrows
+    private static byte[] readFully(InputStream in) {
+        return FileCopyUtils.copyToByteArray(in);
+    }
+}
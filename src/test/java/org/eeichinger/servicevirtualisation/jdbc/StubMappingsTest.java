@@ -0,0 +1,155 @@
+package org.eeichinger.servicevirtualisation.jdbc;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import com.github.tomakehurst.wiremock.client.WireMock;
+import com.github.tomakehurst.wiremock.junit.WireMockRule;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+public class StubMappingsTest {
+
+    static final String SQL = "SELECT birthday FROM PEOPLE WHERE name = ?";
+    static final String OTHER_SQL = "SELECT name FROM PEOPLE WHERE birthday = ?";
+
+    @Rule
+    public WireMockRule wireMockRule = new WireMockRule(0);
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    JdbcServiceVirtualizationFactory myP6MockFactory;
+    JdbcTemplate jdbcTemplate;
+
+    @Before
+    public void before() {
+        myP6MockFactory = new JdbcServiceVirtualizationFactory();
+        myP6MockFactory.setTargetUrl("http://localhost:" + wireMockRule.port() + "/sqlstub");
+        jdbcTemplate = new JdbcTemplate(myP6MockFactory.createMockDataSource());
+    }
+
+    @Test
+    public void answers_preloaded_mappings_from_memory() throws Exception {
+        stubBirthday("Erich Eichinger", "1980-01-01");
+        stubBirthday("Max Mustermann", "1990-02-03");
+        StubMappings mappings = myP6MockFactory.preloadStubMappings();
+        assertThat(mappings.getPreloadedCount(), equalTo(2));
+
+        WireMock.reset();
+        WireMock.stubFor(WireMock
+            .post(WireMock.urlPathEqualTo("/sqlstub"))
+            .withRequestBody(WireMock.equalTo(OTHER_SQL))
+            .willReturn(WireMock.aResponse().withBody("<resultset><row><name>Erich Eichinger</name></row></resultset>"))
+        );
+
+        for (int i = 0; i < 3; i++) {
+            assertThat(jdbcTemplate.queryForObject(SQL, String.class, "Erich Eichinger"), equalTo("1980-01-01"));
+        }
+        assertThat(jdbcTemplate.queryForObject(SQL, String.class, "Max Mustermann"), equalTo("1990-02-03"));
+        assertThat(jdbcTemplate.queryForObject(OTHER_SQL, String.class, "1980-01-01"), equalTo("Erich Eichinger"));
+
+        WireMock.verify(1, WireMock.postRequestedFor(WireMock.urlPathEqualTo("/sqlstub")));
+        assertThat(mappings.getHits(), equalTo(4L));
+        assertThat(mappings.getMisses(), equalTo(1L));
+    }
+
+    @Test
+    public void leaves_statements_shadowed_by_other_mappings_to_server() throws Exception {
+        stubBirthday("Erich Eichinger", "1980-01-01");
+        WireMock.stubFor(WireMock
+            .post(WireMock.urlPathEqualTo("/sqlstub"))
+            .withRequestBody(WireMock.matching("SELECT birthday .*"))
+            .atPriority(1)
+            .willReturn(WireMock.aResponse().withBody("<resultset><row><birthday>2000-12-31</birthday></row></resultset>"))
+        );
+        StubMappings mappings = myP6MockFactory.preloadStubMappings();
+        assertThat(mappings.size(), equalTo(2));
+        assertThat(mappings.getPreloadedCount(), equalTo(1));
+
+        assertThat(jdbcTemplate.queryForObject(SQL, String.class, "Erich Eichinger"), equalTo("2000-12-31"));
+        WireMock.verify(1, WireMock.postRequestedFor(WireMock.urlPathEqualTo("/sqlstub")));
+    }
+
+    @Test
+    public void leaves_mappings_on_transport_headers_to_server() throws Exception {
+        stubBirthday("Erich Eichinger", "1980-01-01");
+        // the stub server sees the request's Content-Type, the in-memory mappings don't
+        WireMock.stubFor(WireMock
+            .post(WireMock.urlPathEqualTo("/sqlstub"))
+            .withRequestBody(WireMock.equalTo(SQL))
+            .withHeader("Content-Type", WireMock.equalTo("text/plain; charset=UTF-8"))
+            .atPriority(1)
+            .willReturn(WireMock.aResponse().withBody("<resultset><row><birthday>2000-12-31</birthday></row></resultset>"))
+        );
+        StubMappings mappings = myP6MockFactory.preloadStubMappings();
+        assertThat(mappings.size(), equalTo(2));
+        assertThat(mappings.getPreloadedCount(), equalTo(1));
+
+        assertThat(jdbcTemplate.queryForObject(SQL, String.class, "Erich Eichinger"), equalTo("2000-12-31"));
+        WireMock.verify(1, WireMock.postRequestedFor(WireMock.urlPathEqualTo("/sqlstub")));
+    }
+
+    @Test
+    public void reads_mapping_directory() throws Exception {
+        Path root = temporaryFolder.getRoot().toPath();
+        Files.createDirectories(root.resolve("mappings"));
+        Files.createDirectories(root.resolve("__files"));
+        Files.write(root.resolve("mappings/birthday.json"), ("{" +
+            "\"request\": {\"method\": \"POST\", \"url\": \"/sqlstub\"" +
+            ", \"bodyPatterns\": [{\"equalTo\": \"" + SQL + "\"}]" +
+            ", \"headers\": {\"1\": {\"equalTo\": \"Erich Eichinger\"}}}" +
+            ", \"response\": {\"status\": 200, \"bodyFileName\": \"birthday.xml\"}" +
+            "}").getBytes(StandardCharsets.UTF_8));
+        Files.write(root.resolve("__files/birthday.xml"),
+            "<resultset><row><birthday>1980-01-01</birthday></row></resultset>".getBytes(StandardCharsets.UTF_8));
+
+        StubMappings mappings = myP6MockFactory.preloadStubMappings(root);
+
+        assertThat(jdbcTemplate.queryForObject(SQL, String.class, "Erich Eichinger"), equalTo("1980-01-01"));
+        assertThat(mappings.getHits(), equalTo(1L));
+        WireMock.verify(0, WireMock.postRequestedFor(WireMock.urlPathEqualTo("/sqlstub")));
+    }
+
+    @Test
+    public void orders_mapping_files_like_wiremock() throws Exception {
+        Path root = temporaryFolder.getRoot().toPath();
+        Files.createDirectories(root.resolve("mappings"));
+        // no priority means WireMock's default of 5, which wins over 6
+        writeMapping(root.resolve("mappings/1-low.json"), SQL, "6", "1970-01-01");
+        writeMapping(root.resolve("mappings/2-default.json"), SQL, null, "1980-01-01");
+        // among equal priorities, the mapping added last wins
+        writeMapping(root.resolve("mappings/3-first.json"), OTHER_SQL, "1", "Max Mustermann");
+        writeMapping(root.resolve("mappings/4-last.json"), OTHER_SQL, "1", "Erich Eichinger");
+
+        myP6MockFactory.preloadStubMappings(root);
+
+        assertThat(jdbcTemplate.queryForObject(SQL, String.class, "Erich Eichinger"), equalTo("1980-01-01"));
+        assertThat(jdbcTemplate.queryForObject(OTHER_SQL, String.class, "1980-01-01"), equalTo("Erich Eichinger"));
+        WireMock.verify(0, WireMock.postRequestedFor(WireMock.urlPathEqualTo("/sqlstub")));
+    }
+
+    private static void writeMapping(Path file, String sql, String priority, String value) throws Exception {
+        Files.write(file, ("{" +
+            (priority != null ? "\"priority\": " + priority + ", " : "") +
+            "\"request\": {\"method\": \"POST\", \"url\": \"/sqlstub\", \"bodyPatterns\": [{\"equalTo\": \"" + sql + "\"}]}" +
+            ", \"response\": {\"status\": 200, \"body\": \"<resultset><row><value>" + value + "</value></row></resultset>\"}" +
+            "}").getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static void stubBirthday(String name, String birthday) {
+        WireMock.stubFor(WireMock
+            .post(WireMock.urlPathEqualTo("/sqlstub"))
+            .withRequestBody(WireMock.equalTo(SQL))
+            .withHeader("1", WireMock.equalTo(name))
+            .willReturn(WireMock.aResponse().withBody("<resultset><row><birthday>" + birthday + "</birthday></row></resultset>"))
+        );
+    }
+}
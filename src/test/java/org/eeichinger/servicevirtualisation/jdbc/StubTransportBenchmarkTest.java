@@ -0,0 +1,93 @@
+package org.eeichinger.servicevirtualisation.jdbc;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.hc.core5.http2.HttpVersionPolicy;
+import org.junit.Assume;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+/**
+ * Compares throughput and latency of the HTTP/1.1 and HTTP/2 transports at increasing numbers of concurrent
+ * callers. Only runs when enabled using {@code -Dbenchmark}.
+ */
+public class StubTransportBenchmarkTest {
+
+    private static final int[] CALLERS = {10, 100, 1000};
+    private static final int REQUESTS_PER_RUN = 20000;
+
+    @Rule
+    public H2StubServer http1StubServer = new H2StubServer(HttpVersionPolicy.FORCE_HTTP_1, sql -> "<resultset><row><id>1</id></row></resultset>");
+
+    @Rule
+    public H2StubServer http2StubServer = new H2StubServer(HttpVersionPolicy.FORCE_HTTP_2, sql -> "<resultset><row><id>1</id></row></resultset>");
+
+    @BeforeClass
+    public static void onlyWhenEnabled() {
+        Assume.assumeTrue("benchmark disabled, enable using -Dbenchmark", System.getProperty("benchmark") != null);
+    }
+
+    @Test
+    public void compare_transports() throws Exception {
+        for (int callers : CALLERS) {
+            for (StubTransportProtocol protocol : StubTransportProtocol.values()) {
+                run(protocol, callers);
+            }
+        }
+    }
+
+    private void run(StubTransportProtocol protocol, int callers) throws Exception {
+        final JdbcServiceVirtualizationFactory factory = new JdbcServiceVirtualizationFactory();
+        final H2StubServer stubServer = protocol == StubTransportProtocol.H2C ? http2StubServer : http1StubServer;
+        factory.setTargetUrl("http://localhost:" + stubServer.port() + "/sqlstub");
+        factory.setTransportProtocol(protocol);
+        factory.setMaxConnectionsPerEndpoint(callers);
+        final JdbcTemplate jdbcTemplate = new JdbcTemplate(factory.createMockDataSource());
+        final LatencyHistogram latency = new LatencyHistogram();
+        final ExecutorService executor = Executors.newFixedThreadPool(callers);
+        try {
+            // warm up connections
+            jdbcTemplate.queryForObject("SELECT id FROM BENCHMARK WHERE id = ?", Integer.class, 0);
+
+            final CountDownLatch startSignal = new CountDownLatch(1);
+            final List<Future<?>> futures = new ArrayList<>();
+            for (int c = 0; c < callers; c++) {
+                futures.add(executor.submit(() -> {
+                    startSignal.await();
+                    for (int i = 0; i < REQUESTS_PER_RUN / callers; i++) {
+                        final long start = System.nanoTime();
+                        jdbcTemplate.queryForObject("SELECT id FROM BENCHMARK WHERE id = ?", Integer.class, i);
+                        latency.recordNanos(System.nanoTime() - start);
+                    }
+                    return null;
+                }));
+            }
+            final long start = System.nanoTime();
+            startSignal.countDown();
+            for (Future<?> future : futures) {
+                future.get();
+            }
+            final long elapsedNanos = System.nanoTime() - start;
+
+            System.out.printf("%-8s callers=%4d throughput=%8.0f req/s p50=%6dus p99=%6dus max=%6dus%n"
+                , protocol
+                , callers
+                , latency.getCount() / (elapsedNanos / (double) TimeUnit.SECONDS.toNanos(1))
+                , latency.getPercentileMicros(50)
+                , latency.getPercentileMicros(99)
+                , latency.getMaxMicros()
+            );
+        } finally {
+            executor.shutdownNow();
+            factory.close();
+        }
+    }
+}
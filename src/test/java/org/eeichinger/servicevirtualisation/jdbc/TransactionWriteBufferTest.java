@@ -0,0 +1,130 @@
+package org.eeichinger.servicevirtualisation.jdbc;
+
+import java.util.Arrays;
+import java.util.List;
+
+import javax.sql.DataSource;
+
+import com.github.tomakehurst.wiremock.client.WireMock;
+import com.github.tomakehurst.wiremock.junit.WireMockRule;
+import com.github.tomakehurst.wiremock.verification.LoggedRequest;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DataSourceTransactionManager;
+import org.springframework.transaction.TransactionSystemException;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.fail;
+
+public class TransactionWriteBufferTest {
+
+    @Rule
+    public WireMockRule wireMockRule = new WireMockRule(0);
+
+    JdbcServiceVirtualizationFactory factory;
+    JdbcTemplate jdbcTemplate;
+    TransactionTemplate transactionTemplate;
+
+    @Before
+    public void before() {
+        factory = new JdbcServiceVirtualizationFactory();
+        factory.setTargetUrl("http://localhost:" + wireMockRule.port() + "/sqlstub");
+        factory.setWriteBuffering(true);
+        DataSource dataSource = factory.createMockDataSource();
+        jdbcTemplate = new JdbcTemplate(dataSource);
+        transactionTemplate = new TransactionTemplate(new DataSourceTransactionManager(dataSource));
+
+        WireMock.stubFor(WireMock
+            .post(WireMock.urlPathEqualTo("/sqlstub"))
+            .willReturn(WireMock.aResponse().withBody("1"))
+        );
+    }
+
+    @After
+    public void after() throws Exception {
+        factory.close();
+    }
+
+    @Test
+    public void ships_buffered_writes_as_single_request_on_commit() {
+        transactionTemplate.execute(status -> {
+            assertThat(jdbcTemplate.update("UPDATE PEOPLE SET name = ? WHERE id = ?", "Erich", 1), equalTo(1));
+            assertThat(jdbcTemplate.update("INSERT INTO AUDIT (person, action) VALUES (?, ?)", 1, "rename"), equalTo(1));
+            // nothing sent before commit
+            WireMock.verify(0, WireMock.postRequestedFor(WireMock.urlPathEqualTo("/sqlstub")));
+            return null;
+        });
+
+        WireMock.verify(1, WireMock.postRequestedFor(WireMock.urlPathEqualTo("/sqlstub"))
+            .withRequestBody(WireMock.equalTo("UPDATE PEOPLE SET name = ? WHERE id = ?;\nINSERT INTO AUDIT (person, action) VALUES (?, ?)"))
+            .withHeader("1", WireMock.equalTo("Erich"))
+            .withHeader("2", WireMock.equalTo("1"))
+            .withHeader("3", WireMock.equalTo("1"))
+            .withHeader("4", WireMock.equalTo("rename"))
+        );
+    }
+
+    @Test
+    public void discards_buffered_writes_on_rollback() {
+        transactionTemplate.execute(status -> {
+            jdbcTemplate.update("UPDATE PEOPLE SET name = ? WHERE id = ?", "Erich", 1);
+            status.setRollbackOnly();
+            return null;
+        });
+
+        WireMock.verify(0, WireMock.postRequestedFor(WireMock.urlPathEqualTo("/sqlstub")));
+    }
+
+    @Test
+    public void flushes_buffered_writes_before_a_batch() {
+        transactionTemplate.execute(status -> {
+            jdbcTemplate.update("UPDATE PEOPLE SET name = ? WHERE id = ?", "Erich", 1);
+            jdbcTemplate.batchUpdate("INSERT INTO AUDIT (person, action) VALUES (?, ?)", Arrays.asList(new Object[]{1, "rename"}, new Object[]{2, "rename"}));
+            jdbcTemplate.update("DELETE FROM AUDIT WHERE person = ?", 2);
+            status.setRollbackOnly();
+            return null;
+        });
+
+        // the update is sent before the batch, the rolled back delete isn't sent at all
+        List<LoggedRequest> requests = WireMock.findAll(WireMock.postRequestedFor(WireMock.urlPathEqualTo("/sqlstub")));
+        assertThat(requests, hasSize(2));
+        assertThat(requests.get(0).getBodyAsString(), equalTo("UPDATE PEOPLE SET name = ? WHERE id = ?"));
+        assertThat(requests.get(1).getBodyAsString(), equalTo("INSERT INTO AUDIT (person, action) VALUES (?, ?)"));
+    }
+
+    @Test
+    public void writes_outside_transactions_are_sent_immediately() {
+        jdbcTemplate.update("UPDATE PEOPLE SET name = ? WHERE id = ?", "Erich", 1);
+
+        WireMock.verify(1, WireMock.postRequestedFor(WireMock.urlPathEqualTo("/sqlstub")));
+    }
+
+    @Test
+    public void commit_fails_if_stub_server_rejects_buffered_writes() {
+        WireMock.stubFor(WireMock
+            .post(WireMock.urlPathEqualTo("/sqlstub"))
+            .withRequestBody(WireMock.containing("DELETE"))
+            .willReturn(WireMock.aResponse()
+                .withStatus(400)
+                .withHeader("reason", "integrity constraint violation")
+                .withHeader("sqlstate", "23000")
+            )
+        );
+
+        try {
+            transactionTemplate.execute(status -> {
+                jdbcTemplate.update("UPDATE PEOPLE SET name = ? WHERE id = ?", "Erich", 1);
+                jdbcTemplate.update("DELETE FROM PEOPLE WHERE id = ?", 2);
+                return null;
+            });
+            fail();
+        } catch (TransactionSystemException e) {
+            assertThat(e.getCause().getMessage(), equalTo("integrity constraint violation"));
+        }
+    }
+}
@@ -0,0 +1,126 @@
+package org.eeichinger.servicevirtualisation.jdbc;
+
+import java.lang.reflect.Method;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import com.github.tomakehurst.wiremock.client.WireMock;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import com.github.tomakehurst.wiremock.junit.WireMockRule;
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+/**
+ * Runs tens of thousands of virtual threads against a single mock DataSource and fails if any of them got pinned to
+ * its carrier thread, as recorded by JFR's {@code jdk.VirtualThreadPinned} event. Skipped on JVMs without virtual
+ * threads (Java 21+).
+ */
+public class VirtualThreadStressTest {
+
+    private static final int VIRTUAL_THREADS = 20000;
+    private static final String PINNED_EVENT = "jdk.VirtualThreadPinned";
+
+    @Rule
+    public WireMockRule wireMockRule = new WireMockRule(0);
+
+    JdbcServiceVirtualizationFactory factory;
+    ExecutorService executor;
+
+    @Before
+    public void before() throws Exception {
+        executor = newVirtualThreadPerTaskExecutor();
+        factory = new JdbcServiceVirtualizationFactory();
+        factory.setTargetUrl("http://localhost:" + wireMockRule.port() + "/sqlstub");
+        factory.setTransportProtocol(StubTransportProtocol.JDK_HTTP_1_1);
+    }
+
+    @After
+    public void after() throws Exception {
+        if (executor != null) {
+            executor.shutdownNow();
+            factory.close();
+        }
+    }
+
+    @Test
+    public void all_virtual_threads_get_their_results_without_pinning() throws Exception {
+        WireMock.stubFor(WireMock
+            .post(WireMock.urlPathEqualTo("/sqlstub"))
+            .willReturn(WireMock.aResponse().withBody("<resultset><row><name>Erich</name></row></resultset>"))
+        );
+        final JdbcTemplate jdbcTemplate = new JdbcTemplate(factory.createMockDataSource());
+
+        final List<RecordedEvent> pinnedEvents;
+        try (Recording recording = new Recording()) {
+            // report any pinned park, not only those exceeding the default threshold of 20ms
+            recording.enable(PINNED_EVENT).withThreshold(Duration.ZERO).withStackTrace();
+            recording.start();
+
+            final List<Future<String>> results = new ArrayList<>();
+            for (int i = 0; i < VIRTUAL_THREADS; i++) {
+                final int id = i;
+                results.add(executor.submit(() -> jdbcTemplate.queryForObject("SELECT name FROM PEOPLE WHERE id = ?", String.class, id)));
+            }
+            for (Future<String> result : results) {
+                assertThat(result.get(2, TimeUnit.MINUTES), equalTo("Erich"));
+            }
+
+            recording.stop();
+            pinnedEvents = readEvents(recording, PINNED_EVENT);
+        }
+
+        WireMock.verify(VIRTUAL_THREADS, WireMock.postRequestedFor(WireMock.urlPathEqualTo("/sqlstub")));
+        assertThat(describe(pinnedEvents), pinnedEvents, empty());
+    }
+
+    private static List<RecordedEvent> readEvents(Recording recording, String eventName) throws Exception {
+        final Path file = Files.createTempFile("virtual-threads", ".jfr");
+        try {
+            recording.dump(file);
+            final List<RecordedEvent> events = new ArrayList<>();
+            for (RecordedEvent event : RecordingFile.readAllEvents(file)) {
+                if (event.getEventType().getName().equals(eventName)) {
+                    events.add(event);
+                }
+            }
+            return events;
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    private static String describe(List<RecordedEvent> pinnedEvents) {
+        final StringBuilder sb = new StringBuilder("virtual threads pinned to their carrier");
+        for (RecordedEvent event : pinnedEvents.subList(0, Math.min(3, pinnedEvents.size()))) {
+            sb.append("\n").append(event);
+        }
+        return sb.toString();
+    }
+
+    private static ExecutorService newVirtualThreadPerTaskExecutor() throws Exception {
+        final Method factoryMethod;
+        try {
+            factoryMethod = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+        } catch (NoSuchMethodException e) {
+            Assume.assumeNoException("virtual threads not supported by this JVM", e);
+            throw e;
+        }
+        return (ExecutorService) factoryMethod.invoke(null);
+    }
+}
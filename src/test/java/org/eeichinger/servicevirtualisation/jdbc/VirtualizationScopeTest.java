@@ -0,0 +1,126 @@
+package org.eeichinger.servicevirtualisation.jdbc;
+
+import java.sql.Connection;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import javax.sql.DataSource;
+
+import com.github.tomakehurst.wiremock.client.WireMock;
+import com.github.tomakehurst.wiremock.junit.WireMockRule;
+import lombok.SneakyThrows;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.springframework.core.io.ByteArrayResource;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.embedded.EmbeddedDatabaseFactoryBean;
+import org.springframework.jdbc.datasource.embedded.EmbeddedDatabaseType;
+import org.springframework.jdbc.datasource.init.ResourceDatabasePopulator;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+@SuppressWarnings("try")
+public class VirtualizationScopeTest {
+
+    static final String SQL = "SELECT birthday FROM PEOPLE WHERE name = ?";
+
+    @Rule
+    public WireMockRule wireMockRule = new WireMockRule(0);
+
+    EmbeddedDatabaseFactoryBean databaseFactory;
+    JdbcServiceVirtualizationFactory myP6MockFactory;
+    DataSource dataSource;
+    JdbcTemplate jdbcTemplate;
+
+    @Before
+    @SneakyThrows
+    public void before() {
+        final ResourceDatabasePopulator dbPopulator = new ResourceDatabasePopulator();
+        dbPopulator.addScript(new ByteArrayResource(("" +
+            "CREATE TABLE PEOPLE (name VARCHAR(200) NOT NULL, birthday VARCHAR(200) NOT NULL);\n" +
+            "INSERT INTO PEOPLE(name, birthday) VALUES('Hugo Simon', '2012-01-02');\n"
+        ).getBytes("utf-8")));
+        databaseFactory = new EmbeddedDatabaseFactoryBean();
+        databaseFactory.setDatabaseType(EmbeddedDatabaseType.HSQL);
+        databaseFactory.setDatabasePopulator(dbPopulator);
+        databaseFactory.afterPropertiesSet();
+
+        myP6MockFactory = new JdbcServiceVirtualizationFactory();
+        myP6MockFactory.setTargetUrl("http://localhost:" + wireMockRule.port() + "/sqlstub");
+        myP6MockFactory.setScopedActivation(true);
+        dataSource = myP6MockFactory.spyOnDataSource(databaseFactory.getObject());
+        jdbcTemplate = new JdbcTemplate(dataSource);
+
+        WireMock.stubFor(WireMock
+            .post(WireMock.urlPathEqualTo("/sqlstub"))
+            .withRequestBody(WireMock.equalTo(SQL))
+            .willReturn(WireMock.aResponse().withBody("<resultset><row><birthday>1980-01-01</birthday></row></resultset>"))
+        );
+    }
+
+    @After
+    public void after() {
+        databaseFactory.destroy();
+    }
+
+    @Test
+    public void intercepts_only_within_scope() {
+        assertThat(query(), equalTo("2012-01-02"));
+
+        try (VirtualizationScope scope = myP6MockFactory.activate()) {
+            assertThat(query(), equalTo("1980-01-01"));
+            try (VirtualizationScope nested = myP6MockFactory.activate()) {
+                assertThat(query(), equalTo("1980-01-01"));
+            }
+            assertThat(myP6MockFactory.isActive(), is(true));
+        }
+
+        assertThat(myP6MockFactory.isActive(), is(false));
+        assertThat(query(), equalTo("2012-01-02"));
+        WireMock.verify(2, WireMock.postRequestedFor(WireMock.urlPathEqualTo("/sqlstub")));
+    }
+
+    @Test
+    public void hands_out_raw_connections_outside_scope() throws Exception {
+        final Class<?> rawConnectionClass;
+        try (Connection raw = databaseFactory.getObject().getConnection()) {
+            rawConnectionClass = raw.getClass();
+        }
+
+        try (Connection connection = dataSource.getConnection()) {
+            assertThat(connection.getClass(), equalTo(rawConnectionClass));
+        }
+        try (VirtualizationScope scope = myP6MockFactory.activate();
+             Connection connection = dataSource.getConnection()) {
+            assertThat(connection.getClass(), not(equalTo(rawConnectionClass)));
+        }
+    }
+
+    @Test
+    public void global_switch_overrides_scope() {
+        try (VirtualizationScope scope = myP6MockFactory.activate()) {
+            myP6MockFactory.setEnabled(false);
+            assertThat(query(), equalTo("2012-01-02"));
+            myP6MockFactory.setEnabled(true);
+            assertThat(query(), equalTo("1980-01-01"));
+        }
+    }
+
+    @Test
+    public void wrapped_tasks_propagate_scope() throws Exception {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try (VirtualizationScope scope = myP6MockFactory.activate()) {
+            assertThat(executor.submit(scope.wrap(this::query)).get(), equalTo("1980-01-01"));
+            assertThat(executor.submit(this::query).get(), equalTo("2012-01-02"));
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private String query() {
+        return jdbcTemplate.queryForObject(SQL, String.class, "Hugo Simon");
+    }
+}